@@ -101,7 +101,12 @@
 
             ;; Something cool
             "clocks" ["run" "-m" "george.example.arcclocks"]
-            "graph" ["run" "-m" "george.sandbox.graph"]}
+            "graph" ["run" "-m" "george.sandbox.graph"]
+
+            ;; Runs the benchmarks in jmh.edn, with the GC (allocation) profiler.
+            ;; Writes the results as EDN to target/jmh/results.edn - for comparing between releases.
+            "bench" ["with-profile" "+jmh" "jmh"
+                     "{:profilers [\"gc\"] :output \"target/jmh/results.edn\" :progress true}"]}
 
   :codox {
           :doc-paths ["docs"]
@@ -113,6 +118,11 @@
           :html {:namespace-list :flat}}
 
   :profiles {:repl {:env {:repl? "true"}}
+             ;; https://github.com/jgpc42/lein-jmh  See jmh.edn
+             :jmh {:dependencies [[jmh-clojure "0.2.1"]]
+                   :plugins [[lein-jmh "0.2.8"]]
+                   :source-paths ["src/jmh/clojure"]
+                   :resource-paths ["src/dev/resources"]}
              :uberjar {:aot :all
                        :manifest {"Main-Class" "no.andante.george.Main"
                                   "JavaFX-Preloader-Class" "no.andante.george.MainPreloader"
@@ -0,0 +1,44 @@
+;; Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+;; The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns
+  ^{:doc "Benchmarks of tokenizing, highlighting and reading code. See jmh.edn"}
+  george.bench.code
+  (:require
+    [george.code.tokenizer :as tok]
+    [george.code.highlight :as highlight]
+    [george.code.reader :as reader])
+  (:import
+    [george.code TokenStream]))
+
+
+(defn tokenize-str [text]
+  (tok/tokenize-str text))
+
+
+(defn tokenize-chars [text]
+  (tok/tokenize-chars text))
+
+
+(defn retokenize-chars
+  "Re-lexes after a 1-char insert."
+  [[ts edited pos]]
+  (tok/retokenize-chars ts edited pos pos (inc pos)))
+
+
+(defn highlight-spans
+  "Builds the StyleSpans for the whole text."
+  [^TokenStream ts]
+  (#'highlight/style-spans ts 0 (.lexedEnd ts)))
+
+
+(defn read-code
+  "Reads all the forms in the text."
+  [text]
+  (let [rdr (reader/indexing-pushback-stringreader text)]
+    (loop [n 0]
+      (if (= (reader/read-code rdr) :eof)
+        n
+        (recur (inc n))))))
@@ -0,0 +1,43 @@
+;; Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+;; The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns
+  ^{:doc "Benchmarks of the editor's hot paths. See jmh.edn"}
+  george.bench.editor
+  (:require
+    [george.editor.buffer :as b]
+    [george.editor.state :as st]
+    [george.editor.readers.core :as readers]
+    [george.editor.formatters.parinfer :as parinfer]))
+
+
+(defn new-buffer [text]
+  (b/new-buffer text))
+
+
+(defn split-buffer-lines [buffer]
+  (b/split-buffer-lines buffer))
+
+
+(defn keytyped
+  "Types a single char at the caret.  (Without a formatter, so only the edit itself is measured.)"
+  [state]
+  (st/keytyped_ state \x))
+
+
+(defn block-spans [text]
+  (readers/block-spans text))
+
+
+(defn parinfer-paren-mode
+  "Formats the whole document - as when it is loaded or pasted."
+  [state]
+  (parinfer/formatter* state true nil))
+
+
+(defn parinfer-indent-mode
+  "Formats the whole document - as after the first keystroke."
+  [state]
+  (parinfer/formatter* state false nil))
@@ -0,0 +1,133 @@
+;; Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+;; The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns
+  ^{:doc "Reproducible inputs of a given size (in chars) for the benchmarks. See jmh.edn
+  The inputs are built by repeating the sample texts in src/dev/resources, so they are the same on every run."}
+  george.bench.inputs
+  (:require
+    [clojure.java.io :as cio]
+    [george.editor.buffer :as b]
+    [george.editor.state :as st]
+    [george.editor.readers.core :as readers]
+    [george.code.tokenizer :as tok]
+    [george.turtle :as t]
+    [george.javafx :as fx])
+  (:import
+    [george.example ParticleField ParticleRenderer ParticleRenderer$Mode]
+    [javafx.scene Scene]
+    [javafx.scene.paint Color]))
+
+
+;(set! *warn-on-reflection* true)
+
+
+(def ^:private CODE_SAMPLES
+  (delay
+    [(slurp (cio/resource "texts/triangle.clj"))
+     readers/sample-code
+     "\n\n(defn- f [{:keys [a b] :as m} & args]\n  ;; a comment, with (parens) and \"quotes\"\n  (let [s \"a string\\n\" c \\( n 3/4]\n    (into #{} (map #(* % 2.5) (range a b)))))\n\n"]))
+
+
+(defn- repeat-to
+  "Returns 'size' chars of the samples repeated - cut at the last newline before 'size', if any."
+  ^String [samples ^long size]
+  (let [sb (StringBuilder. (int (+ size 1024)))]
+    (loop [[s & more] (cycle samples)]
+      (when (< (.length sb) size)
+        (.append sb ^String s)
+        (recur more)))
+    (let [nl (.lastIndexOf sb "\n" (int size))]
+      (.substring sb 0 (int (if (pos? nl) (inc nl) (min size (.length sb))))))))
+
+
+(defn code
+  "Returns approx. 'size' chars of Clojure code."
+  ^String [size]
+  (repeat-to @CODE_SAMPLES size))
+
+
+(defn prose
+  "Returns approx. 'size' chars of (HTML) text."
+  ^String [size]
+  (repeat-to [(slurp (cio/resource "texts/text-180k.html"))] size))
+
+
+(defn buffer [size]
+  (first (b/new-buffer (code size))))
+
+
+(defn token-stream [size]
+  (tok/tokenize-chars (code size)))
+
+
+(defn token-stream-edited
+  "Returns [token-stream edited-code pos] - the code with 1 char inserted at 'pos', in the middle, after it was tokenized."
+  [size]
+  (let [code (code size)
+        pos (quot (.length code) 2)]
+    [(tok/tokenize-chars code) (str (subs code 0 pos) \x (subs code pos)) pos]))
+
+
+(defn- editor-state
+  "Returns an editor-state (not an atom) for 'size' chars of code, with the caret at 'pos' - a fraction of the length."
+  [size pos]
+  (let [state @(st/new-state-atom (buffer size) "\n" :clj)
+        index (long (* (double pos) (st/length_ state)))]
+    (st/set-marks_ state index true true)))
+
+
+(defn editor-state-at-start [size] (editor-state size 0.0))
+
+(defn editor-state-at-middle [size] (editor-state size 0.5))
+
+(defn editor-state-at-end [size] (editor-state size 1.0))
+
+
+(defn turtle-on-screen
+  "Returns [screen turtle] - a turtle with speed nil on a screen which is not made visible."
+  []
+  (let [screen (t/new-screen [600 450])]
+    [screen (t/with-screen screen (t/new-turtle :speed nil))]))
+
+
+(defn rasterized-turtle-on-screen
+  "As 'turtle-on-screen', but the screen is rasterized."
+  []
+  (let [[screen turtle] (turtle-on-screen)]
+    (t/set-rasterized screen true)
+    [screen turtle]))
+
+
+(defn many-turtles-on-screen
+  "Returns [screen turtles] - 300 turtles spread randomly (but reproducibly) over a screen which is not made visible."
+  []
+  (let [screen (t/new-screen [600 450])
+        rnd (java.util.Random. 42)]
+    [screen
+     (t/with-screen screen
+       (vec (repeatedly 300 #(t/new-turtle :speed nil
+                                           :position [(- (.nextInt rnd 600) 300) (- (.nextInt rnd 450) 225)]))))]))
+
+
+(defn- particles-in-scene
+  "Returns {:renderer .. :scene .. :clock ..} - 'count' particles (the same every time) in an 800x600 scene which is not made visible."
+  [mode count]
+  (let [renderer (ParticleRenderer. (ParticleField. (int count) 42) mode)]
+    {:renderer renderer
+     :scene (fx/now (Scene. (fx/group (.node renderer)) 800. 600. Color/BLACK))
+     :clock (long-array 1)}))
+
+
+(defn particles-as-nodes
+  "As Stars - one Rectangle pr particle."
+  [count]
+  (particles-in-scene ParticleRenderer$Mode/NODES count))
+
+
+(defn particles-in-buffer
+  "The particles plotted into a single WritableImage."
+  [count]
+  (particles-in-scene ParticleRenderer$Mode/BUFFER count))
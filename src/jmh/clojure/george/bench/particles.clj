@@ -0,0 +1,28 @@
+;; Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+;; The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns
+  ^{:doc "Benchmarks of the particle engine. See jmh.edn"}
+  george.bench.particles
+  (:require
+    [george.javafx :as fx])
+  (:import
+    [george.example ParticleRenderer]
+    [javafx.scene Scene]))
+
+
+(def ^:private FRAME_NANOS 16666667)
+
+
+(defn frame
+  "Renders one frame, 1/60 second after the previous one: the particles are moved and shown,
+  and the scene is rendered (to an image) - as it would be on the JavaFX pulse."
+  [{:keys [^ParticleRenderer renderer ^Scene scene ^longs clock]}]
+  (let [now (+ (aget clock 0) FRAME_NANOS)]
+    (aset clock 0 now)
+    (fx/now
+      (.render renderer now 800. 600.)
+      (.snapshot scene nil))
+    now))
@@ -0,0 +1,27 @@
+;; Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+;; The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns
+  ^{:doc "Benchmarks of an eval round-trip, in-process and through the socket-server. See jmh.edn"}
+  george.bench.repl
+  (:require
+    [george.application
+     [repl :as repl]
+     [repl-server :as server]]))
+
+
+(defn session
+  "Returns [session port] - a new session, and the port of a (new) socket-server."
+  []
+  (server/serve! 0)
+  [(repl/session-create!) (server/port)])
+
+
+(defn eval-local [[session _]]
+  (repl/eval-do :code "(+ 1 2)" :session session))
+
+
+(defn eval-socket [[session port]]
+  (repl/eval-do :code "(+ 1 2)" :session session :port port))
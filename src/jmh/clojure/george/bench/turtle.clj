@@ -0,0 +1,38 @@
+;; Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+;; The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns
+  ^{:doc "Benchmarks of the turtle. See jmh.edn"}
+  george.bench.turtle
+  (:require
+    [george.javafx :as fx]
+    [george.turtle :as t]
+    [george.turtle.ink :as ink]))
+
+
+(def ^:private MOVES 100)
+
+
+(defn move-to
+  "Moves the turtle (speed nil) around a square, with the pen down, 'MOVES' times.
+  The lines drawn are then removed again (or the ink cleared), so every invocation starts from the same screen."
+  [[screen turtle]]
+  (let [root (:root @screen)
+        children (vec (fx/now (fx/children root)))]
+    (t/with-screen screen
+      (dotimes [i MOVES]
+        (t/move-to turtle (case (int (mod i 4)) 0 [100 0] 1 [100 100] 2 [0 100] [0 0]))))
+    (fx/now (fx/children-set-all root children))
+    (some-> @screen :ink ink/clear)
+    MOVES))
+
+
+(defn overlappers
+  "Finds the overlappers of every turtle - as a game would on every tick."
+  [[screen turtles]]
+  (t/with-screen screen
+    (reduce (fn [^long n turtle] (+ n (count (t/get-overlappers turtle))))
+            0
+            turtles)))
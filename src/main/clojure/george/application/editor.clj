@@ -345,7 +345,8 @@ Load code.  %s-L (Similar to \"Run\", but silent.)" u/SHORTCUT_KEY u/SHORTCUT_KE
                 (if-let [f (:file @file-info_)] (.getName f) "<no file>")
                 focusable
                 nil
-                load?))
+                load?
+                editor))
 
         oncloserequest-fn
         #(on-close editor file-info_ %)
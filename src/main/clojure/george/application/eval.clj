@@ -12,14 +12,17 @@
      [core :refer [parse-exception]]]
     [george.application
      [repl :as repl]
-     [output :refer [oprint oprintln output-showing?]]]
+     [output :refer [oprint oprintln output-showing?]]
+     [profiling :as prof]]
     [george.javafx :as fx]
     [george.util.text :as ut]
-    [george.code.tokenizer :refer [indexing-pushback-stringreader]])
+    [george.code.tokenizer :refer [indexing-pushback-stringreader]]
+    [clojure.tools.nrepl.middleware.interruptible-eval :as ie])
   (:import
     [javafx.scene.layout GridPane Priority]
     [javafx.scene.control Alert$AlertType Alert TextArea]
-    [clojure.lang LineNumberingPushbackReader]))
+    [clojure.lang LineNumberingPushbackReader]
+    [george.code.tokenizer IIndex]))
 
 
 ;(set! *warn-on-reflection* true)
@@ -164,38 +167,88 @@
         (.unread rdr ch)))))
 
 
-(defn- line-column-read [F ^LineNumberingPushbackReader rdr]
-  (consume-leading-whitespace rdr)
-  (let [R (.getLineNumber rdr)
-        C (.getColumnNumber rdr)]
-    (try
-      [R C (read rdr false nil)]
-      (catch Throwable e
-        (process-error e F R C)
-        [R C :bad-read]))))
-
-
-(defn- eval-one [rd ns eval-id R C file-name update-ns-fn silent?]
+;; Forms are read here only to find where they start, and to find read-errors up front.
+;; The code itself is sent as is, and read again by the server, so metadata, reader-conditionals
+;; and namespace-changes between forms are handled just as when loading a file.
+(defn- read-forms
+  "Returns [table end read-error], where 'table' is a vector of [R C read-ns] -
+  the start of each top-level form in 'code', and the nanos it took to read it,
+  'end' is the index just past the last form read, and 'read-error' is [e R C] if reading failed."
+  [^String code ns-str]
+  (let [rdr (indexing-pushback-stringreader code)]
+    (binding [*ns* (or (find-ns (symbol ns-str)) *ns*)]
+      (loop [table [] end 0]
+        (consume-leading-whitespace rdr)
+        (let [R (.getLineNumber ^LineNumberingPushbackReader rdr)
+              C (.getColumnNumber ^LineNumberingPushbackReader rdr)
+              t0 (System/nanoTime)
+              res (try (read {:read-cond :allow :eof ::eof} rdr)
+                       (catch Throwable e e))]
+          (cond
+            (instance? Throwable res) [table end [res R C]]
+            (= res ::eof)             [table end nil]
+            :default                  (recur (conj table [R C (- (System/nanoTime) t0)]) (.getIndex ^IIndex rdr))))))))
+
+
+;; Ids of requests in which a form has failed.
+(defonce ^:private failed-evals (atom #{}))
+
+
+(defn batch-eval
+  "Used by the server (via ':eval' in the request) in stead of 'eval' when evaluating a batch.
+  Once a form in a request has failed, the rest of its forms are skipped."
+  [form]
+  (let [id (:id ie/*msg*)]
+    (if (@failed-evals id)
+      ::skipped
+      (try
+        (if (prof/enabled?)
+          (prof/measure-eval id #(eval form))
+          (eval form))
+        (catch Throwable t
+          (swap! failed-evals conj id)
+          (throw t))))))
+
+
+(defn- eval-batch
+  "Evaluates all the forms in 'code' in one request, where 'table' holds the [R C read-ns] of each form.
+  The responses are processed as they stream in.  A response belongs to the form after the last value received.
+  If profiling, then the costs of the forms are collected when done.
+  Returns true if all went OK."
+  [code table ns eval-id file-name update-ns-fn silent?]
   (repl/def-eval
-    {:code (binding [*print-meta* true] (pr-str rd))
+    {:code code
      :ns ns
      :session (repl/session-ensure! true)
      :id eval-id
-     :line R
-     :column C
-     :file file-name}
-    (loop [responses response-seq
-           current-ns ns]
-      (if-let [response (first responses)]
-        (let [error? (= "eval-error" (-> response :status first))]
-          (if-not error?
-            (let [new-ns (process-response response current-ns update-ns-fn silent?)]
-              (recur (rest responses) new-ns))
-            (do
-              (repl/interrupt-eval (:session response) eval-id)
-              (process-error nil file-name R C)
-              false))) ;; it did not go OK.  :-(
-        true)))) ;; Everything went OK  :-)
+     :line 1
+     :column 1
+     :file file-name
+     :eval (str `batch-eval)}
+    (let [out-chars (volatile! {})] ;; {form-nr chars}
+      (try
+        (loop [responses response-seq
+               current-ns ns
+               form-nr 0]
+          (if-let [response (first responses)]
+            (if (= "eval-error" (-> response :status first))
+              (let [[R C] (get table form-nr (peek table))]
+                ;; The remaining forms are skipped.  Let them finish before forgetting the id,
+                ;; and before asking the session for the exception.
+                (dorun responses)
+                (process-error nil file-name R C)
+                false) ;; it did not go OK.  :-(
+              (do
+                (when-let [o (or (:out response) (:err response))]
+                  (vswap! out-chars update form-nr (fnil + 0) (count o)))
+                (recur (rest responses)
+                       (process-response response current-ns update-ns-fn silent?)
+                       (if (contains? response :value) (inc form-nr) form-nr))))
+            true)) ;; Everything went OK  :-)
+        (finally
+          (swap! failed-evals disj eval-id)
+          ;; Always - profiling may have been turned off during the run.
+          (prof/finish eval-id file-name table @out-chars))))))
 
 
 (defn maybe-ensure-user-ns [ns]
@@ -212,17 +265,20 @@
     (oprintln :system (format "Loading  %s ... " file-name))
     (oprint :in (ut/ensure-newline code)))
   
-  (let [end-res
-        (let [rdr (indexing-pushback-stringreader code)]
-          (loop [[R C rd] (line-column-read file-name rdr)]
-            (if (= rd :bad-read) 
-              :bad-read
-              (if rd
-                (let [ok? (eval-one rd ns-str eval-id R C file-name update-ns-fn load?)]
-                  (if ok?
-                    (recur (line-column-read file-name rdr))
-                    :bad-eval))
-                :ok))))]
+  (let [[table end read-error] (read-forms code ns-str)
+        end-res
+        (cond
+          (not (or (empty? table)
+                   (eval-batch (subs code 0 end) table ns-str eval-id file-name update-ns-fn load?)))
+          :bad-eval
+
+          read-error
+          (let [[e R C] read-error]
+            (process-error e file-name R C)
+            :bad-read)
+
+          :default
+          :ok)]
     (when (and load? (= end-res :ok)) 
       (oprintln :system "Loaded"))))
 
@@ -16,6 +16,7 @@
     [george.application.output :refer [oprintln]]
     [george.util :as u]
     [george.application.eval :as eval]
+    [george.application.profiling :as prof]
     [george.editor.core :as ed]
     [george.application.ui.layout :as layout])
   (:import
@@ -37,7 +38,15 @@
     (catch NullPointerException e nil)))
 
 
-(defn do-eval [code-str ^Button run-button ^Button interrupt-button ns-fn update-ns-fn file-name focusable post-success-fn & [load?]]
+(defn- show-costs
+  "If profiling, shows the costs of the forms evaluated in the run in the editor."
+  [editor eval-id]
+  (when (and editor (prof/enabled?))
+    (let [annotations (prof/annotations (prof/costs eval-id))]
+      (fx/later (ed/set-annotations editor annotations)))))
+
+
+(defn do-eval [code-str ^Button run-button ^Button interrupt-button ns-fn update-ns-fn file-name focusable post-success-fn & [load? editor]]
   (let [
         eval-id (gu/uuid)]
     (if(cs/blank? code-str)
@@ -57,6 +66,7 @@
         (fxj/daemon-thread
           (try
             (eval/read-eval-print-in-ns code-str (ns-fn) eval-id file-name update-ns-fn load?)
+            (show-costs editor eval-id)
             (when post-success-fn (post-success-fn))
             ;; handle possible problems
             (catch SocketException e
@@ -183,7 +193,9 @@ Run code, then do the inverse of checkbox selection. SHIFT-%s-ENTER" u/SHORTCUT_
                     update-ns-fn
                     file-name
                     focusable
-                    #(do-clear-fn inverse-clear)))))
+                    #(do-clear-fn inverse-clear)
+                    false
+                    editor))))
 
         on-closed-fn
         #(.fire interrupt-button)
@@ -13,12 +13,24 @@
     [george.code.highlight :as highlight]
     [george.application
      [repl :as client]
-     [repl-server :as server]]
+     [repl-server :as server]
+     [profiling :as prof]]
     [george.application.ui.layout :as layout]
     [clojure.string :as cs]
+    [clojure.java.io :as cio]
     [george.util.java :as j])
   (:import
+    [george.application Scrollback Versions]
     [java.io StringWriter PrintStream OutputStreamWriter]
+    [java.util.concurrent ConcurrentLinkedQueue]
+    [java.util.concurrent.atomic AtomicBoolean AtomicLong]
+    [java.util.concurrent.locks LockSupport]
+    [javafx.animation AnimationTimer]
+    [javafx.application Platform]
+    [org.fxmisc.richtext.model StyleSpansBuilder]
+    [javafx.geometry Insets]
+    [javafx.scene.control Label TextField]
+    [javafx.scene.layout Background BackgroundFill Border BorderStroke BorderStrokeStyle BorderWidths CornerRadii]
     [org.apache.commons.io.output WriterOutputStream]
     [org.fxmisc.flowless VirtualizedScrollPane]
     [org.fxmisc.richtext StyleClassedTextArea]
@@ -94,40 +106,78 @@
    "unknown"))
 
 
-(def 
+(definterface IGutterTypes
+  (^void addLines [^long code ^long n])
+  (^void dropLines [^long n])
+  (^long typeAt [^long line])
+  (^long lineCount [])
+  (^void clear []))
+
+
+;; A ring of one type-code (byte) pr line, aligned with the paragraphs of the output.
+;; Only used on the FX thread.
+(deftype GutterTypes [^bytes buf
+                      ^:unsynchronized-mutable ^long head
+                      ^:unsynchronized-mutable ^long cnt]
+  IGutterTypes
+  (addLines [_ code n]
+    (let [cap (alength buf)]
+      (dotimes [_ n]
+        (when (= cnt cap)  ;; full - drop the oldest
+          (set! head (rem (inc head) cap))
+          (set! cnt (dec cnt)))
+        (aset buf (rem (+ head cnt) cap) (byte code))
+        (set! cnt (inc cnt)))))
+  (dropLines [_ n]
+    (let [n (min n cnt)]
+      (set! head (rem (+ head n) (alength buf)))
+      (set! cnt (- cnt n))))
+  (typeAt [_ line]
+    (if (< -1 line cnt)
+      (aget buf (rem (+ head line) (alength buf)))
+      -1))
+  (lineCount [_] cnt)
+  (clear [_]
+    (set! head 0)
+    (set! cnt 0)))
+
+
+;; The types which have their own gutter.  The type-code is the index.
+(def ^:private GUTTER_TYPES [:out :err :in :ns :system :system-em :res])
+
+
+(defn- type-code ^long [typ]
+  (.indexOf ^java.util.List GUTTER_TYPES typ))
+
+
+(def
   ^{:private true
-    :doc "Hold one keyword pr line, indicating how the gutter for the line should be styled/marked.
-    It is appended by 'update-gutter-types', and cropped by 'maybe-crop-output'.
-    'curr' is the latest opened line. It may get updated until it is moved to prev.
-    'prevs' holds one keyword pr all previous lines."}
+    :doc "Holds the type-code of each line, indicating how the gutter for the line should be styled/marked.
+    It is appended by 'update-gutter-types', cropped by 'maybe-crop-output', and refilled by 'load-window'.
+    The last line (which may still be printed to) has no entry."}
   ;; We are assuming there is only one Output-window, so it is OK to have this as a global.
-  gutter-types (atom {:prevs [] :curr nil}))
+  ^GutterTypes gutter-types (GutterTypes. (byte-array (* 4 LINE_COUNT_CROP_AT)) 0 0))
 
 
-(defn- maybe-crop-output [outputarea]
-  ;; Count number of lines
-  (let [cnt (count (.getParagraphs outputarea))]
-    (when (> cnt LINE_COUNT_CROP_AT)
-      ;; Get the number of chars in each paragraph with 'map', and sum them up with 'reduce'
-      (let [len (reduce +
-                        (map #(inc (.getParagraphLength outputarea %))
-                             (range (- cnt LINE_COUNT_LIMIT))))]
-        (.replaceText outputarea 0  len "")
-        (let [cnt1 (count (.getParagraphs outputarea))
-              vlen (count (:prevs @gutter-types))]
-          (swap! gutter-types 
-                 #(assoc % :prevs (subvec (:prevs %) (- vlen cnt1 -1)))))))))
+(defn- maybe-crop-output [^StyleClassedTextArea outputarea]
+  (let [cnt (.size (.getParagraphs outputarea))]
+    (when (> cnt ^long LINE_COUNT_CROP_AT)
+      ;; All the cropped paragraphs are complete lines, with one gutter-type each.
+      (let [k (- cnt ^long LINE_COUNT_LIMIT)]
+        (.deleteText outputarea 0 (.getAbsolutePosition outputarea (int k) 0))
+        (.dropLines gutter-types k)))))
+
+
+(defn- newline-count ^long [^CharSequence s]
+  (let [len (.length s)]
+    (loop [i 0 n 0]
+      (if (< i len)
+        (recur (inc i) (if (gt/newline-char? (.charAt s i)) (inc n) n))
+        n))))
 
 
 (defn- update-gutter-types [s typ]
-  (swap! gutter-types assoc :curr typ)
-  (loop [cs (seq s)]
-    (when-let [c (first cs)]
-      (when (gt/newline-char? c)
-        (swap! gutter-types (fn [{:keys [prevs curr]}] 
-                              {:prevs (conj prevs curr) 
-                               :curr curr}))) 
-      (recur (next cs)))))
+  (.addLines gutter-types (type-code typ) (newline-count s)))
 
 
 (defn- marking-for-typ [typ]
@@ -149,45 +199,391 @@
         :system-em "#999"} typ "#2b292e"))
 
 
-(def gutter-style-f "
--fx-label-padding: 0 8;
--fx-text-fill: %s;
--fx-background-color: %s;
--fx-border-color: %s;
--fx-border-width: 0 1 0 0;
--fx-border-insets: 0 8 0 0;
--fx-background-insets: 0 8 0 0;")
+(defn- new-gutter-prototype
+  "Returns a Label styled for the gutter of lines of type 'typ'.
+  The styling is done with objects - not CSS - so they can be shared by all gutters of that type."
+  [typ]
+  (let [col1 (Color/web (colors-for-typ typ))
+        col2 (Color/web (if (= typ :err) "pink" "whitesmoke"))
+        col3 (if (= typ :err) col1 (Color/web "gainsboro"))]
+    (doto (fx/new-label (marking-for-typ typ)
+                        :font "Source Code Pro"
+                        :size 16)
+      (.setTextFill col1)
+      (.setLabelPadding (Insets. 0 8 0 8))
+      (.setBackground
+        (Background. (into-array BackgroundFill [(BackgroundFill. col2 CornerRadii/EMPTY (Insets. 0 8 0 0))])))
+      (.setBorder
+        (Border. (into-array BorderStroke [(BorderStroke. col3 BorderStrokeStyle/SOLID CornerRadii/EMPTY
+                                                          (BorderWidths. 0 1 0 0) (Insets. 0 8 0 0))]))))))
+
+
+;; One prototype pr type-code - offset by 1, as lines without a type have code -1.
+(def ^:private gutter-prototypes
+  (delay (mapv new-gutter-prototype (cons nil GUTTER_TYPES))))
 
 
 (defn gutter-factory []
-  (j/intfunction #(let [typ (get (:prevs @gutter-types) %)
-                        col1 (colors-for-typ typ) 
-                        col2 (if (= typ :err) "pink" "whitesmoke")
-                        col3 (if (= typ :err) col1 "gainsboro")
-                        style (format gutter-style-f col1 col2 col3)]    
-                    (doto (fx/new-label (marking-for-typ typ)
-                                        :color Color/WHITE
-                                        :font "Source Code Pro"
-                                        :size 16
-                                        :style style)))))
+  (j/intfunction #(let [^Label proto (nth @gutter-prototypes (inc (.typeAt gutter-types (long %))))]
+                    (doto (Label. (.getText proto))
+                      (.setFont (.getFont proto))
+                      (.setTextFill (.getTextFill proto))
+                      (.setLabelPadding (.getLabelPadding proto))
+                      (.setBackground (.getBackground proto))
+                      (.setBorder (.getBorder proto))))))
+
+
+;;;; Scrollback
+;;
+;; Every completed line is also appended - with its type-code - to a log on disk (see george.application.Scrollback).
+;; The output-area then only holds a window onto the log.
+;; While "live", the window is the end of the log plus the line still being printed to, and new output is appended to it.
+;; Scrolling to the top pages older lines in, and the window stops being live - so new output won't move it.
+;; Scrolling down to the end of the log makes it live again.
+;; The log is capped (see Scrollback/MAX_SEGMENTS), so the oldest lines may be gone - i.e. lines start at '.firstLine'.
+;;
+;; If the log can't be created (or fails), the output simply crops as before.
+
+
+(def ^:private PAGE_LINES (quot ^long LINE_COUNT_LIMIT 2))
+(def ^:private MAX_WINDOW_LINES (* 2 ^long LINE_COUNT_LIMIT))
+
+;; Paging is not triggered by the scrolling we do ourselves right after loading a window.
+(def ^:private SETTLE_MS 100)
+
+
+(defonce ^:private scrollback
+  (delay (Scrollback/create (cio/file Versions/APPDATA_DIR "output"))))
+
+
+(defn- scrollback-log ^Scrollback []
+  (let [^Scrollback log @scrollback]
+    (when (and log (.isOpen log))
+      log)))
+
+
+;; The line being printed to - which is not in the log yet - and its type.  Only used on the FX thread.
+(defonce ^:private ^StringBuilder open-line (StringBuilder.))
+(defonce ^:private open-type (atom :out))
+
+;; ':from' is the first line of the log in the window.  It is only kept while not live.
+(defonce ^:private window (atom {:from 0 :live? true :loaded-at 0}))
+
+
+(defn- log-runs
+  "Appends the lines completed by 'runs' to the log, and keeps the rest in 'open-line'."
+  [runs]
+  (let [log (scrollback-log)]
+    (doseq [[typ ^StringBuilder sb] runs]
+      (let [len (.length sb)]
+        (loop [i 0 start 0]
+          (cond
+            (= i len)
+            (when (< start len)
+              (.append open-line sb (int start) (int len))
+              (reset! open-type typ))
+
+            (gt/newline-char? (.charAt sb i))
+            (do (.append open-line sb (int start) (int i))
+                (when log (.appendLine log (type-code typ) open-line))
+                (.setLength open-line 0)
+                (recur (inc i) (inc i)))
+
+            :default
+            (recur (inc i) start)))))))
+
+
+(defn- window-range
+  "Returns [from end] - the lines of the log in the window.  The open line is not counted."
+  [^StyleClassedTextArea oa ^Scrollback log]
+  (let [{:keys [from live?]} @window
+        paras (.size (.getParagraphs oa))]
+    (if live?
+      (let [end (.lineCount log)]
+        [(max (.firstLine log) (- end (dec paras))) end])
+      [from (+ ^long from paras)])))
+
+
+(defn- load-window
+  "Replaces the content of the output-area with the lines 'from' til 'end' of the log.
+  If 'live?', and 'end' is the end of the log, then the window is live, and includes the open line."
+  [^StyleClassedTextArea oa ^Scrollback log ^long from ^long end live?]
+  (let [live? (boolean (and live? (= end (.lineCount log))))
+        ;; The oldest lines may have been dropped from the log.
+        from (max from (.firstLine log))
+        text (StringBuilder.)
+        spans (StyleSpansBuilder.)]
+    (.clear gutter-types)
+    (loop [i from]
+      (when (< i end)
+        (let [code (.type log i)
+              s (.line log i)
+              nl? (or live? (< (inc i) end))
+              len (+ (.length s) (if nl? 1 0))]
+          (.append text s)
+          (when nl? (.append text \newline))
+          (.addLines gutter-types code 1)
+          (when (pos? len)
+            (.add spans #{(output-style (get GUTTER_TYPES code))} (int len)))
+          (recur (inc i)))))
+    (when (and live? (pos? (.length open-line)))
+      (.append text open-line)
+      (.add spans #{(output-style @open-type)} (.length open-line)))
+    (reset! window {:from from :live? live? :loaded-at (System/currentTimeMillis)})
+    (.replaceText oa (str text))
+    (when (pos? (.length text))
+      (.setStyleSpans oa 0 (.create spans)))))
+
+
+(defn- page-older [^StyleClassedTextArea oa ^Scrollback log]
+  (let [[^long start ^long end] (window-range oa log)]
+    (when (> start (.firstLine log))
+      (let [from (max (.firstLine log) (- start ^long PAGE_LINES))]
+        (load-window oa log from (min end (+ from ^long MAX_WINDOW_LINES)) false)
+        (.showParagraphAtTop oa (int (- start from)))))))
+
+
+(defn- page-newer [^StyleClassedTextArea oa ^Scrollback log]
+  (when-not (:live? @window)
+    (let [[^long start ^long end] (window-range oa log)
+          end1 (min (.lineCount log) (+ end ^long PAGE_LINES))
+          from (max start (- end1 ^long MAX_WINDOW_LINES))]
+      (load-window oa log from end1 true)
+      (.showParagraphAtBottom oa (int (max 0 (- end 1 from)))))))
+
+
+(defn- maybe-page
+  "Pages in older or newer lines if the output-area is scrolled to the top or bottom."
+  [^StyleClassedTextArea oa]
+  (when-let [log (scrollback-log)]
+    (when (> (System/currentTimeMillis) (+ ^long (:loaded-at @window) ^long SETTLE_MS))
+      (let [y (double (.getValue (.estimatedScrollYProperty oa)))
+            total (.getValue (.totalHeightEstimateProperty oa))]
+        (cond
+          (<= y 0.5)
+          (page-older oa log)
+
+          (and total (>= (+ y (.getHeight oa)) (- (double total) 0.5)))
+          (page-newer oa log))))))
+
+
+(defn- show-line
+  "Loads a window around 'line' if it isn't in the window already, and selects the first occurrence of 'needle' in it."
+  [^StyleClassedTextArea oa ^Scrollback log ^long line ^String needle]
+  (let [[^long start ^long end] (window-range oa log)]
+    (when-not (<= start line (dec end))
+      (let [from (max (.firstLine log) (- line ^long PAGE_LINES))]
+        (load-window oa log from (min (.lineCount log) (+ from ^long MAX_WINDOW_LINES)) false)))
+    (let [para (- line ^long (first (window-range oa log)))
+          col (.indexOf (cs/lower-case (.getText oa (int para))) (cs/lower-case needle))
+          start (.getAbsolutePosition oa (int para) (int (max 0 col)))]
+      (swap! window assoc :loaded-at (System/currentTimeMillis))
+      (.selectRange oa start (+ start (.length needle)))
+      (.showParagraphAtTop oa (int (max 0 (- para 3)))))))
+
+
+;; [needle line] of the previous match, so searching again continues from there.
+(defonce ^:private last-match (atom nil))
+
+
+(defn- search-output
+  "Searches the whole log backwards (from the previous match, if any) for the text in 'field'.
+  The search runs off the FX thread, and wraps around once."
+  [^StyleClassedTextArea oa ^TextField field]
+  (let [needle (.getText field)
+        log (scrollback-log)]
+    (when (and log (not (cs/blank? needle)))
+      (let [[prev-needle ^long prev-line] @last-match
+            end (.lineCount log)
+            from (if (= prev-needle needle) (dec prev-line) (dec end))]
+        (future
+          (let [line (try
+                       (let [line (.search log needle from false true)]
+                         (if (and (neg? line) (< from (dec end)))
+                           (.search log needle (dec end) false true)
+                           line))
+                       ;; The log was cleared under us.
+                       (catch IndexOutOfBoundsException _ -1))]
+            (fx/later
+              (if (neg? line)
+                (do (reset! last-match nil)
+                    (.setStyle field "-fx-text-fill: firebrick;"))
+                (do (reset! last-match [needle line])
+                    (.setStyle field "")
+                    (show-line oa log line needle))))))))))
+
+
+(defn- clear-output [^StyleClassedTextArea oa]
+  (ca/set-text oa "")
+  (.clear gutter-types)
+  (.setLength open-line 0)
+  (when-let [log (scrollback-log)]
+    (.clear log))
+  (reset! last-match nil)
+  (reset! window {:from 0 :live? true :loaded-at 0})
+  (.setParagraphGraphicFactory oa (gutter-factory)))
+
+
+;;;; Output pipeline
+;;
+;; Printing only appends a chunk to a (lock-free) queue.
+;; Once pr JavaFX pulse, an AnimationTimer drains the queue: Consecutive chunks of the same type are merged,
+;; and all of it is inserted and styled in one go, and scrolled to once.
+;; The timer only runs while there is output waiting.
+;;
+;; If output is produced faster than it can be shown, then printing threads are held back for a little while,
+;; after which the output is dropped - and a line "... N lines elided ..." is shown in stead.
+
+
+;; Max chars waiting to be shown.
+(def ^:private MAX_PENDING_CHARS (* 1024 1024))
+
+;; Max chars inserted in one pulse.  The rest waits for the next pulse.
+(def ^:private MAX_CHARS_PER_PULSE (* 256 1024))
+
+;; How long a printing thread is held back before its output is dropped.
+(def ^:private BACKPRESSURE_MS 200)
+
+
+(defonce ^:private ^ConcurrentLinkedQueue pending-output (ConcurrentLinkedQueue.))
+(defonce ^:private ^AtomicLong pending-chars (AtomicLong.))
+(defonce ^:private ^AtomicLong elided-lines (AtomicLong.))
+(defonce ^:private ^AtomicBoolean drain-running (AtomicBoolean.))
+
+
+(defn- poll-runs
+  "Polls chunks off the queue, and returns them as a vector of [typ StringBuilder] - with same-type chunks merged."
+  []
+  (loop [runs [] chars 0]
+    (if-let [[typ ^String s] (when (< chars ^long MAX_CHARS_PER_PULSE) (.poll pending-output))]
+      (let [len (.length s)
+            [prev-typ ^StringBuilder sb] (peek runs)]
+        (.addAndGet pending-chars (- len))
+        (if (= prev-typ typ)
+          (do (.append sb s)
+              (recur runs (+ chars len)))
+          (recur (conj runs [typ (StringBuilder. s)]) (+ chars len))))
+      runs)))
+
+
+(defn- trim-runs
+  "Returns [runs skipped] - with the runs trimmed to the last LINE_COUNT_LIMIT lines, as the rest would be cropped anyway.
+  'skipped' is the number of lines trimmed away."
+  [runs]
+  (let [total (reduce + (map (comp newline-count second) runs))
+        skip (- ^long total ^long LINE_COUNT_LIMIT)]
+    (if-not (pos? skip)
+      [runs 0]
+      (loop [[[typ ^StringBuilder sb :as run] & more] runs
+             skip skip]
+        (let [n (newline-count sb)]
+          (if (< skip n)
+            ;; Cut this run after its 'skip'-th newline.
+            (let [cut (loop [i 0 k skip]
+                        (if (gt/newline-char? (.charAt sb i))
+                          (if (= k 1) (inc i) (recur (inc i) (dec k)))
+                          (recur (inc i) k)))]
+              [(cons [typ (StringBuilder. (.substring sb (int cut)))] more) (- total ^long LINE_COUNT_LIMIT)])
+            (recur more (- skip n))))))))
+
+
+(defn- elided-marker [n open-line?]
+  [:system-em (StringBuilder. (str (when open-line? "\n") "... " n " lines elided ...\n"))])
+
+
+(defn- append-runs [^StyleClassedTextArea oa runs]
+  (let [elided (.getAndSet elided-lines 0)
+        runs (if (pos? elided)
+               (cons (elided-marker elided (pos? (.length open-line))) runs)
+               runs)]
+    (log-runs runs)
+    (when (:live? @window)
+      (let [[runs ^long skipped] (trim-runs runs)
+            log (scrollback-log)]
+        (if (and (pos? skipped) log)
+          ;; The whole window would be cropped anyway, so just load the end of the log.
+          (let [end (.lineCount log)]
+            (load-window oa log (max 0 (- end ^long LINE_COUNT_LIMIT)) end true)
+            (.showParagraphAtBottom oa (dec (.size (.getParagraphs oa)))))
+          (let [runs
+                (if (pos? skipped)
+                  (let [len (.getLength oa)]
+                    (cons (elided-marker skipped (and (pos? len) (not= (.getText oa (dec len) len) "\n")))
+                          runs))
+                  runs)
+                text (StringBuilder.)
+                spans (StyleSpansBuilder.)]
+            (doseq [[typ ^StringBuilder sb] runs]
+              (when (pos? (.length sb))
+                (update-gutter-types sb typ)
+                (.append text sb)
+                (.add spans #{(output-style typ)} (.length sb))))
+            (when (pos? (.length text))
+              (maybe-crop-output oa)
+              (let [start (.getLength oa)]
+                (doto oa
+                  (.insertText start (str text)) ;; append
+                  (.setStyleSpans start (.create spans)) ;; style
+                  (.showParagraphAtBottom (-> oa .getParagraphs count))))))))))) ;; scroll
+
+
+(declare drain-timer)
+
+
+(defn- drain-output
+  "Called once pr pulse (on the FX thread) while output is waiting."
+  []
+  (if-let [oa (singleton/get OTA_KW)]
+    (let [runs (poll-runs)]
+      (when (or (seq runs) (pos? (.get elided-lines)))
+        (append-runs oa runs)))
+    ;; The output has been closed.
+    (do (.clear pending-output)
+        (.set pending-chars 0)
+        (.set elided-lines 0)))
+  (when (and (.isEmpty pending-output) (zero? (.get elided-lines)))
+    (.stop ^AnimationTimer @drain-timer)
+    (.set drain-running false)
+    ;; In case more was queued in the mean time.
+    (when (and (not (.isEmpty pending-output)) (.compareAndSet drain-running false true))
+      (.start ^AnimationTimer @drain-timer))))
+
+
+(defonce ^:private drain-timer
+  (delay
+    (proxy [AnimationTimer] []
+      (handle [_] (drain-output)))))
+
+
+(defn- ensure-draining []
+  (when (.compareAndSet drain-running false true)
+    (fx/later (.start ^AnimationTimer @drain-timer))))
+
+
+(defn- room-for-output?
+  "Returns true if there is room in the queue - after holding back the printing thread for a while, if necessary.
+  The FX thread is never held back, as it is the one draining the queue."
+  []
+  (or (< (.get pending-chars) ^long MAX_PENDING_CHARS)
+      (and (not (Platform/isFxApplicationThread))
+           (let [deadline (+ (System/currentTimeMillis) ^long BACKPRESSURE_MS)]
+             (loop []
+               (LockSupport/parkNanos 1000000)
+               (cond
+                 (< (.get pending-chars) ^long MAX_PENDING_CHARS) true
+                 (< (System/currentTimeMillis) deadline) (recur)
+                 :default false))))))
 
 
 (defn- print-output* [typ obj]  ;; type is one of :in :ns :res :out :err :system
-  (if-let [^StyleClassedTextArea oa (singleton/get OTA_KW)]
-    (fx/later
-      (maybe-crop-output oa)
-      ;(try)
-      (let [s (str obj)]
-        (update-gutter-types s typ)
-        (when-not (empty? s)
-          (let [start (.getLength oa)]
-            (doto oa
-              (.insertText start s) ;; append
-              (.showParagraphAtBottom (-> oa .getParagraphs count)) ;; scroll
-              (highlight/set-style-on-range
-                [start (.getLength oa)]
-                (output-style typ)))))))) ;; style
-      ;(catch Exception e (unwrap-outs) (.printStackTrace e))))
+  (if (singleton/get OTA_KW)
+    (let [s (str obj)]
+      (when-not (empty? s)
+        (if (room-for-output?)
+          (do (.addAndGet pending-chars (count s))
+              (.offer pending-output [typ s]))
+          (.addAndGet elided-lines (max 1 (newline-count s))))
+        (ensure-draining))))
 
   ;; else:  make sure these always also appear in stout
   (when (#{:in :res :system :system-em} typ)
@@ -229,56 +625,46 @@
 
 (defn ping-sessions []
   (oprintln :system "Ping sessions ...")
-  (if-not (server/serving?)
-    (oprintln :system-em "  No server started!")
-    (let [current-ses (client/session)
-          sessions (client/sessions)]
-      (doseq [ses sessions]
-        (let [ok? (client/ping ses)]
-          (oprint :system "  " ses "")
-          (if ok? (oprint :system-em "OK")
-                  (oprint :err "Fail!"))
-          (oprintln  :system "" (when (= ses current-ses) " [default]")))))))
+  (let [current-ses (client/session)
+        sessions (client/sessions)]
+    (doseq [ses sessions]
+      (let [ok? (client/ping ses)]
+        (oprint :system "  " ses "")
+        (if ok? (oprint :system-em "OK")
+                (oprint :err "Fail!"))
+        (oprintln  :system "" (when (= ses current-ses) " [default]"))))))
 
 
 (defn interrupt-all-sessions [& [silent?]]
   (when-not silent? 
     (oprintln :system "Interrupt all sessions ..."))
 
-  (if-not (server/serving?)
-    (when-not silent? 
-      (oprintln :system-em "No server started!"))
-
-    (doseq [ses (client/sessions)]
-      (when (client/interrupt ses)
-        (oprintln :system-em ses "Interrupted!")
-        (when-not silent? 
-          (oprintln :system ses "Idle"))))))
+  (doseq [ses (client/sessions)]
+    (when (client/interrupt ses)
+      (oprintln :system-em ses "Interrupted!")
+      (when-not silent? 
+        (oprintln :system ses "Idle")))))
 
 
 (defn recreate-session []
-  (if-not (server/serving?)
-    (do
-      (server/serve! 0)
-      (oprintln :system "New server on port" (server/port))
-      (let [id (client/session-create!)]
-        (oprintln :system "New default session" id)))
-    (do
-      (interrupt-all-sessions)
-      (when (client/session?)
-        ;(client/interrupt)
-        ;(Thread/sleep 300)
-        (client/session-close!))
-      (let [id (client/session-create!)]
-        (oprintln :system "New default session" id)))))
+  (interrupt-all-sessions)
+  (when (client/session?)
+    (client/session-close!))
+  (let [id (client/session-create!)]
+    (oprintln :system "New default session" id)))
 
 
+;; George evaluates in-process.  The socket-server is only for external tools (editors, etc.),
+;; and shares its sessions with George.
 (defn restart-server []
-  (interrupt-all-sessions)
   (server/stop!)
   (server/serve! 0)
-  (oprintln :system "New server on port" (server/port))
-  (recreate-session))
+  (oprintln :system "New server on port" (server/port)))
+
+
+(defn stop-server []
+  (server/stop!)
+  (oprintln :system "Server stopped"))
 
 
 (defn output-root []
@@ -291,15 +677,25 @@
         clear-button
         (fx/button
           "Clear"
-          :onaction #(do (ca/set-text codearea "") 
-                         (swap! gutter-types assoc :prevs [] :curr nil)
-                         (.setParagraphGraphicFactory codearea (gutter-factory)))
+          :onaction #(clear-output codearea)
           :tooltip "Clear output")
 
+        profile-checkbox
+        (doto (fx/checkbox "Profile"
+                           :tooltip "Record the cost of each top-level form in a run,\nand show it next to the code.")
+          (.setSelected (prof/enabled?))
+          (.setFocusTraversable false))
+
+        search-field
+        (doto ^TextField (fx/textfield :prompt "Search output")
+          (.setPrefColumnCount 14))
+
         top
         (layout/menubar true
           (doto clear-button (.setFocusTraversable false))
+          profile-checkbox
           (fx/region :hgrow :always)
+          search-field
           (layout/menu
             [:button "nREPL" :bottom
              [
@@ -308,12 +704,17 @@
               [:separator]
               [:item "Create new default session" recreate-session]
               [:separator]
-              [:item "Start new server" restart-server]]]))
+              [:item "Start new server (for external tools)" restart-server]
+              [:item "Stop server" stop-server]]]))
 
         root
         (fx/borderpane
            :top top
            :center (VirtualizedScrollPane. codearea))]
+    (fx/set-onaction search-field #(search-output codearea search-field))
+    (fx/set-onaction profile-checkbox #(prof/set-enabled (.isSelected profile-checkbox)))
+    (.addListener (.estimatedScrollYProperty codearea)
+                  (fx/changelistener [_ _ _ _] (maybe-page codearea)))
     (.fire clear-button)
     (setup-output codearea)
     [root clear-button]))
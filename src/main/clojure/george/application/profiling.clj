@@ -0,0 +1,182 @@
+;; Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+;; The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns
+  ^{:doc "Opt-in costs of each top-level form evaluated in a run:
+  read time, eval (wall) time, allocated bytes and output volume.
+  The costs are kept in a bounded ring, and are also emitted as JFR events when the JVM has JFR (Java 11+)."}
+  george.application.profiling
+  (:import
+    [java.lang.management ManagementFactory]
+    [clojure.lang PersistentQueue Reflector]))
+
+
+;(set! *warn-on-reflection* true)
+;(set! *unchecked-math* :warn-on-boxed)
+;(set! *unchecked-math* true)
+
+
+(defonce ^:private enabled_ (atom false))
+
+
+(defn enabled? []
+  @enabled_)
+
+
+(defn set-enabled [enabled?]
+  (reset! enabled_ (boolean enabled?)))
+
+
+;; The number of form-costs kept.
+(def RING_SIZE 4096)
+
+
+(defonce ^:private ring_ (atom PersistentQueue/EMPTY))
+
+
+;;;; Measuring - done in the evaluating thread
+
+
+(def ^:private thread-mx
+  (let [mx (ManagementFactory/getThreadMXBean)]
+    (when (and (instance? com.sun.management.ThreadMXBean mx)
+               (.isThreadAllocatedMemorySupported ^com.sun.management.ThreadMXBean mx))
+      (.setThreadAllocatedMemoryEnabled ^com.sun.management.ThreadMXBean mx true)
+      mx)))
+
+
+(defn- allocated-bytes
+  "Returns the bytes allocated by the current thread so far, or -1 if the JVM can't tell."
+  ^long []
+  (if-let [^com.sun.management.ThreadMXBean mx thread-mx]
+    (.getThreadAllocatedBytes mx (.getId (Thread/currentThread)))
+    -1))
+
+
+;; [wall-ns alloc-bytes] of each form evaluated, pr request-id.
+(defonce ^:private eval-costs_ (atom {}))
+
+
+(defn measure-eval
+  "Calls 'f' - which evaluates a form - and adds its wall time and allocated bytes to the costs of request 'id'."
+  [id f]
+  (let [a0 (allocated-bytes)
+        t0 (System/nanoTime)]
+    (try
+      (f)
+      (finally
+        (let [wall (- (System/nanoTime) t0)
+              alloc (if (neg? a0) -1 (- (allocated-bytes) a0))]
+          (swap! eval-costs_ update id (fnil conj []) [wall alloc]))))))
+
+
+;;;; JFR
+;;
+;; George is compiled for Java 8, which has no jdk.jfr.  So the event-type is created at runtime,
+;; via jdk.jfr.EventFactory (by reflection), if it is there.
+
+
+(defn- new-instance [class-name & args]
+  (Reflector/invokeConstructor (Class/forName class-name) (object-array args)))
+
+
+(defn- annotation [class-name value]
+  (new-instance "jdk.jfr.AnnotationElement" (Class/forName class-name) value))
+
+
+;; [type name & [annotation-class value]] of each field of the event - in the order of 'jfr-values'.
+(def ^:private JFR_FIELDS
+  [[String "file"]
+   [Long/TYPE "form"]
+   [Long/TYPE "line"]
+   [Long/TYPE "readTime" "jdk.jfr.Timespan" "NANOSECONDS"]
+   [Long/TYPE "evalTime" "jdk.jfr.Timespan" "NANOSECONDS"]
+   [Long/TYPE "allocated" "jdk.jfr.DataAmount" "BYTES"]
+   [Long/TYPE "outputChars"]])
+
+
+(defn- jfr-values [{:keys [file form line read-ns eval-ns alloc-bytes out-chars]}]
+  (into [(str file)] (map long) [form line read-ns eval-ns alloc-bytes out-chars]))
+
+
+(defonce ^:private jfr-factory
+  (delay
+    (try
+      (Reflector/invokeStaticMethod
+        (Class/forName "jdk.jfr.EventFactory")
+        "create"
+        (object-array
+          [[(annotation "jdk.jfr.Name" "george.EvalForm")
+            (annotation "jdk.jfr.Label" "Eval Form")
+            (annotation "jdk.jfr.Category" (into-array String ["George"]))]
+           (mapv (fn [[typ nam a-class a-value]]
+                   (new-instance "jdk.jfr.ValueDescriptor" typ nam
+                                 (if a-class [(annotation a-class a-value)] [])))
+                 JFR_FIELDS)]))
+      (catch ClassNotFoundException _ nil))))
+
+
+(defn- emit-jfr [cost]
+  (when-let [factory @jfr-factory]
+    (let [event (.newEvent factory)]
+      (doseq [[i v] (map-indexed vector (jfr-values cost))]
+        (.set event (int i) v))
+      (.commit event))))
+
+
+;;;; Collecting - done in the evaluating client
+
+
+(defn finish
+  "Forgets the eval-costs measured for request 'id' - call it when done with every request, whether profiled or not.
+  If profiling is enabled, then combines them with the read-time and output-volume of each form,
+  adds them to the ring, and emits a JFR event for each.
+  'table' holds [row col read-ns] of each form, and 'out-chars' maps form-nr to chars printed.
+  Returns a vector of the form-costs, or nil if profiling is not enabled."
+  [id file-name table out-chars]
+  (let [evals (get (first (swap-vals! eval-costs_ dissoc id)) id)]
+    (when (enabled?)
+      (let [costs
+            (mapv (fn [i [R C read-ns] [wall alloc]]
+                    {:id id :file file-name :form i :line R :column C
+                     :read-ns (or read-ns 0) :eval-ns wall :alloc-bytes alloc
+                     :out-chars (get out-chars i 0)})
+                  (range) table evals)]
+        (swap! ring_ (fn [q]
+                       (loop [q (into q costs)]
+                         (if (> (count q) ^long RING_SIZE) (recur (pop q)) q))))
+        (run! emit-jfr costs)
+        costs))))
+
+
+(defn costs
+  "Returns all the form-costs in the ring (oldest first) - or only those of request 'id'."
+  ([]
+   (vec @ring_))
+  ([id]
+   (filterv #(= (:id %) id) @ring_)))
+
+
+(defn clear []
+  (reset! ring_ PersistentQueue/EMPTY))
+
+
+(defn- format-cost [{:keys [eval-ns alloc-bytes out-chars]}]
+  (let [ms (/ eval-ns 1e6)]
+    (cond-> (format (if (< ms 10) "%.2f ms" "%.0f ms") ms)
+      (not (neg? alloc-bytes)) (str (format "  %.1f MB" (/ alloc-bytes 1048576.0)))
+      (pos? out-chars) (str (format "  %d out" out-chars)))))
+
+
+(defn annotations
+  "Returns {row text} for the form-costs - for 'george.editor.core/set-annotations'.
+  Forms starting on the same row are summed."
+  [costs]
+  (->> costs
+       (group-by #(dec (:line %)))
+       (into {} (map (fn [[row cs]]
+                       [row (format-cost {:eval-ns (reduce + (map :eval-ns cs))
+                                          :alloc-bytes (reduce + (map :alloc-bytes cs))
+                                          :out-chars (reduce + (map :out-chars cs))})])))))
@@ -4,8 +4,8 @@
 ;; You must not remove this notice, or any other, from this software.
 
 (ns george.application.repl
-  "This module contains functions for starting and stopping an embedded (nREPL)  server.
-  Also utilities for evaluation .
+  "This module contains functions for nREPL sessions and evaluation.
+  Messages go to the in-process handler in george.application.repl-server.
   (More documentation needed)"
   (:require
     [clojure
@@ -55,9 +55,9 @@
 
 
 (defn session-ensure!
-  "Ensures that a (default) session is set, and that there is a server running if optional parameter is truth-y."
+  "Ensures that a (default) session is set.
+  Evaluation is done in-process, so 'serve-ensure?' is ignored.  It is kept for compatibility."
   [& [serve-ensure?]]
-  (when serve-ensure? (repl-server/serve-ensure! 0))
   (if-let [ses (session)]
     ses
     (session-create!)))
@@ -66,31 +66,29 @@
 ;;;; evaluation
 
 
+(defn request
+  "Sends 'ops' as a message (default op is ':eval'), and returns the result of calling 'f' on the seq of responses.
+  The message goes to the in-process handler - unless a ':port' is given, in which case it goes through a socket."
+  [{:keys [timeout port] :as ops} f]
+  (let [m (into {:op :eval} (filter (comp some? val) (dissoc ops :timeout :port :serve-ensure?)))
+        ;; MAX_VALUE default to prevent timeout if code does `Thread/sleep`
+        timeout (or timeout Integer/MAX_VALUE)]
+    (if port
+      (with-open [conn (nrepl/connect :port port)]
+        (f (nrepl/message (nrepl/client conn timeout) m)))
+      (f (repl-server/message m timeout)))))
+
+
 (defn eval-do
-  ;; TODO: documentation needed
-  [& {:keys [timeout port serve-ensure? session] :as ops}]
-  (when serve-ensure? (repl-server/serve-ensure! 0))
-  (with-open [conn (nrepl/connect :port (or port (repl-server/port)))]
-    (let [m (into {:op :eval} (filter (comp some? val) ops))]
-      ;; MAX_VALUE default to prevent timeout if code does `Thread/sleep`
-      (-> (nrepl/client conn (or timeout Integer/MAX_VALUE))
-          (nrepl/message m)
-          doall))))
+  "Sends a message, and returns all the responses."
+  [& {:as ops}]
+  (request ops doall))
 
 
 (defmacro def-eval
-  ;; TODO: documentation needed
+  "Sends 'ops' as a message, and evaluates 'body' with the (lazy) seq of responses bound to 'response-seq'."
   [ops & body]
-  `(let [{:keys [timeout# port# serve-ensure?#] :as ops#} ~ops]
-     (when serve-ensure?# (repl-server/serve-ensure! 0))
-     (with-open [conn# (nrepl/connect :port (or port# (repl-server/port)))]
-       (let [m#
-             (into {:op :eval} (filter (comp some? val) ops#))
-             ~'response-seq
-             ;; MAX_VALUE default to prevent timeout if code does `Thread/sleep`
-             (-> (nrepl/client conn# (or timeout# Integer/MAX_VALUE))
-                 (nrepl/message m#))]
-         ~@body))))
+  `(request ~ops (fn [~'response-seq] ~@body)))
 
 
 (defn interrupted?
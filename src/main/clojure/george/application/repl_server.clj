@@ -4,16 +4,83 @@
 ;; You must not remove this notice, or any other, from this software.
 
 (ns george.application.repl-server
-  "This module contains functions for starting and stopping an embedded (nREPL)  server.
-  Also utilities for evaluation, handling stacktraces, and more.
+  "This module contains the in-process nREPL transport,
+  and functions for starting and stopping an embedded (nREPL) socket-server - for use by external tools.
   (more documentation needed)
 "
   (:require
     [clojure
      [pprint :refer [pprint]]]
     [clojure.tools.nrepl :as nrepl]
-    [clojure.tools.nrepl.server :refer [start-server stop-server]]
-    [george.util :refer [pprint-str]]))
+    [clojure.tools.nrepl.server :refer [start-server stop-server default-handler]]
+    [clojure.tools.nrepl.transport :as t]
+    [george.util :refer [pprint-str]])
+  (:import
+    [java.util UUID]
+    [java.util.concurrent LinkedBlockingQueue TimeUnit]))
+
+
+;;;; In-process transport
+;;
+;; The evaluator lives in this JVM, so George talks to the nREPL handler directly:
+;; A message is handed to the handler along with a transport which just puts the responses on a queue.
+;; There is no socket, and nothing is bencoded.
+;; Sessions live in the handler's session-middleware, and so are shared with the socket-server,
+;; which is now only needed by external tools.
+
+
+(defonce ^:private handler_ (delay (default-handler)))
+
+
+(defn handler
+  "Returns the (one) nREPL handler - used both in-process and by the socket-server."
+  []
+  @handler_)
+
+
+(defn- ->wire
+  "Makes 'msg' look as if it came through a socket, i.e. keyword-values (like ':op :eval') become strings."
+  [msg]
+  (into {} (map (fn [[k v]] [k (if (keyword? v) (name v) v)])) msg))
+
+
+(defn- <-wire
+  "Makes 'res' look as if it came through a socket, i.e. the status becomes a vector of strings."
+  [res]
+  (if-let [st (:status res)]
+    (assoc res :status (mapv name (if (coll? st) st [st])))
+    res))
+
+
+(defn- queue-transport [^LinkedBlockingQueue q]
+  (reify t/Transport
+    (recv [this] (.take q))
+    (recv [this timeout] (.poll q timeout TimeUnit/MILLISECONDS))
+    (send [this res] (.put q res) this)))
+
+
+(defn- response-seq [^LinkedBlockingQueue q ^long timeout]
+  (lazy-seq
+    (when-let [res (.poll q timeout TimeUnit/MILLISECONDS)]
+      (let [res (<-wire res)]
+        (cons res
+              (when-not (some #{"done"} (:status res))
+                (response-seq q timeout)))))))
+
+
+(defn message
+  "Sends 'msg' to the handler in-process.
+  Returns a lazy seq of the responses, ending with the one with status 'done' -
+  or earlier, if no response arrives within 'timeout' ms."
+  [msg & [timeout]]
+  (let [q (LinkedBlockingQueue.)]
+    ((handler) (assoc (->wire msg)
+                 :id (or (:id msg) (str (UUID/randomUUID)))
+                 :transport (queue-transport q)))
+    (response-seq q (or timeout Integer/MAX_VALUE))))
+
+
+;;;; Socket server
 
 
 (defonce ^:private server_ (atom nil))
@@ -56,7 +123,7 @@
   [& [port]]
   (stop!)
   (let [prt (or port 11000)]
-    (reset! server_ (start-server :port prt))))
+    (reset! server_ (start-server :port prt :handler (handler)))))
 
 
 
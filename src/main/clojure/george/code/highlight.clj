@@ -11,162 +11,103 @@
         [clojure.core.async :refer [go thread chan >! >!! <! <!! go-loop sliding-buffer]]
 
         [george.javafx :as fx]
+        [george.util.java :as j]
         [george.code.reader :as my]
         [george.code.tokenizer :as tok])
     (:import
         [java.time Duration]
-        [clojure.lang Keyword Symbol]
         [org.fxmisc.richtext MouseOverTextEvent StyleClassedTextArea]
-        [org.fxmisc.richtext.model StyleSpansBuilder]
-        [george.code.tokenizer TokenError Arg DelimChar Comment MacroChar MacroDispatchChar]))
-
-
-
-(defn- unpaired-delim? [token]
-    (boolean (get-in token [:value :unpaired])))
-
-
-(defn- mark-as-unpaired-delim
-  "adds the kv-pair ':unpaired true' to the token-record"
-  [token]
-  (assoc-in token [:value :unpaired] true))
-
-
-(def cssclass-dict
-    {Symbol "symbol"
-     :default  "default"
-     Boolean "boolean"
-     :nil "nil"
-     TokenError "tokenerror"
-     :unpaired "unpaired"
-     Keyword "keyword"
-     Arg "arg"
-     String "string"
-     Character "character"
-     DelimChar "delimchar"  ;; all types of params
-     Comment "comment"
-     MacroChar "macrochar"
-     MacroDispatchChar "macrodispatchchar"})
-
-
-(defn- cssclass-get
-  "Returns the lookup-ed value for the key 'k'."
-  [k]
-  ;(pprint ["/cssclass" "k:" k])
-  (if (isa? k Number)
-      "number"
-      (cssclass-dict k "unkown")))
-
-
-(defn- cssclass
-  "Returns a Sting naming a css class for the given key."
-  [token]
-  ;(pprint ["/cssclass" "token:" token "type:" (-> token :value type)])
-  (let [
-        value (:value token)
-        typ
-        (cond
-            (= :nil value)  :nil
-            (unpaired-delim? token)  :unpaired
-            :else (type value))]
-
-      (cssclass-get typ)))
-
-
-(defn- token->range
- "Takes a token and returns a range-vector:  Token -> [start end]"
-    [token]
-    [(:start token) (:end token)])
-
-
-(defn- token->ranges
- "Takes a Token or a pair of tokens in a vector and returns a vector of range-vectors:
-Token -> [[start end]]
-[Token Token] -> [[start end] [start end]]"
-    [thing]
-    (if (vector? thing)
-        [(token->range (first thing)) (token->range (second thing))]
-        [(token->range thing)]))
-
-
-(defn- assoc-token!
-    [index-vector! rngs token]
-    (if-not token  ;; avoid NullPointerExeptions.  Fix this!
-        index-vector!
-     (let [
-              indexes
-              (reduce
-                  (fn [acc rng] (concat acc (apply range rng)))
-                  [] rngs)]
-
-         (loop [indv index-vector!
-                inds indexes]
-             (if (empty? inds)
-                 indv
-                 (recur
-                     (assoc! indv (first inds) token)
-                     (rest inds)))))))
-
-
-(defn- create-token-index
- "assocs a seq of single and paired tokens to every index they cover:
-[Token0{:start 0 :end 2 ...}  Token1{:start 4 :end 5 ...} ...] -> [Token0 Token0 Token0 nil Token1 ...]
-all-tokens:  seq of single tokens:  [Token0 Token1 Token2 Token3 Token4 Token 5]
-paired-tokens: seq of vectors of paired tokens: [[Token0 Token4][Token1 Token3]]
-"
-    [all-tokens paired-tokens code-length]
-    (let [
-          all-and-paired (concat all-tokens paired-tokens)]
+        [org.fxmisc.richtext.model StyleSpansBuilder PlainTextChange]
+        [george.code TokenStream]))
 
-        (loop [
-               ;; create a transient vector populated with nils
-               token-index!
-               (transient (mapv (constantly nil) (range code-length)))
 
-               tokens
-               all-and-paired]
 
-            (if-not tokens
-                ; make vector persistent, and return
-                (persistent! token-index!)
-                (recur
-                    (assoc-token!
-                        token-index!
-                        (token->ranges (first tokens))
-                        (first tokens))
+(def ^:private empty-set #{})
 
-                    (next tokens))))))
 
+;; The style-classes for each kind of token in a TokenStream - in the order of the kind-codes:
+;; SYMBOL NIL BOOLEAN NUMBER KEYWORD STRING CHARACTER COMMENT ARG DELIM MACRO DISPATCH ERROR
+(def ^:private KIND_CLASSES
+  (mapv hash-set
+        ["symbol" "nil" "boolean" "number" "keyword" "string" "character" "comment" "arg"
+         "delimchar" "macrochar" "macrodispatchchar" "tokenerror"]))
 
-(def ^:private empty-set #{})
 
+(def ^:private UNPAIRED_CLASSES #{"delimchar" "unpaired"})
 
-(defn- set-stylespans [tokens codearea]
-  ;(pprint ["/set-stylespans tokens:" tokens])
-  (when-not (empty? tokens)
-    (let [
-          tokens-and-classes
-          (map (fn [t] [t #{(cssclass t)}]) tokens)
 
-          spans-builder
-          (StyleSpansBuilder. (* 2 (count tokens)))]
+(defn- token-classes [^TokenStream ts ^long i]
+  (if (.isUnpaired ts i)
+    UNPAIRED_CLASSES
+    (nth KIND_CLASSES (.kind ts i))))
 
-        (loop [prev-end 0
-               [[token classes] & tokens-and-classes] tokens-and-classes]
 
-            (when-let [{:keys [start end]} token]
-              ;; add a spacer between tokens
-               (.add spans-builder empty-set (- start prev-end))
-               ;; then add the tokens itself
-               (.add spans-builder classes (- end start))
+(defn- token-ranges
+  "Returns the range-vectors [start end] of the token at 'i' - and of the delim it pairs with, if any."
+  [^TokenStream ts ^long i]
+  (let [p (.pair ts i)]
+    (cond-> [[(.start ts i) (.end ts i)]]
+            (not= p TokenStream/NO_PAIR) (conj [(.start ts p) (.end ts p)]))))
 
-               (recur end tokens-and-classes)))
 
-        (fx/later  ;; TODO: should this not go on a channel for speed?! See example
-            (try
-                (.setStyleSpans  codearea 0 (.create spans-builder))
-                ;; End greater than length.  TODO: Fix!
-                (catch Exception e (.printStackTrace e)))))))
+(defn- style-spans
+  "Returns StyleSpans covering the chars 'lo' - 'hi' - with empty styles between tokens."
+  [^TokenStream ts ^long lo ^long hi]
+  (let [cnt (.count ts)
+        builder (StyleSpansBuilder.)]
+    (loop [i (.indexAfter ts lo) prev-end lo]
+      (if (and (< i cnt) (< (.start ts i) hi))
+        (let [start (max lo (.start ts i))
+              end (min hi (.end ts i))]
+          ;; add a spacer between tokens
+          (.add builder empty-set (- start prev-end))
+          ;; then add the tokens itself
+          (.add builder (token-classes ts i) (- end start))
+          (recur (inc i) end))
+        (.add builder empty-set (- hi prev-end))))
+    (.create builder)))
+
+
+(defn- unpaired-lines
+  "Returns a set of the (1-based) line-numbers of the unpaired delims in 'ts'."
+  [^TokenStream ts ^CharSequence code]
+  (let [cnt (.count ts)]
+    (loop [i 0 offset 0 line 1 lines (transient #{})]
+      (if (= i cnt)
+        (persistent! lines)
+        (if (.isUnpaired ts i)
+          (let [start (.start ts i)
+                line (loop [o offset line line]
+                       (if (< o start)
+                         (recur (inc o) (if (= (.charAt code o) \newline) (inc line) line))
+                         line))]
+            (recur (inc i) start line (conj! lines line)))
+          (recur (inc i) offset line lines))))))
+
+
+(defn- set-stylespans
+  "Sets the styles for the chars 'lo' - 'hi' - extended to whole paragraphs."
+  [codearea ^TokenStream ts ^String code ^long lo ^long hi]
+  (let [lo (inc (.lastIndexOf code "\n" (int (dec lo))))
+        nl (.indexOf code "\n" (int hi))
+        hi (if (neg? nl) (.length code) nl)]
+    (when (< lo hi)
+      (try
+        (.setStyleSpans codearea (int lo) (style-spans ts lo hi))
+        (catch Exception e (.printStackTrace e))))))
+
+
+(defn- shifted-unpaired
+  "Returns the starts of the unpaired delims in the old stream, shifted to where they are after the edit.
+  (Those inside the edit are left out, as they are re-lexed anyway.)"
+  [^TokenStream ts ^long start ^long old-end ^long new-end]
+  (into #{}
+        (keep (fn [^long o]
+                (cond
+                  (< o start) o
+                  (>= o old-end) (+ o (- new-end old-end))
+                  :default nil)))
+        (.unpairedStarts ts)))
 
 
 ;; StyleSpans.mapStyles
@@ -193,52 +134,54 @@ paired-tokens: seq of vectors of paired tokens: [[Token0 Token4][Token1 Token3]]
       (fx/later (.setStyleSpans codearea start new-styles))))))
 
 
-(defn- color-and-index [codearea code token-indexes_]
-  (let [
-          code-len
-          (.length code)
-
-          singles
-          ;(time (tok/tokenize-str code))
-          (tok/tokenize-str code)
-          ;_ (pprint ["singles" singles])
-          _ (set-stylespans singles codearea)
-
-          [paired unpaired] (tok/paired-delims (tok/delim-tokens singles))
-          unpaired (filter some? unpaired)
-          unpaired (map mark-as-unpaired-delim unpaired)]
-
-    (-> codearea .errorlines (.setValue (into #{} (map :line unpaired))))
-
-    (doseq [t unpaired]
-      (fx/thread
-        (try
-          (set-style-on-range codearea [(:start t) (:end t)] (cssclass t))
-          (catch IllegalArgumentException e (.printStackTrace e)))))
-            ;; handle end is greater than length. Fix!
-
-    (go (reset! token-indexes_ (create-token-index singles paired code-len)))))
-
-
-
-(defn- codearea-changelistener [codearea token-indexes_]
-    (fx/changelistener
-        [_ _ _ new-code]
-        (go (color-and-index codearea new-code token-indexes_))))
+(defn- color-and-index
+  "Re-lexes the code from the nearest token before the change, til it is back in step with the previous tokens,
+  and restyles only those paragraphs - and those of any delims which became paired/unpaired."
+  [codearea ^PlainTextChange change ^String code tokens_]
+  (let [^TokenStream prev @tokens_]
+    (if (nil? prev)
+      (let [ts (tok/tokenize-chars code)]
+        (reset! tokens_ ts)
+        (set-stylespans codearea ts code 0 (.length code))
+        (-> codearea .errorlines (.setValue (unpaired-lines ts code))))
+
+      (let [start (.getPosition change)
+            old-end (+ start (.length (.getRemoved change)))
+            new-end (+ start (.length (.getInserted change)))
+            ts (tok/retokenize-chars prev code start old-end new-end)
+            prev-unpaired (shifted-unpaired prev start old-end new-end)
+            unpaired (set (.unpairedStarts ts))
+            changed (concat (remove unpaired prev-unpaired) (remove prev-unpaired unpaired))
+            lo (apply min (.lexedStart ts) changed)
+            hi (apply max (.lexedEnd ts) (map inc changed))]
+        (reset! tokens_ ts)
+        (set-stylespans codearea ts code lo hi)
+        (when (or (seq changed) (not= (count prev-unpaired) (count (.unpairedStarts prev))))
+          (-> codearea .errorlines (.setValue (unpaired-lines ts code))))))))
+
+
+(defn- codearea-changeconsumer [codearea tokens_]
+    ;; Called on the FX thread, in order.  Re-lexing is incremental, so it is done right here.
+    ;; The change itself says where the text was edited - no need to diff the old and new text.
+    (j/consumer
+        (fn [change]
+            (color-and-index codearea change (.getText codearea) tokens_))))
 
 
 (defn- set-hover
-    [index codearea tokenindexes hover?]
-    (when-let [thing (get tokenindexes index)]
-      (doseq [r (token->ranges thing)]
-        (set-style-on-range codearea r "hover" hover?))
-      (when hover? index)))
+    [index codearea ^TokenStream tokens hover?]
+    (when (and index tokens)
+      (let [i (.indexAt tokens (int index))]
+        (when-not (neg? i)
+          (doseq [r (token-ranges tokens i)]
+            (set-style-on-range codearea r "hover" hover?))
+          (when hover? index)))))
 
 
 (defn set-handlers [codearea]
     (let [
-          ;; this will contain references to parse-results by index - for lookups
-          tokenindex_ (atom [])
+          ;; this will contain the latest TokenStream - for lookups
+          tokenindex_ (atom nil)
 
           last-hovered-index_ (atom nil)
 
@@ -254,8 +197,8 @@ paired-tokens: seq of vectors of paired tokens: [[Token0 Token4][Token1 Token3]]
           end-handler
           (fx/event-handler (println "  ## end-handler"))
 
-          changelistener
-          (codearea-changelistener codearea tokenindex_)]
+          changeconsumer
+          (codearea-changeconsumer codearea tokenindex_)]
 
         (doto codearea
             (.setMouseOverTextDelay (Duration/ofMillis 100))
@@ -264,4 +207,4 @@ paired-tokens: seq of vectors of paired tokens: [[Token0 Token4][Token1 Token3]]
             ;(.addEventHandler MouseOverTextEvent/MOUSE_OVER_TEXT_END
             ;                  end-handler)
 
-            (-> .textProperty (.addListener changelistener)))))
\ No newline at end of file
+            (-> .plainTextChanges (.subscribe changeconsumer)))))
\ No newline at end of file
@@ -15,7 +15,8 @@
         [clojure.pprint :refer [pp pprint]]
 
         [clojure.java.io :as cio])
-    (:import (clojure.lang LineNumberingPushbackReader)))
+    (:import (clojure.lang LineNumberingPushbackReader)
+             (george.code TokenStream)))
 
 
 
@@ -544,6 +545,44 @@
     (tokenize (indexing-pushback-stringreader clj-str)))
 
 
+
+;;;;;;;; token streams ;;;;;;;;
+
+;; An alternative to 'tokenize', which doesn't create a Token (and value) for every lexeme,
+;; but fills primitive arrays with start, end, kind and pair.  See george.code.TokenStream
+;; Values are created on demand - see 'token-value'.
+;; Note: A comment-token does not include the ending newline, as it does from 'tokenize'.
+
+
+(defn tokenize-chars
+    "Returns a TokenStream for the chars in the CharSequence 'cs' (e.g. a String)."
+    ^TokenStream [^CharSequence cs]
+    (TokenStream/lex cs))
+
+
+(defn retokenize-chars
+    "Returns a new TokenStream for 'cs',
+    where the range 'start' - 'old-end' of the text 'ts' was made from has been replaced by 'start' - 'new-end'.
+    Only the tokens touched by the edit are re-lexed."
+    ^TokenStream [^TokenStream ts ^CharSequence cs start old-end new-end]
+    (.relex ts cs (int start) (int old-end) (int new-end)))
+
+
+(defn token-value
+    "Returns the value of the token at index 'i' in 'ts' - as 'tokenize' would have it."
+    [^TokenStream ts ^CharSequence cs i]
+    (let [i (int i)]
+        (:value (first (tokenize-str (str (.subSequence cs (.start ts i) (.end ts i))))))))
+
+
+(defn token
+    "Returns a Token for the token at index 'i' in 'ts'."
+    [^TokenStream ts ^CharSequence cs i]
+    (let [i (int i)]
+        (Token. (.start ts i) (.end ts i) (token-value ts cs i))))
+
+
+
 (defn sample-code []
     (slurp (cio/resource "dev/highlight/sample_code.clj")))
 
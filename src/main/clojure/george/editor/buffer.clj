@@ -10,10 +10,7 @@
   (:require
     [clojure.core.rrb-vector :as fv]
     [clojure.java.io :as cio]
-    [george.util.text :as ut])
-  (:import
-    [java.io PushbackReader StringReader]
-    [clojure.core.rrb_vector.rrbt Vector]))
+    [george.editor.buffer.lines :as lines]))
 
 
 ;(set! *warn-on-reflection* true)
@@ -24,40 +21,33 @@
 (declare read-char unread-char peek-char)
 
 
-(defn- normalized-newline
-  "Returns a 2-part vector containing: [ch str-or-nil]
-  where ch is a possibly the original char or a normalized newline
-  and str-or-nil is the original newline-combo if a normalization occured"
-  [^PushbackReader rdr ch]
-  (if (ut/return-char? ch)
-    (let [ich (.read rdr)]
-      (if (not= ich -1)
-        (if (ut/newline-formfeed-char? (char ich))
-          [\newline (str \return (char ich))]
-          (do (.unread rdr ich)
-              [\newline "\r"]))
-        [\newline "\r"]))
-    [ch nil]))
+(def ^:private NEWLINE_COMBO_PATTERN #"\r[\n\f]?")
 
 
-(defn- ^PushbackReader pushback-stringreader [^String s]
-  (PushbackReader. (StringReader. s)))
+(defn- normalized-newlines
+  "Returns a 2-part vector containing the string with all \r, \r\n and \r\f replaced by \n,
+  and the last such newline-combo found, or \"\n\" if none."
+  [^String s]
+  (let [m (re-matcher NEWLINE_COMBO_PATTERN s)]
+    (loop [orig-nl "\n"]
+      (if (.find m)
+        (recur (.group m))
+        [(.replaceAll m "\n") orig-nl]))))
+
 
+(defn chars->buffer
+  "Returns a buffer (a vector of primitive chars) containing the chars in the string or seq of chars."
+  [chars]
+  (into (fv/vector-of :char) chars))
 
 
 (defn- string->normalized->fvec
   "Returns a 2-part vector containing the original newline-str and a vector or chars.
-  Use the newline-str when writing (back) to file."
+  Use the newline-str when writing (back) to file.
+  The chars are stored unboxed, in an rrb-vector of primitive chars."
   [^String s]
-  (loop [rdr (pushback-stringreader s)
-         ich (.read rdr)
-         chars (transient [])
-         orig-nl "\n"]
-
-    (if (not= ich -1)
-      (let [[ch nl] (normalized-newline rdr (char ich))]
-        (recur rdr (.read rdr) (conj! chars ch) (or nl orig-nl)))
-      [orig-nl (fv/vec (persistent! chars))])))
+  (let [[normalized orig-nl] (normalized-newlines s)]
+    [orig-nl (chars->buffer normalized)]))
 
 
 (defn new-buffer
@@ -67,6 +57,34 @@
     [buf nl-str]))
 
 
+(defn ^String buffer->string [buffer]
+  (let [sb (StringBuilder. (int (count buffer)))]
+    (reduce (fn [^StringBuilder sb ch] (.append sb (char ch))) sb buffer)
+    (.toString sb)))
+
+
+(defn buffer-chars
+  "Returns a CharSequence view of the buffer, without copying it."
+  ^CharSequence [buffer]
+  (reify CharSequence
+    (length [_] (count buffer))
+    (charAt [_ i] (char (nth buffer i)))
+    (subSequence [_ start end] (buffer->string (fv/subvec buffer start end)))
+    (toString [_] (buffer->string buffer))))
+
+
+(defn insert-at [buffer offset chars]
+  (fv/catvec (fv/subvec buffer 0 offset) (chars->buffer chars) (fv/subvec buffer offset)))
+
+
+(defn replace-range [buffer start end chars]
+  (fv/catvec (fv/subvec buffer 0 start) (chars->buffer chars) (fv/subvec buffer end)))
+
+
+(defn delete-range [buffer start end]
+  (fv/catvec (fv/subvec buffer 0 start) (fv/subvec buffer end)))
+
+
 (defn- line-start-indexes
   "Returns a vector of indexes representing the start of each line.
   Will return at a minimum '[0]' if 'sb' is empty or contains no '\n'"
@@ -97,41 +115,19 @@
          (conj lines (.substring sb frst end)))))))
 
 
-;(defn split-buffer-lines [buffer]
-;  ;(println "/split-buffer-lines" buffer)
-;  (loop [lines (transient [])
-;         line (transient [])
-;         [ch & rst] buffer]
-;    (if ch
-;      (if (newline-char? ch)
-;        (recur
-;          (conj! lines (persistent! (conj! line ch))) ;; add ch to current line and add it to lines
-;          (transient [])  ;; create a new line
-;          rst)
-;        (recur
-;          lines
-;          (conj! line ch) ;; add ch to current line
-;          rst))
-;      ;; add current line to lines and return lines
-;      (persistent! (conj! lines (persistent! line))))))
-
-(defn split-buffer-lines [^Vector buffer]
-  ;(println "/split-buffer-lines")
-  (loop [lines (transient [])
-         chs buffer
-         start 0 end 0]
-    (if-let [ch (first chs)]
-      (if (ut/newline-char? ch)
-        (recur
-          (conj! lines (fv/subvec buffer start (inc end))) ;; add ch to current line and add it to lines
-          (rest chs)
-          (inc end) (inc end))
-        (recur
-          lines
-          (rest chs)
-          start (inc end)))
-      ;; add current line to lines and return lines
-      (persistent! (conj! lines (fv/subvec buffer start))))))
+(defn split-buffer-lines
+  "Returns a LineIndex (see 'george.editor.buffer.lines') for the whole buffer.
+  It behaves like a vector of lines (each a subvec of the buffer, including its newline),
+  but should be updated with 'edit-lines' after edits, as that only re-scans the touched rows."
+  [buffer]
+  (lines/line-index buffer))
+
+
+(defn edit-lines
+  "Returns a new LineIndex for 'buffer',
+  where the range 'start' - 'old-end' was replaced by the range 'start' - 'new-end'."
+  [lines buffer start old-end new-end]
+  (lines/edit lines buffer start old-end new-end))
 
 
 ;;;;;;
@@ -0,0 +1,247 @@
+;; Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+;; The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns
+  ^{:doc "A persistent line-index over a buffer.
+  The lengths of all lines are kept in an implicit treap (a randomized balanced tree keyed on position),
+  where every node also holds the line-count and char-count of its subtree.
+  This makes row->offset, offset->row and splicing of rows O(log n)."}
+
+  george.editor.buffer.lines
+  (:require
+    [clojure.core.rrb-vector :as fv])
+  (:import
+    [java.util.concurrent ThreadLocalRandom]))
+
+
+;(set! *warn-on-reflection* true)
+(set! *unchecked-math* :warn-on-boxed)
+;(set! *unchecked-math* true)
+
+
+(deftype LineNode [left right ^long len ^long prio ^long cnt ^long total])
+
+
+(defn- cnt ^long [^LineNode n]
+  (if n (.cnt n) 0))
+
+
+(defn- total ^long [^LineNode n]
+  (if n (.total n) 0))
+
+
+(defn- node ^LineNode [left ^long len ^long prio right]
+  (LineNode. left right len prio
+             (+ 1 (cnt left) (cnt right))
+             (+ len (total left) (total right))))
+
+
+(defn- random-prio ^long []
+  (.nextInt (ThreadLocalRandom/current) Integer/MAX_VALUE))
+
+
+(defn- merge-nodes
+  "Concatenates two treaps. All lines in 'a' come before all lines in 'b'."
+  [^LineNode a ^LineNode b]
+  (cond
+    (nil? a) b
+    (nil? b) a
+    (> (.prio a) (.prio b))
+    (node (.left a) (.len a) (.prio a) (merge-nodes (.right a) b))
+    :default
+    (node (merge-nodes a (.left b)) (.len b) (.prio b) (.right b))))
+
+
+(defn- split-nodes
+  "Returns a 2-element vector of treaps: the first 'k' lines, and the rest."
+  [^LineNode n ^long k]
+  (if (nil? n)
+    [nil nil]
+    (let [lc (cnt (.left n))]
+      (if (< k (inc lc))
+        (let [[a b] (split-nodes (.left n) k)]
+          [a (node b (.len n) (.prio n) (.right n))])
+        (let [[a b] (split-nodes (.right n) (- k lc 1))]
+          [(node (.left n) (.len n) (.prio n) a) b])))))
+
+
+(defn- build-nodes
+  "Builds a balanced treap from a vector of line-lengths in O(n).
+  Priorities are banded by depth so the heap-property holds, with some randomness within each band."
+  [lens ^long lo ^long hi ^long depth]
+  (when (< lo hi)
+    (let [mid (quot (+ lo hi) 2)
+          band (bit-shift-left 1 24)
+          prio (+ (- (long Integer/MAX_VALUE) (* (inc depth) band))
+                  (.nextInt (ThreadLocalRandom/current) (int band)))]
+      (node (build-nodes lens lo mid (inc depth))
+            (long (lens mid))
+            prio
+            (build-nodes lens (inc mid) hi (inc depth))))))
+
+
+;; New rows from edits get uniformly random priorities, and so usually sink below the banded ones.
+(defn- random-nodes [lens]
+  (reduce (fn [n len] (merge-nodes n (node nil len (random-prio) nil)))
+          nil
+          lens))
+
+
+(defn- nth-len ^long [^LineNode n ^long row]
+  (let [lc (cnt (.left n))]
+    (cond
+      (< row lc) (recur (.left n) row)
+      (= row lc) (.len n)
+      :default   (recur (.right n) (- row lc 1)))))
+
+
+(defn- row-offset
+  "Returns the sum of the lengths of all lines before 'row'."
+  ^long [^LineNode n ^long row]
+  (loop [^LineNode n n row row acc 0]
+    (if (nil? n)
+      acc
+      (let [lc (cnt (.left n))]
+        (if (<= row lc)
+          (recur (.left n) row acc)
+          (recur (.right n) (- row lc 1) (+ acc (total (.left n)) (.len n))))))))
+
+
+(defn- offset-row
+  "Returns the row containing 'offset'.
+  An offset directly after a newline belongs to the following row.
+  Offsets at or beyond the end belong to the last row."
+  ^long [^LineNode n ^long offset]
+  (loop [^LineNode n n offset offset acc 0]
+    (let [l (.left n)
+          lt (total l)]
+      (cond
+        (and l (< offset lt))
+        (recur l offset acc)
+
+        (or (< offset (+ lt (.len n))) (nil? (.right n)))
+        (+ acc (cnt l))
+
+        :default
+        (recur (.right n) (- offset lt (.len n)) (+ acc (cnt l) 1))))))
+
+
+(defn- line-lengths
+  "Returns a vector of the lengths of the lines in 'buffer' from 'start' (inclusive) til 'end' (exclusive).
+  A line includes its ending newline.  The (possibly empty) remainder after the last newline is the last item."
+  [buffer ^long start ^long end]
+  (loop [i start
+         line-start start
+         lens (transient [])]
+    (if (< i end)
+      (if (= \newline (nth buffer i))
+        (recur (inc i) (inc i) (conj! lens (- (inc i) line-start)))
+        (recur (inc i) line-start lens))
+      (persistent! (conj! lens (- end line-start))))))
+
+
+(declare ->LineIndex)
+
+
+(deftype LineIndex [buffer ^LineNode root]
+
+  clojure.lang.Counted
+  (count [_] (cnt root))
+
+  clojure.lang.Indexed
+  (nth [this row]
+    ;; Throws IndexOutOfBoundsException for bad rows, just like a vector.
+    (when-not (< -1 row (cnt root))
+      (throw (IndexOutOfBoundsException. (str row))))
+    (let [start (row-offset root row)]
+      (fv/subvec buffer start (+ start (nth-len root row)))))
+  (nth [this row not-found]
+    (if (< -1 (long row) (cnt root))
+      (.nth this row)
+      not-found))
+
+  clojure.lang.IFn
+  (invoke [this row] (.nth this row))
+  (applyTo [this args] (.nth this (first args)))
+
+  clojure.lang.Sequential
+
+  clojure.lang.Seqable
+  (seq [this]
+    (seq (map #(.nth this %) (range (cnt root)))))
+
+  java.lang.Iterable
+  (iterator [this]
+    (.iterator ^Iterable (or (seq this) ()))))
+
+
+(defn line-index
+  "Returns a new LineIndex for the whole of 'buffer'. O(n)"
+  [buffer]
+  (let [lens (line-lengths buffer 0 (count buffer))]
+    (->LineIndex buffer (build-nodes lens 0 (count lens) 0))))
+
+
+(defn line-count [^LineIndex li]
+  (cnt (.root li)))
+
+
+(defn line-length ^long [^LineIndex li ^long row]
+  (nth-len (.root li) row))
+
+
+(defn row->offset
+  "Returns the index of the start of 'row'.
+  'row' may be one past the last row, which returns the length of the buffer."
+  ^long [^LineIndex li ^long row]
+  (row-offset (.root li) row))
+
+
+(defn offset->row ^long [^LineIndex li ^long offset]
+  (offset-row (.root li) offset))
+
+
+(defn offset->location
+  "Returns [row col] for 'offset'."
+  [^LineIndex li ^long offset]
+  (let [row (offset->row li offset)]
+    [row (- offset (row->offset li row))]))
+
+
+(defn merge-dirty
+  "Returns [lo hi] - the (inclusive) range of rows touched by edits,
+  after the rows 'r0' - 'r1' (inclusive) in 'dirty' have been replaced by 'k' rows.
+  'dirty' is a previous [lo hi], or nil."
+  [dirty ^long r0 ^long r1 ^long k]
+  (let [removed (inc (- r1 r0))
+        new-hi (dec (+ r0 k))]
+    (if-let [[^long lo ^long hi] dirty]
+      (let [hi (cond
+                 (> hi r1)  (+ hi (- k removed))
+                 (>= hi r0) new-hi
+                 :default   hi)]
+        [(min lo r0) (max ^long hi new-hi)])
+      [r0 new-hi])))
+
+
+(defn edit
+  "Returns a new LineIndex for 'new-buffer',
+  where the range 'start' - 'old-end' of the previous buffer was replaced with 'start' - 'new-end'.
+  Only the rows touched by the edit are re-scanned."
+  [^LineIndex li new-buffer ^long start ^long old-end ^long new-end]
+  (let [root (.root li)
+        last-row (dec (cnt root))
+        r0 (offset-row root start)
+        r1 (offset-row root old-end)
+        region-start (row-offset root r0)
+        region-end (+ (row-offset root (inc r1)) (- new-end old-end))
+        lens (line-lengths new-buffer region-start region-end)
+        ;; Unless the region includes the last row, it ends with a newline, and the remainder is empty.
+        lens (if (= r1 last-row) lens (pop lens))
+        [before others] (split-nodes root r0)
+        [_ after] (split-nodes others (- (inc r1) r0))]
+    (->LineIndex new-buffer
+                 (merge-nodes (merge-nodes before (random-nodes lens))
+                              after))))
@@ -116,6 +116,14 @@
   (-> editor-view .getStateAtom (st/set-text txt)))
 
 
+(defn set-annotations
+  "Shows the texts in 'annotations' - a map of {row text} - over the right end of the rows.
+  They are cleared when the text changes, or by passing nil."
+  [editor-view annotations]
+  (swap! (.getStateAtom editor-view) assoc :annotations (not-empty annotations))
+  editor-view)
+
+
 (defn set-content-type [editor-view type-str-or-kw]
   (let [state_ (.getStateAtom editor-view)]
     (swap! state_
@@ -5,26 +5,27 @@
 
 (ns
   ^{:docs "
-  To get the newest  stable version of parinfer, allowing for all possible options and configurations, this module uses the original JavaScript implementation directly, in stead of a JVM (Clojure) version.
+  Parinfer's \"indent mode\" and \"paren mode\" for the editor.
+  The work is done by 'george.editor.formatters.Parinfer' - a JVM port of the original JavaScript implementation.
+  It reads the buffer directly, processes only the top-level forms around the edited rows and the caret,
+  and returns the edits it makes, which are then applied incrementally.
   For information details see: https://github.com/shaunlebron/parinfer/tree/master/lib"}
 
   george.editor.formatters.parinfer
 
   (:require
     [clojure.java.io :as cio]
-    [clojure.data.json :as json]
     [clojure.pprint :refer [pp pprint]]
-    [clj-diff.core :as diff]
-    [george.util]  ;; important - to ensure loading of 'defmethod diff/patch Vector'
-    [george.javafx.java :as j]
     [george.editor.state :as st]
     [george.editor.formatters.defs :as defs]
     [george.editor.buffer :as b]
+    [george.editor.buffer.lines :as lines]
+    [george.editor.readers.core :as readers]
     [george.util.text :as ut])
 
   (:import
-    [javax.script ScriptEngineManager]
-    [jdk.nashorn.api.scripting ScriptObjectMirror NashornScriptEngine]))
+    [george.editor.formatters Parinfer Parinfer$Options Parinfer$Result Parinfer$Edit]
+    [javax.script ScriptEngineManager Invocable]))
 
 
 ;(set! *warn-on-reflection* true)
@@ -32,52 +33,93 @@
 ;(set! *unchecked-math* true)
 
 
-(defn- ^NashornScriptEngine new-js-engine []
-  (let [factory (ScriptEngineManager.)
-        engine  (.getEngineByName factory "JavaScript")]
-    engine))
-
-
-(defn- ^String read-parinferjs []
-  (slurp (cio/resource "js/parinfer.js")))
-
-
-(def ^NashornScriptEngine js-engine
-  (doto
-    (new-js-engine)
-    (.eval  (read-parinferjs))))
-
-
-(defn- eval-js [^String s]
-    (.eval js-engine s))
-;(println (eval-js "print('Hello, World')"))
-;(println (eval-js "var x = 8; 2 + x;"))
-;(println (eval-js "2+5; 3 + x;"))
-;(println (eval-js "function println(s) { print(s+'\\n'); }"))
-;(println (eval-js "println('println called. :-)');"))
-;(println (eval-js "function adder(x, y) { return x + y; }"))
-;(let [res (eval-js "adder(2, 3);")] (println "res:" res "type:" (type res)))
-
-
-(defn- clojurize-kv
-  "Recursively transforms all
-  ScriptObjectMirror to maps,
-  keys from strings to keywords, and doubles to ints"
-  [kvs]
-  (let [
-        kf #(if (string? %) (keyword %) %)
-        nf #(if (and (number? %) (= % (Math/floor %))) (int %) %)
-        vf #(if (or (instance? ScriptObjectMirror %) (map? %)) (clojurize-kv %) (nf %))
-        kvf (fn [[k v]] [(kf k) (vf v)])]
-    (into {} (map kvf kvs))))
-
-
 ;; https://github.com/shaunlebron/parinfer/blob/master/lib/doc/integrating.md
 ;; TODO: implement TAB-handling - for single lines or selected multiple lines.
 ;; TODO: handle/highlight errors!
 ;; TODO: Investigate smartMode. Replace the other two and remove 'strict?'?
 ;; smartMode Demo: http://shaunlebron.github.io/parinfer/demo
 
+
+(defn- new-options ^Parinfer$Options [^long cursor-line ^long cursor-x]
+  (let [opts (Parinfer$Options.)]
+    (set! (.-cursorLine opts) (int cursor-line))
+    (set! (.-cursorX opts) (int cursor-x))
+    opts))
+
+
+(defn- set-range!
+  "Limits processing to the top-level forms overlapping the rows 'lo' - 'hi'."
+  [^Parinfer$Options opts engine lines lo hi]
+  (let [start (readers/form-start-row engine lines (dec ^long lo))]
+    (set! (.-startLine opts) (int start))
+    (set! (.-startOffset opts) (int (lines/row->offset lines start)))
+    (set! (.-endLine opts) (int hi))
+    opts))
+
+
+(defn- format-range
+  "Returns [lo hi] - the rows which need formatting: the edited rows and the caret's row.
+  Returns nil if all rows need formatting."
+  [state mrow]
+  (let [edited (st/edited-rows_ state)]
+    (when (and (not= edited :all) (:block-engine state))
+      (let [rows (cons mrow edited)]
+        [(apply min rows) (apply max rows)]))))
+
+
+;; Many edits (typically 'paren-mode' on a whole file) are cheaper to apply as one replacement
+;; of the range they span.
+(def ^:private MAX_INCREMENTAL_EDITS 64)
+
+
+(defn- apply-edits_ [state ^Parinfer$Result res text]
+  (let [edits (.edits res)]
+    (cond
+      (.isEmpty edits)
+      state
+
+      (> (.size edits) MAX_INCREMENTAL_EDITS)
+      (let [start (.start ^Parinfer$Edit (.get edits 0))
+            end (.end ^Parinfer$Edit (.get edits (dec (.size edits))))
+            new-text (.applyTo res text)
+            new-end (- (.length new-text) (- (.length ^CharSequence text) end))]
+        (st/update-buffer_ state :replace start end (.substring new-text start new-end)))
+
+      :default
+      ;; In reverse, so the offsets of the remaining edits still hold.
+      (reduce (fn [state ^Parinfer$Edit e]
+                (st/update-buffer_ state :replace (.start e) (.end e) (vec (.text e))))
+              state
+              (reverse edits)))))
+
+
+(defn- ensure-lines_ [state]
+  (if (st/lines_ state)
+    state
+    (st/update-lines_ state)))
+
+
+(defn- run-parinfer_
+  "Runs parinfer on the rows 'rng' ([lo hi]), or on all rows if nil, and applies the edits.
+  Returns [state result]"
+  [state strict? [mrow mcol] rng]
+  (let [text (b/buffer-chars (st/buffer_ state))
+        opts (new-options mrow mcol)
+        res
+        (if strict?
+          (Parinfer/parenMode text opts)
+          (let [[lo hi] rng]
+            (when lo
+              (set-range! opts (:block-engine state) (st/lines_ state) lo hi))
+            (Parinfer/indentMode text opts)))
+        state
+        (-> state
+            (apply-edits_ res text)
+            ;; The lines may have been invalidated.
+            ensure-lines_)]
+    [state res]))
+
+
 (defn formatter*
   "A function which takes the current state, and returns a new state ... I think.
 It will be synchronous, and it will operate on content directly.
@@ -85,56 +127,35 @@ It will be synchronous, and it will operate on content directly.
   [state strict? selection-start-line]
   ;(println "formatter*")
   ;(println "parinfer/new-formatter/fn strict?:" strict? selection-start-line)
-  (let [method-name (if strict? "parenMode" "indentMode")
-        ^NashornScriptEngine engine js-engine
-
-        buffer (st/buffer_ state)
-        ;; lines may not have been updated
-        text (String. (char-array buffer))
+  (let [state (ensure-lines_ state)
         [^int caret ^int anchor] (st/caret-anchor_ state)
         ;; we use 'mark' as a proxy, for "cursor", and then apply any changes to both caret and anchor
         mark (max caret anchor)
 
-        lines (or (st/lines_ state) (b/split-buffer-lines buffer))
-        [mrow mcol] (st/index->location-- lines mark)
-
-        ops
-        {
-         "cursorLine" mrow
-         "cursorX" mcol
-         "selectionStartLine" (or selection-start-line mrow)}
-
-        ops-json (json/write-str ops)
-
-        ;; Get the native parinfer-object
-        parinfer-js (.get engine "parinfer")
-
-        ;; We need a reference the engine's JSON-object to convert our ops to a native structure
-        JSON-js (.eval engine "JSON")
-        ops-js (.invokeMethod engine JSON-js "parse" (j/vargs ops-json))
-
-        res-js (.invokeMethod engine parinfer-js method-name (j/vargs-t Object text ops-js))
-        res (clojurize-kv res-js)
-        res-text (:text res)
-        res-mark-pos [(:cursorLine res) (:cursorX res)]
-
-        edits (diff/diff buffer (seq res-text))
-        ;; Make sure to require [george.util] - is it loads the diff/patch implementation for Vector
-        buffer (diff/patch buffer edits)
-
-        state
-        (-> state
-            ;; 'constantly' simply returns a function which the already updated buffer.
-            ;; (A hack to simply swap in the new buffer.)
-            (st/update-buffer_ (constantly buffer))
-            st/update-lines_)
-
-        ^int res-mark (st/location->index_ state res-mark-pos)
+        lines (st/lines_ state)
+        [mrow _ :as mpos] (st/index->location-- lines mark)
+        [lo hi :as rng] (when-not strict? (format-range state mrow))
+
+        ;; The caret's previous row is formatted too, as the cursor may have held back a paren-trail there.
+        ;; If it is outside the range, it is done separately, so the rows between are skipped.
+        prev-row (some-> (::cursor-row state) (min (dec (count lines))))
+        [state rng]
+        (cond
+          (or (nil? lo) (nil? prev-row)) [state rng]
+          (<= ^long lo ^long prev-row ^long hi) [state rng]
+          (<= (Math/abs (- ^long prev-row ^long mrow)) 1) [state [(min ^long lo ^long prev-row) (max ^long hi ^long prev-row)]]
+          :default [(first (run-parinfer_ state false mpos [prev-row prev-row])) rng])
+
+        [state ^Parinfer$Result res] (run-parinfer_ state strict? mpos rng)
+
+        ^int res-mark (st/location->index_ state [(.cursorLine res) (.cursorX res)])
         res-offset (- res-mark mark)
         res-caret (+ caret res-offset)
         res-anchor (+ anchor res-offset)]
 
     (-> state
+        st/reset-edited-rows_
+        (assoc ::cursor-row (.cursorLine res))
         (st/set-caret_ res-caret)
         (st/set-anchor_ res-anchor)
         st/ensure-derived_)))
@@ -203,7 +224,7 @@ It will be synchronous, and it will operate on content directly.
         ;; apply insertions to state
         state
         (reduce (fn [state [i cnt]]
-                  (st/update-buffer_ state st/insert-at i (spaces cnt)))
+                  (st/update-buffer_ state :insert i (spaces cnt)))
                 state
                 (reverse insertions)) ;; reverse to avoid offset-issues for following insertions
 
@@ -265,7 +286,7 @@ It will be synchronous, and it will operate on content directly.
         ;; apply deletions to state
         state
         (reduce (fn [state [^int i ^int cnt]]
-                  (st/update-buffer_ state st/delete-range i (+ i cnt)))
+                  (st/update-buffer_ state :delete i (+ i cnt)))
                 state
                 (reverse deletions)) ;; reverse to avoid offset-issues for following insertions
 
@@ -326,11 +347,36 @@ It will be synchronous, and it will operate on content directly.
 ;;; DEV ;;;
 
 
-;(let [ires  (indent-mode "(def foo [a b")]
-;  (prn "## ires:"  ires)
-;  (prn "  ## text:" (ires :text)))
-;
-;(let [pres  (paren-mode "(def foo\n[a b\nc])")]
-;  (prn "## pres:"  pres)
-;  (prn "  ## text:" (pres :text)))
+;; The original JavaScript implementation is kept as a reference, to check the port against.
+;; (The engine is only created when needed, as Nashorn is slow to load, and not in newer JDKs.)
+(def ^:private js-parinfer
+  (delay
+    (doto (.getEngineByName (ScriptEngineManager.) "JavaScript")
+      (.eval (slurp (cio/resource "js/parinfer.js"))))))
+
+
+(defn- js-result [mode-name ^String text ^long cursor-line ^long cursor-x]
+  (let [engine @js-parinfer
+        opts (.eval engine (format "({cursorLine: %d, cursorX: %d})" cursor-line cursor-x))
+        res (.invokeMethod ^Invocable engine (.get engine "parinfer") mode-name (object-array [text opts]))]
+    {:text (get res "text")
+     :success (get res "success")}))
+
+
+(defn check-against-js
+  "Runs both modes on 'text' with the cursor at every line-end, in both implementations.
+  Returns a seq of the differences, if any.  Requires a JavaScript engine in the JVM."
+  [^String text]
+  (let [lns (vec (.split text "\n" -1))]
+    (for [mode ["indentMode" "parenMode"]
+          row (range (count lns))
+          :let [col (count (lns row))
+                opts (new-options row col)
+                res (if (= mode "indentMode") (Parinfer/indentMode text opts) (Parinfer/parenMode text opts))
+                jvm {:text (.applyTo res text) :success (.success res)}
+                js (js-result mode text row col)]
+          :when (not= jvm js)]
+      {:mode mode :row row :jvm jvm :js js})))
+
 
+;(check-against-js (b/read-triangle-code))
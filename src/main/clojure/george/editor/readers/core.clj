@@ -2,7 +2,12 @@
   (:require
     [clojure.pprint :refer [pprint]]
     [george.util :as u]
-    [george.util.text :as ut]))
+    [george.util.text :as ut]
+    [george.editor.buffer :as b]
+    [george.editor.buffer.lines :as lines])
+  (:import
+    [java.util.concurrent ThreadLocalRandom]
+    [java.util.concurrent.atomic AtomicLong]))
 
 
 ;(set! *warn-on-reflection* true)
@@ -22,8 +27,9 @@
   ^{:doc "A type for wrapping a char.
   'span' is [start-index end-index]
   'start' and 'end' are locations [row col] of first and last char.
-  'chars' are [start-char end-char]."}
-  [span first last chars]
+  'chars' are [start-char end-char].
+  'id' is stable for as long as the block is unchanged (see 'blocks-at-row'), or nil."}
+  [span first last chars id]
   Object
   (toString [_] (format "%s [%s %s] %s" span first last chars)))
 
@@ -58,12 +64,12 @@
     [(rest stack) [(first stack) RD]]
     [(cons RD stack) nil]))
 
-;; TODO: Ignore everything while in string or line-comment.
 (defn pair-coll-delims
   "Returns a 2-element vector containing:
   - a vector of 2-element vectors of paired ReadChars that are coll-delims
   - a vector of any unpaired ReadChars that are coll-delims
-  Takes a seq of ReadChars"
+  Takes a seq of ReadChars.
+  Note: Doesn't know about strings or comments. See 'block-spans' for that."
   [RDs]
   (loop [RDs (filter #(ut/coll-delim-char? (.char ^ReadChar %)) RDs)
          stack (list)
@@ -85,12 +91,318 @@
   (->Block [(.index a) (.index b)]
            (.location a)
            (.location b)
-           [(.char a) (.char b)]))
+           [(.char a) (.char b)]
+           nil))
 
 
-(defn block-spans [code-str]
-  (let [[pairs _](read-and-pair-coll-delims code-str)]
-    (sort-by #(first (.span ^Block %)) (map pairs->block pairs))))
+;;;; Block engine
+;;
+;; Keeps a LineState for every line of the buffer, with the nesting state at the start of the line.
+;; After an edit only the touched rows are re-scanned,
+;; and then following rows til the nesting state re-converges with what was there before.
+;; Positions of open delimiters are relative to the line ('dr' is how many rows back),
+;; so the states of rows after an edit are still valid even if rows were inserted or deleted above them.
+;;
+;; The LineStates are kept in an implicit treap (like 'george.editor.buffer.lines'),
+;; where each node also has the lowest nesting depth of its subtree.
+;; That makes the engine an interval-index as well:
+;; The close of a delimiter opened at depth 'p' is in the first following row where the depth drops to 'p'.
+;; So the blocks overlapping a row are found in O(k log n), and nothing needs shifting when rows move.
+
+
+(defrecord LineState
+  ^{:doc "'entry' and 'exit' are the nesting state at the start and end of the line: [in-string? stack]
+  'stack' is a vector of open delimiters: [dr col char]
+  'closes' is a vector of the pairs closed in the line: [dr open-col open-char close-col close-char id]
+  'low' is the lowest depth (stack-size) in the line."}
+  [entry closes exit ^long low])
+
+
+(def ^:private close-ids (AtomicLong.))
+
+
+(defn- scan-line
+  "Returns a LineState for the line, given the entry-state.
+  Skips strings (and regexes), char literals and line-comments.
+  Closing delimiters which don't match are ignored."
+  [[in-string? stack :as entry] chars]
+  (let [len (count chars)]
+    (loop [col 0
+           in-string? in-string?
+           stack stack
+           closes []
+           low (count stack)]
+      (if (>= col len)
+        (->LineState entry closes [in-string? stack] low)
+        (let [ch (nth chars col)]
+          (if in-string?
+            (case ch
+              \\ (recur (+ col 2) true stack closes low)
+              \" (recur (inc col) false stack closes low)
+              (recur (inc col) true stack closes low))
+            (case ch
+              \; (->LineState entry closes [false stack] low) ;; the rest of the line is a comment
+              \\ (recur (+ col 2) false stack closes low) ;; char literal
+              \" (recur (inc col) true stack closes low)
+              (\( \[ \{)
+              (recur (inc col) false (conj stack [0 col ch]) closes low)
+              (\) \] \})
+              (let [[dr ocol och :as top] (peek stack)]
+                (if (and top (ut/coll-delim-char-matches? och ch))
+                  (let [stack (pop stack)]
+                    (recur (inc col) false stack
+                           (conj closes [dr ocol och col ch (.incrementAndGet ^AtomicLong close-ids)])
+                           (min ^long low (count stack))))
+                  (recur (inc col) false stack closes low)))
+              (recur (inc col) false stack closes low))))))))
+
+
+(defn- next-entry
+  "Returns the entry-state of the next line, given the exit-state of a line."
+  [[in-string? stack]]
+  [in-string? (mapv (fn [[^long dr col ch]] [(inc dr) col ch]) stack)])
+
+
+(def ^:private INITIAL_ENTRY [false []])
+
+
+;;; The treap of LineStates
+
+(deftype RowNode [left right rec ^long prio ^long cnt ^long low])
+
+
+(defn- rcnt ^long [^RowNode n]
+  (if n (.cnt n) 0))
+
+
+(defn- rlow ^long [^RowNode n]
+  (if n (.low n) Long/MAX_VALUE))
+
+
+(defn- rec-low ^long [rec]
+  ;; Rows waiting to be re-scanned have nil.
+  (if rec (.low ^LineState rec) Long/MAX_VALUE))
+
+
+(defn- row-node ^RowNode [left rec ^long prio right]
+  (RowNode. left right rec prio
+            (+ 1 (rcnt left) (rcnt right))
+            (min (rec-low rec) (rlow left) (rlow right))))
+
+
+(defn- random-prio ^long []
+  (.nextInt (ThreadLocalRandom/current) Integer/MAX_VALUE))
+
+
+(defn- merge-rows [^RowNode a ^RowNode b]
+  (cond
+    (nil? a) b
+    (nil? b) a
+    (> (.prio a) (.prio b))
+    (row-node (.left a) (.rec a) (.prio a) (merge-rows (.right a) b))
+    :default
+    (row-node (merge-rows a (.left b)) (.rec b) (.prio b) (.right b))))
+
+
+(defn- split-rows
+  "Returns a 2-element vector of treaps: the first 'k' rows, and the rest."
+  [^RowNode n ^long k]
+  (if (nil? n)
+    [nil nil]
+    (let [lc (rcnt (.left n))]
+      (if (<= k lc)
+        (let [[a b] (split-rows (.left n) k)]
+          [a (row-node b (.rec n) (.prio n) (.right n))])
+        (let [[a b] (split-rows (.right n) (- k lc 1))]
+          [(row-node (.left n) (.rec n) (.prio n) a) b])))))
+
+
+(defn- build-rows
+  "Builds a balanced treap from a vector of LineStates in O(n). See 'george.editor.buffer.lines/build-nodes'"
+  [recs ^long lo ^long hi ^long depth]
+  (when (< lo hi)
+    (let [mid (quot (+ lo hi) 2)
+          band (bit-shift-left 1 24)
+          prio (+ (- (long Integer/MAX_VALUE) (* (inc depth) band))
+                  (.nextInt (ThreadLocalRandom/current) (int band)))]
+      (row-node (build-rows recs lo mid (inc depth))
+                (recs mid)
+                prio
+                (build-rows recs (inc mid) hi (inc depth))))))
+
+
+(defn- nth-rec [^RowNode n ^long row]
+  (let [lc (rcnt (.left n))]
+    (cond
+      (< row lc) (recur (.left n) row)
+      (= row lc) (.rec n)
+      :default   (recur (.right n) (- row lc 1)))))
+
+
+(defn- assoc-rec [^RowNode n ^long row rec]
+  (let [lc (rcnt (.left n))]
+    (cond
+      (< row lc) (row-node (assoc-rec (.left n) row rec) (.rec n) (.prio n) (.right n))
+      (= row lc) (row-node (.left n) rec (.prio n) (.right n))
+      :default   (row-node (.left n) (.rec n) (.prio n) (assoc-rec (.right n) (- row lc 1) rec)))))
+
+
+(defn- find-low
+  "Returns the first row at or after 'from' where the depth drops to 'depth' or lower, else nil."
+  [^RowNode n ^long from ^long depth ^long base]
+  (when (and n
+             (<= (.low n) depth)
+             (< from (+ base (.cnt n))))
+    (let [here (+ base (rcnt (.left n)))]
+      (or (when (< from here)
+            (find-low (.left n) from depth base))
+          (when (and (>= here from) (<= (rec-low (.rec n)) depth))
+            here)
+          (find-low (.right n) from depth (inc here))))))
+
+
+;;; The engine
+
+
+(defn- rescan
+  "Scans rows from 'from' til the entry-state of a row after 'dirty-hi' equals the one previously recorded.
+  Rows to be re-scanned have nil as record.
+  Returns the updated treap."
+  [root lines ^long from ^long dirty-hi]
+  (let [cnt (count lines)]
+    (loop [root root
+           row from
+           entry (if (zero? from) INITIAL_ENTRY (next-entry (:exit (nth-rec root (dec from)))))]
+      (if (>= row cnt)
+        root
+        (let [old (nth-rec root row)]
+          (if (and old (> row dirty-hi) (= entry (:entry old)))
+            root ;; converged
+            (let [rec (scan-line entry (lines row))]
+              (recur (assoc-rec root row rec)
+                     (inc row)
+                     (next-entry (:exit rec))))))))))
+
+
+(defn update-block-engine
+  "Re-scans any rows marked by 'mark-edit'. 'lines' is the current LineIndex."
+  [{:keys [root dirty] :as engine} lines]
+  (if-let [[lo hi] dirty]
+    (assoc engine :root (rescan root lines lo hi)
+                  :dirty nil)
+    engine))
+
+
+(defn new-block-engine
+  "Returns a block-engine with all the rows of the LineIndex 'lines' scanned."
+  [lines]
+  (let [cnt (count lines)
+        recs
+        (loop [row 0 entry INITIAL_ENTRY recs (transient [])]
+          (if (< row cnt)
+            (let [rec (scan-line entry (lines row))]
+              (recur (inc row) (next-entry (:exit rec)) (conj! recs rec)))
+            (persistent! recs)))]
+    {:root (build-rows recs 0 cnt 0)
+     :dirty nil}))
+
+
+(defn dirty-rows
+  "Returns [lo hi] - the rows marked by 'mark-edit' since the last update, or nil."
+  [engine]
+  (:dirty engine))
+
+
+(defn mark-edit
+  "Returns the engine with the rows 'r0' - 'r1' (inclusive) replaced by 'k' rows which need re-scanning.
+  Marks may be accumulated for several edits before calling 'update-block-engine'."
+  [{:keys [root dirty] :as engine} ^long r0 ^long r1 ^long k]
+  (let [[before others] (split-rows root r0)
+        [_ after] (split-rows others (inc (- r1 r0)))
+        fresh (reduce (fn [n _] (merge-rows n (row-node nil nil (random-prio) nil))) nil (range k))]
+    (assoc engine :root (merge-rows (merge-rows before fresh) after)
+                  :dirty (lines/merge-dirty dirty r0 r1 k))))
+
+
+(defn form-start-row
+  "Returns the nearest row at or before 'row' which starts a top-level form in col 0 -
+  i.e. it is not in a string or in a coll, and doesn't start with whitespace, a comment or a closer.
+  Returns 0 if there is none.  The engine must be up to date for the rows before 'row'."
+  ^long [{:keys [root]} lines ^long row]
+  (loop [r row]
+    (if (<= r 0)
+      0
+      (let [rec (nth-rec root r)
+            ch (nth (lines r) 0 nil)]
+        (if (and rec
+                 (= INITIAL_ENTRY (:entry rec))
+                 ch
+                 (not (#{\space \tab \newline \; \) \] \}} ch)))
+          r
+          (recur (dec r)))))))
+
+
+(defn- new-block [lines orow [_ ^long ocol och ^long ccol cch id] crow]
+  (->Block [(+ (lines/row->offset lines orow) ocol)
+            (+ (lines/row->offset lines crow) ccol)]
+           [orow ocol]
+           [crow ccol]
+           [och cch]
+           id))
+
+
+(defn- find-close
+  "Returns the Block for the delimiter opened at 'orow' 'ocol' at stack-position 'p', if it is closed at 'from' or later."
+  [root lines ^long from ^long orow ^long ocol ^long p]
+  (when-let [crow (find-low root from p 0)]
+    (let [crow (long crow)]
+      (when-let [close (first (filter (fn [[^long dr ^long col]] (and (= orow (- crow dr)) (= ocol col)))
+                                      (:closes (nth-rec root crow))))]
+        (new-block lines orow close crow)))))
+
+
+(defn blocks-at-row
+  "Returns a vector of the Blocks which overlap 'row', from the outermost to the innermost,
+  or nil if 'row' is not in 'lines'.
+  O(k log n) for k blocks.  The engine must be up to date."
+  [{:keys [root]} lines ^long row]
+  (when (< -1 row (count lines))
+    (let [{[_ entry-stack] :entry [_ exit-stack] :exit closes :closes} (nth-rec root row)
+          ;; Opened on a previous row, and still open at the start of this row.
+          spanning
+          (keep-indexed (fn [p [^long dr col]] (find-close root lines row (- row dr) col p))
+                        entry-stack)
+          ;; Opened and closed on this row
+          own-closed
+          (keep (fn [[^long dr :as close]] (when (zero? dr) (new-block lines row close row)))
+                closes)
+          ;; Opened on this row, and closed on a following row.
+          own-open
+          (keep-indexed (fn [p [^long dr col]] (when (zero? dr) (find-close root lines (inc row) row col p)))
+                        exit-stack)]
+      (into (vec spanning)
+            (sort-by #(second (:first %)) (concat own-closed own-open))))))
+
+
+(defn engine-blocks
+  "Returns a vector of all Blocks for the engine, sorted on their start.
+  'lines' is the current LineIndex, and is used for calculating indexes."
+  [{:keys [root]} lines]
+  (->> (range (rcnt root))
+       (mapcat
+         (fn [row]
+           (map (fn [[^long dr :as close]] (new-block lines (- ^long row dr) close row))
+                (:closes (nth-rec root row)))))
+       (sort-by #(first (.span ^Block %)))
+       vec))
+
+
+(defn block-spans
+  "Returns a sorted seq of Blocks for all paired coll-delims in 'code-str' (a string or a seq of chars).
+  Ignores delimiters in strings, char literals and comments."
+  [code-str]
+  (let [lines (b/split-buffer-lines (b/chars->buffer code-str))]
+    (engine-blocks (new-block-engine lines) lines)))
 
 
 ;; DEV
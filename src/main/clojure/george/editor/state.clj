@@ -12,11 +12,15 @@
     [george.util :as u]
     [george.util.text :as ut]
     [george.editor.buffer :as b]
+    [george.editor.buffer.lines :as lines]
     [george.editor.readers.core :as readers]
     [george.javafx :as fx]
     [clojure.core.rrb-vector :as fv])
   (:import
-    [javafx.collections FXCollections ObservableList]
+    [java.util.concurrent Executors ScheduledExecutorService ThreadFactory TimeUnit]
+    [java.util.concurrent.atomic AtomicBoolean]
+    [javafx.collections ObservableList]
+    [george.editor LineList]
     [javafx.scene.input ClipboardContent Clipboard]
     [java.util List]
     [clojure.core.rrb_vector.rrbt Vector]
@@ -41,6 +45,8 @@
   ensure-prefcol_
   caret-anchor_
   apply-formatter_
+  update-step-after_
+  start-formatting
   set-content-type_
   do-update-list_)
 
@@ -78,42 +84,72 @@
   (assoc state :blocks nil))
 
 
-(defn- calculate-blocks [buffer]
-  (let [blocks (readers/block-spans buffer)]
-    ;(pprint blocks)
-    blocks))
+(def ^:private MAX_OFFSET_X_MEM_LIMIT 4096)
 
 
-(defn- calculate-block-ranges
-  "Returns a map keyed on rows, with spans for each row"
-  [blocks line-count]
-  (into {}
-    (map
-      (fn [row] ;; returns a 2-element vector: [row spans]
-        [row
-         (filter (fn [{[frow _] :first [lrow _] :last}]  (<= frow row lrow))
-                 blocks)])
-      (range line-count))))
+;; Default memory limit (approx. bytes) for the undo-history. See 'set-undo-limit_'
+(def ^:private UNDO_MEMORY_LIMIT (* 16 1024 1024))
+
+
+(defn- forget-max-offsets
+  "Returns the ids of the blocks overlapping the re-scanned rows - or :all if there are many -
+  as their widths may have changed, and so their memoized max-offsets (see 'view/max-offset-x-mem').
+  The other blocks keep their ids, and so their entries.
+  Merged with 'forget' - what was to be forgotten already."
+  [forget engine lines [^long lo ^long hi]]
+  (if (or (= forget :all) (> (- hi lo) 64))
+    :all
+    (let [ids (into (or forget #{})
+                    (mapcat #(map :id (readers/blocks-at-row engine lines %)))
+                    (range lo (inc hi)))]
+      (if (> (count ids) ^long MAX_OFFSET_X_MEM_LIMIT) :all ids))))
+
+
+(defn- apply-forget-max-offsets_
+  "Removes the memoized max-offsets recorded in ':max-offset-x-forget'.
+  The memo is used (and filled) by the view, so this is only done on the FX thread - see 'do-update-list_'."
+  [state]
+  (if-let [forget (:max-offset-x-forget state)]
+    (let [mem_ (:max-offset-x-mem_ state)]
+      (if (or (= forget :all) (> (count @mem_) ^long MAX_OFFSET_X_MEM_LIMIT))
+        (reset! mem_ {})
+        (swap! mem_ #(apply dissoc % forget)))
+      (assoc state :max-offset-x-forget nil))
+    state))
 
 
 (defn update-blocks_ [state]
   ;; Blocks should only be calculated, if Clojure
   (if (not= (:content-type state) :clj)
     (assoc state :block nil)
-    (let [blocks (calculate-blocks (buffer_ state))
-          spans (calculate-block-ranges blocks (count (lines_ state)))]
-      (assoc state :blocks blocks
-                   :block-ranges spans
-                   ;; See view/max-offset-x-mem
-                   :max-offset-x-mem_ (atom {})))))
-
-
-(defn update-lines_ [{:keys [buffer line-count line-count-digits line-count-formatter] :as state}]
-  (let [lines (b/split-buffer-lines buffer)
-        cnt (count lines)
-        new-line-count? (not= cnt line-count)
-        digits (if new-line-count? (digits cnt) line-count-digits)
-        formatter (if new-line-count? (new-line-count-formatter digits) line-count-formatter)]
+    (let [lines (lines_ state)
+          ;; Only rows touched by edits since last time are re-scanned.
+          engine (:block-engine state)
+          dirty (when engine (readers/dirty-rows engine))
+          forget (:max-offset-x-forget state)
+          [engine forget] (if engine
+                            (let [engine (readers/update-block-engine engine lines)]
+                              [engine (if dirty (forget-max-offsets forget engine lines dirty) forget)])
+                            [(readers/new-block-engine lines) :all])]
+      ;; The engine is also the index for looking up blocks by row.  See 'blocks-at-row_'
+      ;; This may be done on the formatting thread, so the memoized max-offsets are not touched here.
+      (assoc state :block-engine engine
+                   :blocks engine
+                   :max-offset-x-forget forget))))
+
+
+(defn blocks-at-row_
+  "Returns the blocks which overlap 'row', outermost first - or nil if 'row' is outside the text."
+  [state row]
+  (let [lines (lines_ state)]
+    (when-let [engine (and (< -1 ^long row (count lines)) (:blocks state))]
+      (readers/blocks-at-row engine lines row))))
+
+
+(defn- set-lines_ [{:keys [line-count-digits line-count-formatter] :as state} lines]
+  (let [cnt (count lines)
+        digits (digits cnt)
+        formatter (if (= digits line-count-digits) line-count-formatter (new-line-count-formatter digits))]
     (-> state
         invalidate-derived_
         (assoc :lines lines
@@ -123,26 +159,36 @@
         update-blocks_)))
 
 
+(defn update-lines_ [state]
+  (set-lines_ state (b/split-buffer-lines (buffer_ state))))
+
+
 (defn invalidate-lines_ [state]
   (-> state
-    (assoc :lines nil)
+    (assoc :lines nil
+           ;; A wholesale change, so all blocks must be re-scanned
+           :block-engine nil
+           :edited-rows :all
+           :list-change :all)
     ;;; When lines are invalidated, then positions based on those must also be invalidated.
     invalidate-blocks_
     invalidate-derived_))
 
 
-(defn- ensure-lines_ [state]
-  (if (lines_ state)
-    state
-    (-> state
-        update-lines_
-        update-blocks_)))
+(defn- ensure-lines_
+  "If the lines were updated incrementally, then only the values derived from them are updated.
+  (The line-count is used as a marker for this.)"
+  [state]
+  (cond
+    (nil? (lines_ state))  (update-lines_ state)
+    (nil? (:line-count state)) (set-lines_ state (lines_ state))
+    :default state))
 
 
 (defn- new-state_ [^Vector buffer ^String line-sep content-type]
-  (let [buf (or buffer (fv/vector))
+  (let [buf (or buffer (b/chars->buffer nil))
         lines (b/split-buffer-lines buf)
-        olist (FXCollections/observableArrayList ^List lines)
+        olist (LineList. ^List (vec lines))
         state
         {
          ;; These are the actual values that the state must have.
@@ -161,7 +207,7 @@
          ;; They are "invalidated" by setting them back to nil.
 
          ;;  Is invalidated only when the buffer changes.
-         :lines        nil  ;; A vector of Vectors.
+         :lines        nil  ;; A LineIndex - behaves like a vector of Vectors.
          :line-count   nil  ;;  ^int (count lines)
          :line-count-digits    nil ;; ^int the number of digits in the line-count
          :line-count-formatter nil ;; IFn - a 1-arg fn which formats the passed-in line-index
@@ -169,7 +215,34 @@
          ;; These are invalidated both when the buffer changes or when caret or anchor changes
          :caret-pos       nil  ;; [^int row ^int col]
          :anchor-pos      nil  ;;  - '' -
-         :blocks nil}]  ;; ?
+         :blocks nil  ;; The block-engine, when up to date.
+         ;; Memoized max-offsets for blocks, keyed on block-id. See 'view/max-offset-x-mem'.
+         :max-offset-x-mem_ (atom {})
+         ;; Block-ids (a set) or :all, to be removed from the memo when next on the FX thread.  See 'update-blocks_'
+         :max-offset-x-forget nil
+         :block-engine nil ;; See 'readers/new-block-engine'. Is kept up to date incrementally.
+         ;; The rows changed since the last formatting: [lo hi] (inclusive), :all or nil.  See 'edited-rows_'
+         :edited-rows :all
+         ;; How the list must change to match the lines: [first-row removed-count inserted-count], :all or nil.
+         ;; See 'do-update-list_'
+         :list-change nil
+         ;; Incremented on every change to the buffer. Formatting results are tagged with it.
+         :version 0
+         ;; Formatting to be done: {:strict? .. :selection-start-line ..} or nil.  See 'apply-formatter_'
+         :format-request nil
+
+         ;; The undo-history.  See 'undo_'
+         :undo-steps (fv/vector) ;; oldest first
+         :redo-steps ()  ;; latest undone first
+         :undo-bytes 0  ;; approx. memory held by undo- and redo-steps
+         :undo-limit UNDO_MEMORY_LIMIT
+         :undo-group nil  ;; {:kind .. :time .. :marks ..} of the latest step, for grouping the next edit into it.
+         :undo-next nil  ;; set during an edit-command.  See 'begin-step_'
+
+         ;; {row text} shown over the right end of the rows - e.g. the costs of evaluating the code.
+         ;; Cleared when the buffer changes.  See 'george.editor.core/set-annotations'
+         :annotations nil}]
+
     (-> state
         ;; TODO: Should be '(apply-formatter_ true)' - but only when colorcoding is in place - to show where the error is!
         (set-content-type_ content-type)
@@ -178,7 +251,8 @@
 
 
 (defn new-state-atom [^Vector buffer ^String line-sep ^Keyword content-type]
-  (atom (new-state_ buffer line-sep content-type)))
+  (doto (atom (new-state_ buffer line-sep content-type))
+        start-formatting))
 
 
 (defn content-type_ [state]
@@ -242,21 +316,24 @@
 
 
 (defn buffer->text [buffer]
-  (String. (char-array buffer)))
+  (b/buffer->string buffer))
 
 
 (defn text_ [^IPersistentMap state]
   (-> state buffer_ buffer->text))
 
 
-(defn text [^Atom state_]
-  (-> state_ deref text_))
+(declare format_)
+
+
+(defn text
+  "Returns the text, including any formatting not yet done."
+  [^Atom state_]
+  (-> state_ deref format_ text_))
 
 
 (defn- set-text_ [state ^String txt & [caret anchor]]
-  (let [buffer (buffer_ state)
-        edits (diff/diff buffer (seq txt))
-        buffer (diff/patch buffer edits)]
+  (let [buffer (b/chars->buffer txt)]
     (-> state
         (update-buffer_ (constantly buffer))
         (set-marks_ (or caret 0) true (or anchor true) (or anchor caret))
@@ -311,13 +388,7 @@
 (defn row->col0-index--
   "Returns the index for the beginning of the 'row'"
   [lines row]
-  (let []
-    (loop [cnt 0 curr-row 0]
-      (if (= row curr-row)
-        cnt
-        (recur
-          (+ cnt (count (lines curr-row)))
-          (inc curr-row))))))
+  (lines/row->offset lines row))
 
 
 (defn row->col0-index_
@@ -335,19 +406,8 @@
   (+ ^int (row->col0-index_ state row) ^int col))
 
 
-(defn index->location-- [^PersistentVector lines index]
-  (let []
-    (loop [ix ^int index
-           row 0]
-      (let [ln (lines row)
-            ln-len (count ln)
-            ix-red (- ix ln-len)] ;; reduce index
-
-        (if (pos? ix-red) ;; We have not overshot
-          (recur ix-red (inc row))
-          (if (and (= ln-len ix) (= (last ln) \newline))
-            [(inc row) 0]
-            [row ix]))))))
+(defn index->location-- [lines index]
+  (lines/offset->location lines index))
 
 
 (defn index->location_ [state index]
@@ -397,16 +457,117 @@
         invalidate-derived_)))
 
 
+(defn- merge-format-requests [req strict? selection-start-line]
+  (let [{prev-strict? :strict? prev-row :selection-start-line} req
+        rows (remove nil? [prev-row selection-start-line])]
+    {:strict? (boolean (or prev-strict? strict?))
+     :selection-start-line (when (seq rows) (apply min rows))}))
+
+
 (defn- apply-formatter_
-  "Applies formatter on state, if a formatter has been set.
-  Optional 'strict?' is used when state is changed with data from the \"outside\" - e.g. pasted, or read from file."
+  "Requests formatting of the state, if a formatter has been set.
+  Optional 'strict?' is used when state is changed with data from the \"outside\" - e.g. pasted, or read from file.
+  The formatting is done a little later, on a background thread. See 'start-formatting'.
+  Requests made in the mean time are merged into one."
   [state & [strict? selection-start-line]]
-  (if-let [formatter (:content-formatter state)]
-    (formatter state strict? selection-start-line)
+  (if (:content-formatter state)
+    (update state :format-request merge-format-requests strict? selection-start-line)
     ;; else no formatting
     state))
 
 
+(defn- format_
+  "Does the requested formatting (if any) right away, and returns the new state."
+  [state]
+  (if-let [{:keys [strict? selection-start-line]} (:format-request state)]
+    (let [formatted
+          (-> state
+              (assoc :format-request nil)
+              ((:content-formatter state) strict? selection-start-line))]
+      (if (= (:version formatted) (:version state))
+        formatted
+        (update-step-after_ formatted)))
+    state))
+
+
+;;;; Formatting pipeline
+;;
+;; Edits are applied to the state (and shown) immediately, while formatting is done on a background thread,
+;; against the state as it was then (a snapshot).  Keystrokes in quick succession are formatted in one pass.
+;; The result is only committed (on the FX thread) if the state hasn't changed since the snapshot.
+;; Else it is dropped, and the newer state is formatted in stead:
+;; - right away if only marks etc. changed (same buffer version) - i.e. the formatting is "rebased",
+;; - after a new delay if the buffer has changed, as more keystrokes are likely coming.
+
+
+;; How long to wait for more keystrokes before formatting.
+(def ^:private FORMAT_DELAY_MS 5)
+
+
+(defonce ^:private ^ScheduledExecutorService formatting-executor
+  (Executors/newSingleThreadScheduledExecutor
+    (reify ThreadFactory
+      (newThread [_ r]
+        (doto (Thread. ^Runnable r "george-editor-formatter")
+          (.setDaemon true))))))
+
+
+(declare schedule-formatting)
+
+
+(defn- commit-formatted
+  "Called on the FX thread with the formatted 'result' of the state 'snapshot'."
+  [^Atom state_ ^AtomicBoolean scheduled snapshot result]
+  (let [state @state_]
+    (.set scheduled false)
+    (cond
+      (identical? state snapshot)
+      (reset! state_ (do-update-list_ result))
+
+      (nil? (:format-request state))
+      nil
+
+      (= (:version state) (:version snapshot))
+      (schedule-formatting state_ scheduled 0)
+
+      :default
+      (schedule-formatting state_ scheduled FORMAT_DELAY_MS))))
+
+
+(defn- format-snapshot [^Atom state_ ^AtomicBoolean scheduled]
+  (let [snapshot @state_
+        result
+        (try
+          (format_ snapshot)
+          (catch Throwable t
+            (.printStackTrace t)
+            ;; Give up on this request, in stead of retrying it forever.
+            (assoc snapshot :format-request nil)))]
+    (fx/later
+      (commit-formatted state_ scheduled snapshot result))))
+
+
+(defn- schedule-formatting [^Atom state_ ^AtomicBoolean scheduled ^long delay-ms]
+  (when (.compareAndSet scheduled false true)
+    (.schedule formatting-executor
+               ^Runnable #(format-snapshot state_ scheduled)
+               delay-ms
+               TimeUnit/MILLISECONDS)))
+
+
+(defn start-formatting
+  "Watches the state-atom, and formats the state whenever formatting has been requested."
+  [^Atom state_]
+  (let [scheduled (AtomicBoolean. false)]
+    (add-watch state_ ::formatting
+               (fn [_ _ _ state]
+                 (when (:format-request state)
+                   (schedule-formatting state_ scheduled FORMAT_DELAY_MS))))
+    (when (:format-request @state_)
+      (schedule-formatting state_ scheduled FORMAT_DELAY_MS))
+    state_))
+
+
 (defn- move_ [state steps move-prefcol? move-anchor? move-caret-if-sel-reset?]
   (let [car (int (caret_ state))
         anc (int (anchor_ state))
@@ -488,56 +649,332 @@
               true)))))
 
 
+(defn- merge-list-change
+  "Returns a new list-change for when the rows 'r0' - 'r1' (inclusive) of the lines have been replaced by 'k' rows.
+  'change' is the previous list-change (or nil), which the lines already differ from the list by."
+  [change ^long r0 ^long r1 ^long k]
+  (if (= change :all)
+    :all
+    (let [[^long from ^long removed ^long inserted] (or change [r0 0 0])
+          ;; In the lines' rows, before this edit
+          lo (min from r0)
+          hi (max (+ from inserted) (inc r1))
+          ;; Rows after the previous change are offset in the list.
+          list-hi (if (> hi (+ from inserted)) (+ hi (- removed inserted)) (+ from removed))
+          new-hi (+ hi (- k (inc (- r1 r0))))]
+      [lo (- list-hi lo) (- new-hi lo)])))
+
+
 (defn- do-update-list_
-  "Updates the observable-list  so it matches the buffer.
-  It uses the Meyer's Diff Algorithm: http://simplygenius.net/Article/DiffTutorial1
+  "Updates the observable-list so it matches the lines.
+  Edits record which rows they changed (see 'merge-list-change'), so only those are replaced in the list.
+  After a wholesale change, the Meyer's Diff Algorithm is used: http://simplygenius.net/Article/DiffTutorial1
 
   Make sure to require george.util-namespace, as installs the method 'diff/patch' for ObservableList."
   [state]
-  (let [state (ensure-derived_ state)
-        ^ObservableList olist (observable-list_ state)
-        edit-script (diff/diff (vec olist) (lines_ state))]
-    (diff/patch olist edit-script)
-    state))
+  (let [state (-> state ensure-derived_ apply-forget-max-offsets_)
+        ^LineList olist (observable-list_ state)
+        change (:list-change state)]
+    (cond
+      (nil? change)
+      nil
+
+      (= change :all)
+      (diff/patch olist (diff/diff (vec olist) (vec (lines_ state))))
+
+      :default
+      (let [[^long from ^long removed ^long inserted] change
+            lines (lines_ state)]
+        (.replace olist (int from) (int (+ from removed)) (mapv lines (range from (+ from inserted))))))
+    (assoc state :list-change nil)))
 
 
 (defn insert-at [buffer offset chars]
-  (u/insert-at buffer offset chars))
+  (b/insert-at buffer offset chars))
 
 
 (defn replace-range [buffer start end chars]
-  (u/replace-range buffer start end chars))
+  (b/replace-range buffer start end chars))
 
 
 (defn delete-range [buffer start end]
-  (u/remove-range buffer start end))
+  (b/delete-range buffer start end))
+
+
+(defn- edit-buffer_
+  "Replaces the range 'start' - 'end' in the buffer with 'chars'.
+  If the state has lines, then they are updated from the touched rows only, in stead of being invalidated."
+  [state start end chars]
+  (let [prev-buffer (buffer_ state)
+        buffer (replace-range prev-buffer start end chars)
+        new-end (- (count buffer) (- (count prev-buffer) ^int end))]
+    (if-let [lines (lines_ state)]
+      (let [new-lines (b/edit-lines lines buffer start end new-end)
+            r0 (lines/offset->row lines start)
+            r1 (lines/offset->row lines end)
+            k (- (inc (lines/offset->row new-lines new-end)) r0)
+            engine (:block-engine state)
+            engine (when engine (readers/mark-edit engine r0 r1 k))
+            edited (:edited-rows state)]
+        (-> state
+            (update :version inc)
+            (assoc :buffer buffer
+                   :lines new-lines
+                   ;; marks that values derived from lines must be updated. See 'ensure-lines_'
+                   :line-count nil
+                   :block-engine engine
+                   :edited-rows (if (= edited :all) :all (lines/merge-dirty edited r0 r1 k))
+                   :list-change (merge-list-change (:list-change state) r0 r1 k))
+            invalidate-blocks_
+            invalidate-derived_))
+      (-> state
+          (update :version inc)
+          (assoc :buffer buffer)
+          invalidate-lines_))))
+
+
+(defn edited-rows_
+  "Returns the rows changed since 'reset-edited-rows_' was last called (by the formatter):
+  [lo hi] (inclusive), :all if the buffer was changed wholesale, or nil."
+  [state]
+  (:edited-rows state))
+
+
+(defn reset-edited-rows_ [state]
+  (assoc state :edited-rows nil))
+
+
+;;;; Undo/redo
+;;
+;; The history is kept as compact deltas, not as snapshots of the buffer:
+;; A delta is [offset removed-str inserted-str], and a step is a vector of deltas,
+;; together with the caret and anchor before and after.
+;; Edits done by the formatter are added to the step which caused them.
+;; Bursts of typing (or deleting) are grouped into one step.
+;; Undo and redo apply their deltas through 'edit-buffer_', so they are as incremental as the original edits.
+;; When the history grows beyond the memory limit, the oldest steps are dropped.
+
+
+;; Edits of the same kind are grouped into one step, unless there is a pause longer than this.
+(def ^:private UNDO_GROUP_MS 1000)
+
+(def ^:private GROUPED_KINDS #{:typed :deleted})
+
+
+(defn- delta-bytes
+  "Approximate memory held by a delta: 2 bytes per char, plus some overhead."
+  ^long [[_ ^String removed ^String inserted]]
+  (+ 64 (* 2 (+ (.length removed) (.length inserted)))))
+
+
+(defn- coalesce-deltas
+  "Returns a single delta equivalent to 'd1' followed by 'd2', or nil if they are not adjacent."
+  [[^long o1 ^String r1 ^String i1 :as d1] [^long o2 ^String r2 ^String i2]]
+  (let [end1 (+ o1 (.length i1))]
+    (cond
+      ;; typing on
+      (and (.isEmpty r2) (= o2 end1))
+      [o1 r1 (str i1 i2)]
+      ;; deleting what was just inserted
+      (and (.isEmpty i2) (<= o1 o2) (= (+ o2 (.length r2)) end1))
+      [o1 r1 (subs i1 0 (- o2 o1))]
+      ;; backspacing on
+      (and (.isEmpty i1) (.isEmpty i2) (= (+ o2 (.length r2)) o1))
+      [o2 (str r2 r1) ""]
+      ;; deleting forwards on
+      (and (.isEmpty i1) (.isEmpty i2) (= o2 o1))
+      [o1 (str r1 r2) ""]
+      :default
+      nil)))
+
+
+(defn- add-delta [{:keys [deltas] :as step} delta]
+  (let [prev (peek deltas)
+        merged (when prev (coalesce-deltas prev delta))]
+    (if merged
+      (-> step
+          (assoc :deltas (conj (pop deltas) merged))
+          (update :bytes + (- (delta-bytes merged) (delta-bytes prev))))
+      (-> step
+          (assoc :deltas (conj deltas delta))
+          (update :bytes + (delta-bytes delta))))))
+
+
+(defn- trim-undo_
+  "Drops the oldest steps until the history is within the memory limit.  The latest step is always kept."
+  [{:keys [undo-steps ^long undo-bytes ^long undo-limit] :as state}]
+  (if (and (> undo-bytes undo-limit) (> (count undo-steps) 1))
+    (recur (assoc state
+                  :undo-steps (fv/subvec undo-steps 1)
+                  :undo-bytes (- undo-bytes ^long (:bytes (first undo-steps)))))
+    state))
+
+
+(defn- reset-undo_ [state]
+  (assoc state
+         :undo-steps (fv/vector)
+         :redo-steps ()
+         :undo-bytes 0
+         :undo-group nil
+         :undo-next nil))
+
+
+(defn set-undo-limit_
+  "Sets the (approximate) max memory in bytes used by the undo-history."
+  [state ^long limit]
+  (-> state
+      (assoc :undo-limit limit)
+      trim-undo_))
 
 
-(defn update-buffer_ [state f & args]
-  ;(println "/update-buffer_"); f args)
-  (let [buffer (buffer_ state)
-        buffer (apply f (cons buffer args))]
-        ;lines (b/split-buffer-lines buffer)]
+(defn- begin-step_
+  "Call before an edit-command.  The edits done by the command will become a new step,
+  or be added to the previous step, if the command continues a burst of typing or deleting."
+  [state kind]
+  (let [{group-kind :kind ^long time :time marks :marks} (:undo-group state)
+        now (System/currentTimeMillis)
+        group? (and (GROUPED_KINDS kind)
+                    (= kind group-kind)
+                    (< (- now time) ^long UNDO_GROUP_MS)
+                    (= marks (caret-anchor_ state)))]
+    (assoc state :undo-next {:kind kind :time now :group? group? :version (:version state)})))
+
+
+(defn- end-step_
+  "Call after an edit-command.  Records the caret and anchor after the step - if the command did any edits."
+  [state]
+  (let [{:keys [kind time version]} (:undo-next state)
+        state (assoc state :undo-next nil)]
+    (if (or (nil? kind) (= version (:version state)) (empty? (:undo-steps state)))
+      state
+      (let [marks (caret-anchor_ state)
+            steps (:undo-steps state)]
+        (-> state
+            (assoc :undo-steps (conj (pop steps) (assoc (peek steps) :after marks))
+                   :undo-group {:kind kind :time time :marks marks})
+            trim-undo_)))))
+
+
+(defn- update-step-after_
+  "Updates the caret and anchor after the latest step, as the formatter may have moved them."
+  [state]
+  (let [steps (:undo-steps state)
+        marks (caret-anchor_ state)]
+    (if (empty? steps)
+      state
+      (cond-> (assoc state :undo-steps (conj (pop steps) (assoc (peek steps) :after marks)))
+              (:undo-group state) (assoc-in [:undo-group :marks] marks)))))
+
+
+(defn- record-edit_
+  "Adds the edit to the history - to a new step if one has been begun, else to the latest step.
+  Any edit makes the redo-steps invalid."
+  [state ^long start ^long end chars]
+  (let [delta [start
+               (b/buffer->string (fv/subvec (buffer_ state) start end))
+               (b/buffer->string chars)]
+        {:keys [undo-steps redo-steps ^long undo-bytes]} state
+        next (:undo-next state)
+        new? (or (empty? undo-steps) (and next (not (:group? next))))
+        step (if new?
+               {:deltas [] :bytes 0 :before (caret-anchor_ state) :after nil}
+               (peek undo-steps))
+        step1 (add-delta step delta)]
+    (assoc state
+           :undo-steps (conj (if new? undo-steps (pop undo-steps)) step1)
+           :redo-steps ()
+           :undo-bytes (+ (- undo-bytes ^long (reduce + 0 (map :bytes redo-steps)) ^long (:bytes step))
+                          ^long (:bytes step1))
+           ;; Following edits in the same command go into this step.
+           :undo-next (when next (assoc next :group? true)))))
+
+
+(defn- apply-step_
+  "Applies the deltas of 'step' - in reverse and inverted if 'undo?' - and sets the marks accordingly."
+  [state step undo?]
+  (let [deltas (:deltas step)
+        state
+        (if undo?
+          (reduce (fn [state [^long offset ^String removed ^String inserted]]
+                    (edit-buffer_ state offset (+ offset (.length inserted)) removed))
+                  state
+                  (rseq deltas))
+          (reduce (fn [state [^long offset ^String removed ^String inserted]]
+                    (edit-buffer_ state offset (+ offset (.length removed)) inserted))
+                  state
+                  deltas))
+        [caret anchor] (if undo? (:before step) (:after step))]
     (-> state
-        (assoc :buffer buffer)
-        invalidate-lines_)))
+        ;; No formatting. The state is restored to how it was.
+        (assoc :format-request nil
+               :undo-group nil)
+        (set-marks_ caret true true anchor)
+        do-update-list_
+        ensure-derived_)))
+
+
+(defn undo_ [state]
+  (let [steps (:undo-steps state)]
+    (if (empty? steps)
+      state
+      (let [step (peek steps)]
+        (-> state
+            (assoc :undo-steps (pop steps)
+                   :redo-steps (conj (:redo-steps state) step))
+            (apply-step_ step true))))))
+
+
+(defn redo_ [state]
+  (let [steps (:redo-steps state)]
+    (if (empty? steps)
+      state
+      (let [step (peek steps)]
+        (-> state
+            (assoc :undo-steps (conj (:undo-steps state) step)
+                   :redo-steps (pop steps))
+            (apply-step_ step false))))))
+
+
+(defn update-buffer_
+  "Edits 'op' - :insert [offset chars], :replace [start end chars] or :delete [start end] -
+  update the lines incrementally, and are recorded in the undo-history.
+  If 'op' is a function, then it is applied to the buffer (and 'args'),
+  which is considered a wholesale change of the buffer, and clears the undo-history."
+  [state op & args]
+  ;(println "/update-buffer_"); op args)
+  (let [state (cond-> state (:annotations state) (assoc :annotations nil))]
+    (case op
+      :insert
+      (let [[offset chars] args] (-> state (record-edit_ offset offset chars) (edit-buffer_ offset offset chars)))
+      :replace
+      (let [[start end chars] args] (-> state (record-edit_ start end chars) (edit-buffer_ start end chars)))
+      :delete
+      (let [[start end] args] (-> state (record-edit_ start end nil) (edit-buffer_ start end nil)))
+      ;; default
+      (-> state
+          (update :version inc)
+          (assoc :buffer (apply op (cons (buffer_ state) args)))
+          reset-undo_
+          invalidate-lines_))))
 
 (defn keytyped_
   "Returns an updated state."
   [state ch]
   ;(prn "state/keytyped_" ch (int ch))
   (let [[^int car anc :as car-anc] (caret-anchor_ state)
+        state (begin-step_ state (if (= ch \newline) :newline :typed))
         state
         (if (not= car anc) ;; there is a selection
           (let [[^int start end] (sort car-anc)]
              (-> state
-                 (update-buffer_ replace-range start end [ch])
+                 (update-buffer_ :replace start end [ch])
                  (set-marks_ (inc start) true true)))
           (-> state
-              (update-buffer_ insert-at car [ch])
+              (update-buffer_ :insert car [ch])
               (set-marks_ (inc car) true true)))]
 
     (-> state
+        end-step_
         (apply-formatter_ false)
         do-update-list_)))
 
@@ -552,40 +989,46 @@
         [start end]
         (sort car-anc)
 
+        state
+        (begin-step_ state :deleted)
+
         state
         (if (not= start end)
           (-> state
-              (update-buffer_ delete-range start end)
+              (update-buffer_ :delete start end)
               (set-marks_ start true true))
 
           (if (and (neg? ^int direction))
             ;; backspace
             (if (> car 0)
               (-> state
-                  (update-buffer_ delete-range (dec car) car)
+                  (update-buffer_ :delete (dec car) car)
                   (set-marks_ (dec car) true true))
               state)
             ;; delete (forward)
             (if (< car ^int (length_ state))
               (-> state
-                  (update-buffer_ delete-range car (inc car)))
+                  (update-buffer_ :delete car (inc car)))
               state)))]
 
        (-> state
+           end-step_
            (apply-formatter_ false)
            do-update-list_)))
 
 
 (defn tab_ [state]
-  (let [[state first-row] ((:tabber state) state :tab)]
+  (let [[state first-row] ((:tabber state) (begin-step_ state :tab) :tab)]
     (-> state
+      end-step_
       (apply-formatter_ false first-row)
       do-update-list_)))
 
 
 (defn untab_ [state]
-  (let [[state first-row] ((:tabber state) state :untab)]
+  (let [[state first-row] ((:tabber state) (begin-step_ state :untab) :untab)]
     (-> state
+        end-step_
         (apply-formatter_ false first-row)
         do-update-list_)))
 
@@ -627,8 +1070,10 @@
       state
       (-> state
           copy_
-          (update-buffer_ delete-range start end)
+          (begin-step_ :cut)
+          (update-buffer_ :delete start end)
           (set-marks_ start true true)
+          end-step_
           (apply-formatter_ false)
           do-update-list_))))
 
@@ -638,8 +1083,10 @@
     (let [[^int start end] (sort (caret-anchor_ state))
           len (count s)]
       (-> state
-          (update-buffer_ replace-range start end (vec s))
+          (begin-step_ :paste)
+          (update-buffer_ :replace start end (vec s))
           (set-marks_ (+ start len) true true)
+          end-step_
           ;; TODO: Should be '(apply-formatter_ true)' - but only when colorcoding is in place - to show where the error is!
           (apply-formatter_ false)
           do-update-list_))))
@@ -669,6 +1116,10 @@
     (copy_ state)
     :paste
     (paste_ state)
+    :undo
+    (undo_ state)
+    :redo
+    (redo_ state)
 
     ;; else pull apart the keyword for types of navigation/selection
     (let [[typ dir aux] (-> kw name (cs/split #"-") (#(mapv keyword %)))
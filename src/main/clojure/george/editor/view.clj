@@ -14,7 +14,8 @@
     [george.util.text :as ut])
 
   (:import (org.fxmisc.flowless Cell VirtualFlow)
-           (javafx.scene.text Text)
+           (javafx.scene.text Text Font)
+           (java.util ArrayList Arrays)
            (javafx.scene.layout Region StackPane Pane)
            (javafx.geometry Pos Insets BoundingBox Bounds)
            (javafx.scene Node Group Parent)
@@ -75,6 +76,10 @@
 (def DEFAULT_GUTTER_BACKGROUND (fx/color-background DEFAULT_LINE_BACKGROUND_COLOR));(fx/web-color "#ddd")))
 (def DEFAULT_GUTTER_BORDER (fx/new-border DEFAULT_CURRENT_LINE_BORDER_COLOR [0 1 0 0]))
 
+(def DEFAULT_ANNOTATION_TEXT_FILL (fx/web-color "#a0522d"))
+(def DEFAULT_ANNOTATION_BACKGROUND (fx/color-background (fx/web-color "#fff8e8")))
+(def DEFAULT_ANNOTATION_INSETS (fx/insets 0.0, 8.0, 0.0, 8.0))
+
 
 (defn- ^Node selection-background-factory [^double w ^double h c]
   (let [rect (fx/rectangle :size [(inc w) h])]
@@ -125,11 +130,50 @@
   ^double (getMaxOffsetXforBlocks []))
 
 
+(definterface ILineLayout
+  ;; (Re-)lays out the chars, reusing nodes where possible.
+  (setChars [chars])
+  ;; The offset of the left side of 'col'. (Equals the right side of the previous col.)
+  ^double (getOffsetX [^int col])
+  ;; The col nearest to offset-x
+  ^int (getColumn [^double offset-x])
+  ^double (getCharWidth [^int col])
+  ^double (getWidth []))
+
+
 (definterface IGutter
   ^double (getWidth [])
   (setText [^String s]))
 
 
+;;;; Node recycling
+;;
+;; Cells are reused by the VirtualFlow (see 'new-line-cell'),
+;; and each cell keeps and reuses its child-nodes from one item to the next.
+;; The nodes of a pane are kept in a pool (an ArrayList), and the children of the pane
+;; are always the first nodes of the pool.
+
+
+(defn- pooled
+  "Returns the node at 'i' in the pool, adding a new one from 'factory' if needed."
+  [^ArrayList pool ^long i factory]
+  (if (< i (.size pool))
+    (.get pool i)
+    (let [n (factory)]
+      (.add pool n)
+      n)))
+
+
+(defn- sync-children!
+  "Makes the children of 'pane' be the first 'used' nodes in 'pool', leaving nodes already in place alone."
+  [^Pane pane ^ArrayList pool ^long used]
+  (let [children (.getChildren pane)
+        k (.size children)]
+    (cond
+      (< k used) (.addAll children (.subList pool k used))
+      (> k used) (.remove children (int used) (int k)))))
+
+
 (defn- new-row-gutter
   "AKA (left) margin, graphic, number-row.
   Let's use this as a general data-carrier for the line"
@@ -191,7 +235,8 @@
 
 
 (defn- calculate-offset
-  "Returns the offset-x of where the mark (anchor/caret) should be inserted."
+  "Returns the offset-x of where the mark (anchor/caret) should be inserted.
+  Used by 'char-layout'."
   [texts ^long col]
   (if (zero? col)
     0.0
@@ -205,15 +250,13 @@
 (defn- calculate-max-offset-for-block
   "Returns the offset-x of where the block should end.
   Should not include newline-end"
-  [chars texts]
+  [chars ^ILineLayout layout]
   (if (empty? chars)
     0.0
     (let [col (- (count chars) (if (ut/newline-end? chars) 3 2))]
-      (try
-        (-> ^Text (get texts col)
-            .getBoundsInParent
-            .getMaxX)
-        (catch NullPointerException _ 0.0)))))
+      (if (neg? col)
+        0.0
+        (.getOffsetX layout (inc col))))))
 
 
 (defn- max-offset-x
@@ -231,130 +274,186 @@
     (catch ClassCastException _ 0.0)))
 
 (defn max-offset-x-mem
-  "Implements a memoize functionality, but using an atom from state, which gets reset whenever blocks reset."
-  [^VirtualFlow flow first-row last-row mem_]
-  (let [k [first-row last-row]
-        x (@mem_ k)]
+  "Implements a memoize functionality, but using an atom from state.
+  It is keyed on the block's id, which is stable for as long as the block is unchanged.
+  The state removes entries for blocks which have changed."
+  [^VirtualFlow flow {id :id [first-row _] :first [last-row _] :last} mem_]
+  (let [x (@mem_ id)]
     (if x
         x
         (let [x (max-offset-x flow first-row last-row)]
-          (swap! mem_ assoc k x)
+          (swap! mem_ assoc id x)
           x))))
 
 
-(defn find-block-spans [ranges mem_ row flow texts]
-  (let [;; Get the x-offsets for start and end.
-        spans
-        (map #(let [{[frow fcol] :first [lrow lcol] :last} %
-                    first?  (= row frow)
-                    last?   (= row lrow)
-                    start-x (calculate-offset texts fcol)
-                    end-x   (if last?
-                              (calculate-offset texts (inc ^int lcol))
-                              (max-offset-x-mem flow frow lrow mem_))]
-                [start-x end-x first? last?])
-             ranges)]
-    spans))
-
-
-(defn set-blocks [^StackPane blocks-pane all-ranges mem_ row flow texts]
-  (->  blocks-pane .getChildren .clear)
-  (let [ranges (get all-ranges row)]
-    (when-not (empty? ranges)
-      (let [h DEFAULT_LINE_HEIGHT
-            spans (find-block-spans ranges mem_ row flow texts)]
-
-        (doseq [[i [^double x1 ^double x2 first? last?]] (map-indexed vector spans)]
-          (let [padding-left 0.5 ;; slightly more generous to the left
-                x (- x1 padding-left)
-                y (if first? 0.5 0)
-                w (+ ^double (* (- x2 x)) padding-left)
-                h (if (or first? last?) (- h 0.5) h)
-                r 6.0
-                b 1.5
-                corner-radii
-                (if (and first? last?)
-                    [r r r r]
-                    (if first?
-                        [r r 0 0]
-                        (if last?
-                            [0 0 r r]
-                            0)))
-                background
-                (fx/color-background (DEFAULT_BLOCK_COLORS (mod i DBCC)) corner-radii)
-                background-region
-                (doto (Region.)
-                      (.setMaxSize w h)
-                      (.setMinSize w h)
-                      (fx/set-translate-XY [x y])
-                      (fx/set-background background)
-                      (.setBorder
-                        (fx/new-border
-                          (DEFAULT_BLOCK_BORDERS (mod i DBCC)) ;; color
-                          [(if first? b 0) b (if last? b 0) b] ;; widths
-                          corner-radii)))]
-            (-> blocks-pane .getChildren (.add background-region))))))))
+(def ^:private BLOCK_CORNER_RADIUS 6.0)
+(def ^:private BLOCK_BORDER_WIDTH 1.5)
+
+
+(defn- new-block-style
+  "Returns [background border] for a block-part."
+  [i first? last?]
+  (let [r BLOCK_CORNER_RADIUS
+        b BLOCK_BORDER_WIDTH
+        corner-radii
+        (if (and first? last?)
+            [r r r r]
+            (if first?
+                [r r 0 0]
+                (if last?
+                    [0 0 r r]
+                    0)))]
+    [(fx/color-background (DEFAULT_BLOCK_COLORS i) corner-radii)
+     (fx/new-border
+       (DEFAULT_BLOCK_BORDERS i) ;; color
+       [(if first? b 0) b (if last? b 0) b] ;; widths
+       corner-radii)]))
+
+
+(def ^:private BLOCK_STYLES
+  "Backgrounds and borders for blocks, so they needn't be created for every cell.
+  Look up with: (((BLOCK_STYLES i) first-index) last-index)"
+  (mapv (fn [i]
+          (mapv (fn [first?]
+                  (mapv (fn [last?] (new-block-style i first? last?))
+                        [false true]))
+                [false true]))
+        (range DBCC)))
+
+
+(defn set-blocks
+  "'ranges' are the blocks overlapping 'row', outermost first.
+  Reuses the Regions from 'pool'."
+  [^StackPane blocks-pane ^ArrayList pool ranges mem_ row flow ^ILineLayout layout]
+  (loop [i 0
+         ranges (seq ranges)]
+    (if-let [block (first ranges)]
+      (let [{[frow fcol] :first [lrow lcol] :last} block
+            first?  (= row frow)
+            last?   (= row lrow)
+            ;; Get the x-offsets for start and end.
+            x1 (.getOffsetX layout fcol)
+            ^double x2 (if last?
+                         (.getOffsetX layout (inc ^int lcol))
+                         (max-offset-x-mem flow block mem_))
+            padding-left 0.5 ;; slightly more generous to the left
+            x (- x1 padding-left)
+            y (if first? 0.5 0.0)
+            w (+ (- x2 x) padding-left)
+            h (if (or first? last?) (- DEFAULT_LINE_HEIGHT 0.5) DEFAULT_LINE_HEIGHT)
+            [background border] (((BLOCK_STYLES (mod i DBCC)) (if first? 1 0)) (if last? 1 0))]
+        (doto ^Region (pooled pool i #(Region.))
+              (.setMaxSize w h)
+              (.setMinSize w h)
+              (.setTranslateX x)
+              (.setTranslateY y)
+              (.setBackground background)
+              (.setBorder border))
+        (recur (inc i) (next ranges)))
+      (sync-children! blocks-pane pool i))))
+
+
+(defn- new-marks
+  "Adds (invisible) nodes for selection, anchor and caret to 'pane', and returns them in a map.
+  They are then reused by 'set-marks'."
+  [^StackPane pane]
+  (let [selection (selection-background-factory 0.0 DEFAULT_LINE_HEIGHT nil)
+        newline-selection (doto (Ellipse. 0.0 (/ ^double DEFAULT_LINE_HEIGHT 2))
+                            (-> .getStyleClass (.add "selection")))
+        anchor (anchor-factory DEFAULT_LINE_HEIGHT)
+        caret ^Node (DEFAULT_CURSOR_FACTORY DEFAULT_LINE_HEIGHT)
+        marks {:selection selection
+               :newline-selection newline-selection
+               :anchor anchor
+               :caret caret}]
+    (doseq [^Node n [newline-selection selection anchor caret]]
+      (.setVisible n false))
+    (-> pane .getChildren (.setAll (fxj/vargs-t Node newline-selection selection anchor caret)))
+    marks))
+
+
+(defn- hide-marks [{:keys [selection newline-selection anchor caret]}]
+  (.setVisible ^Node selection false)
+  (.setVisible ^Node newline-selection false)
+  (.setVisible ^Node anchor false)
+  (.setVisible ^Node caret false))
 
 
 (defn- set-marks
-  "Inserts and lays out markings (caret, anchor, select) if any, on the passed-in pane."
-  [^StackPane pane {:keys [caret anchor caret-pos anchor-pos lines]} row chars texts]
+  "Lays out markings (caret, anchor, select) if any, using the nodes from 'new-marks'."
+  [{:keys [^Rectangle selection ^Ellipse newline-selection ^Node anchor ^Node caret]}
+   {:keys [caret anchor caret-pos anchor-pos lines]} row chars ^ILineLayout layout]
   (let [
         [crow ccol] caret-pos
         [arow acol] anchor-pos
 
-        [low ^int high] (sort [caret anchor])
-        do-mark? (partial u/in-range? low (dec high))
-
-        ^int row-index (st/location->index-- lines [row 0])]
-
-    (loop [i 0 x 0.0]
-      (when-let [text ^Text (get texts i)]
-        (let [w (-> text .getBoundsInParent .getWidth)]
-          (when (do-mark? (+ row-index i))
-            (let [marking (selection-background-factory w DEFAULT_LINE_HEIGHT (chars i))]
-              (.setTranslateX ^Node marking (- x 0.5)) ;; offset half pixel to left
-              (-> pane .getChildren (.add marking))))
-          (recur (inc i) (+ x w)))))
-
+        low (min ^int caret ^int anchor)
+        high (max ^int caret ^int anchor)
+
+        row-index (long (st/row->col0-index-- lines row))
+        ;; The selected cols of this row: start (inclusive) end (exclusive)
+        start (max 0 (- low row-index))
+        end (min (count chars) (- high row-index))
+        selected? (< start end)
+        newline-selected? (and selected? (= (chars (dec end)) \newline))]
+
+    (.setVisible selection selected?)
+    (when selected?
+      (let [x0 (.getOffsetX layout start)
+            x1 (.getOffsetX layout end)]
+        (.setTranslateX selection (- x0 0.5)) ;; offset half pixel to left
+        (.setWidth selection (inc (- x1 x0)))))
+
+    (.setVisible newline-selection newline-selected?)
+    (when newline-selected?
+      (let [nl (dec end)]
+        (.setRadiusX newline-selection (.getCharWidth layout nl))
+        (.setTranslateX newline-selection (- (.getOffsetX layout nl) 0.5))))
+
+    (.setVisible anchor (= arow row))
     (when (= arow row)
-      (let [anchor (anchor-factory DEFAULT_LINE_HEIGHT)]
-        (.setTranslateX anchor (- ^double (calculate-offset texts acol) 0.25))
-        (-> pane .getChildren (.add anchor))))
+      (.setTranslateX anchor (- (.getOffsetX layout acol) 0.25)))
 
+    (.setVisible caret (= crow row))
     (when (= crow row)
-      (let [caret ^Node (DEFAULT_CURSOR_FACTORY DEFAULT_LINE_HEIGHT)]
-        (.setTranslateX caret (- ^double (calculate-offset texts ccol) 1.0)) ;; negative offset for cursor width
-        (-> pane .getChildren (.add caret))))))
+      (.setTranslateX caret (- (.getOffsetX layout ccol) 1.0))))) ;; negative offset for cursor width
 
 
-(defn- highlight-row [^StackPane pane current-row?]
+(def ^:private CURRENT_LINE_BORDER (fx/new-border  DEFAULT_CURRENT_LINE_BORDER_COLOR [1 0 1 0]))
+(def ^:private CURRENT_LINE_BACKGROUND (fx/color-background DEFAULT_CURRENT_LINE_BACKGROUND_COLOR))
+(def ^:private LINE_BORDER (fx/new-border  DEFAULT_LINE_BACKGROUND_COLOR [1 0 1 0]))
+(def ^:private LINE_BACKGROUND (fx/color-background DEFAULT_LINE_BACKGROUND_COLOR))
+
+
+(defn- highlight-row [^Region pane current-row?]
   (if current-row?
     (doto pane
-      (.setBorder (fx/new-border  DEFAULT_CURRENT_LINE_BORDER_COLOR [1 0 1 0]))
-      (.setBackground (fx/color-background DEFAULT_CURRENT_LINE_BACKGROUND_COLOR))
+      (.setBorder CURRENT_LINE_BORDER)
+      (.setBackground CURRENT_LINE_BACKGROUND)
       (.setMaxHeight (dec DEFAULT_LINE_HEIGHT)))
     (doto pane
-      (.setBorder (fx/new-border  DEFAULT_LINE_BACKGROUND_COLOR [1 0 1 0]))
-      (fx/set-background DEFAULT_LINE_BACKGROUND_COLOR)
+      (.setBorder LINE_BORDER)
+      (.setBackground LINE_BACKGROUND)
       (.setMaxHeight (dec DEFAULT_LINE_HEIGHT)))))
 
 
 (defn- set-marks-and-line
   "If the row is in the set, then delegates the task"
   [line-background-pane
-   ^StackPane marks-pane
+   marks
    {:keys [current-row-p? marked-row-p?] :as derived}
-   row chars texts]
+   row chars layout]
 
   (highlight-row line-background-pane (current-row-p? row))
 
-  (->  marks-pane .getChildren .clear)
-  (when (marked-row-p? row)
-    (set-marks ^StackPane marks-pane derived row chars texts)))
+  (if (marked-row-p? row)
+    (set-marks marks derived row chars layout)
+    (hide-marks marks)))
 
 
-(defn- calculate-col [^double offset-x char-nodes]
+(defn- calculate-col
+  "Used by 'char-layout'."
+  [^double offset-x char-nodes]
   (if (neg? offset-x)
     0
     (loop [col 0 x 0.0   nodes char-nodes]
@@ -369,6 +468,172 @@
         col))))  ;; Ran out of nodes.  Just return what we have.
 
 
+;;;; Line layouts
+;;
+;; A line is either laid out with one Text-node per char (the original mode, kept as a fallback),
+;; or with one Text-node per run of equally styled chars, positioned from a table of glyph-advances.
+;; In the latter, offsets and columns are calculated arithmetically (or with a binary search),
+;; in stead of by reading back the bounds of nodes.
+
+
+(defonce
+  ^{:doc "Either :runs (default) or :chars. Applies to cells created after it is changed."}
+  render-mode_ (atom :runs))
+
+
+(defn- char-layout [^StackPane pane]
+  (let [texts_ (volatile! [])]
+    (reify ILineLayout
+      (setChars [_ chars]
+        (vreset! texts_ (layout-texts pane chars)))
+      (getOffsetX [_ col]
+        (calculate-offset @texts_ col))
+      (getColumn [_ offset-x]
+        (calculate-col offset-x @texts_))
+      (getCharWidth [_ col]
+        (-> ^Text (get @texts_ col) .getBoundsInParent .getWidth))
+      (getWidth [_]
+        (if (empty? @texts_)
+          0.0
+          (-> ^Text (peek @texts_) .getBoundsInParent .getMaxX))))))
+
+
+(def ^:private ^doubles ASCII_ADVANCES (double-array 256 Double/NaN))
+
+(def ^:private advances_ (atom {}))
+
+
+(defn- measure-advance ^double [ch]
+  (-> ^Text (new-text ch) .getLayoutBounds .getMaxX))
+
+
+(defn- glyph-advance
+  "Returns the (cached) advance of the char, as it is laid out by 'new-text'."
+  ^double [ch]
+  (let [i (int (char ch))]
+    (if (< i 256)
+      (let [a (aget ASCII_ADVANCES i)]
+        (if (Double/isNaN a)
+          (let [a (measure-advance ch)]
+            (aset ASCII_ADVANCES i a)
+            a)
+          a))
+      (if-let [a (@advances_ ch)]
+        a
+        (let [a (measure-advance ch)]
+          (swap! advances_ assoc ch a)
+          a)))))
+
+
+(defn- char-style [ch]
+  (cond
+    (= ch \newline) :single
+    (= ch \tab) :single
+    (paren-chars ch) :paren
+    :default :text))
+
+
+(defn- style-text!
+  "Styles a (possibly reused) Text-node to look like one made by 'new-text'.
+  Only touches the text if it has actually changed."
+  [^Text text style ^StringBuilder sb]
+  (let [single? (= style :single)
+        ch (.charAt sb 0)
+        ^CharSequence cs
+        (if single?
+          (cond (= ch \newline) (str " " \u21A9) (= ch \tab) (str \u21E5) :default (str ch))
+          sb)]
+    (when-not (.contentEquals ^String (.getText text) cs)
+      (.setText text (str cs)))
+    (if single?
+      (doto text
+        (.setFont (Font/getDefault))
+        (.setWrappingWidth (if (= ch \tab) DEFAULT_TAB_WIDTH 0.0))
+        (.setFill DEFAULT_HIDDEN_CHAR_COLOR))
+      (doto text
+        (.setFont DEFAULT_FONT)
+        (.setWrappingWidth 0.0)
+        (.setFill (if (= style :paren) Color/BLUE DEFAULT_TEXT_COLOR))))))
+
+
+(defn- new-pooled-text []
+  (Text. ""))
+
+
+(deftype RunLayout [^StackPane pane
+                    ^ArrayList pool
+                    ^StringBuilder sb
+                    ^:unsynchronized-mutable ^doubles offsets
+                    ^:unsynchronized-mutable ^long n]
+  ILineLayout
+  (setChars [_ chars]
+    (let [k (count chars)]
+      (when (< (alength offsets) (inc k))
+        (set! offsets (double-array (inc k))))
+      (set! n k))
+    ;; Mutable fields can't be closed over.
+    (let [^doubles offsets offsets
+          n (long n)
+          flush-run
+          (fn [style ^long start ^long used]
+            (if (pos? (.length sb))
+              (do
+                (doto ^Text (pooled pool used new-pooled-text)
+                  (style-text! style sb)
+                  (.setTranslateX (aget offsets start)))
+                (.setLength sb 0)
+                (inc used))
+              used))]
+      (loop [i 0 x 0.0 start 0 style nil used 0]
+        (if (< i n)
+          (let [ch (nth chars i)
+                st (char-style ch)
+                new-run? (or (not= st style) (= st :single))
+                used (if new-run? (flush-run style start used) used)]
+            (aset offsets i x)
+            (.append sb (char ch))
+            (recur (inc i) (+ x (glyph-advance ch)) (if new-run? i start) st used))
+          (do
+            (aset offsets n x)
+            (sync-children! pane pool (flush-run style start used)))))))
+
+  (getOffsetX [_ col]
+    (aget offsets (max 0 (min col n))))
+
+  (getColumn [_ offset-x]
+    (if (neg? offset-x)
+      0
+      (let [i (Arrays/binarySearch offsets 0 (inc n) offset-x)]
+        (if (>= i 0)
+          i  ;; exactly on a boundary
+          (let [col (- (- i) 2)] ;; the char which 'offset-x' is within
+            (if (>= col n)
+              n ;; Past the end
+              (let [x0 (aget offsets col)
+                    x1 (aget offsets (inc col))]
+                ;; Round up if right of center of char
+                (if (> offset-x (+ x0 (/ (- x1 x0) 2))) (inc col) col))))))))
+
+  (getCharWidth [_ col]
+    (- (aget offsets (inc col)) (aget offsets col)))
+
+  (getWidth [_]
+    (aget offsets n)))
+
+
+(defn- run-layout [^StackPane pane]
+  (RunLayout. pane (ArrayList.) (StringBuilder.) (double-array 128) 0))
+
+
+(defn- new-line-layout
+  "Returns an ILineLayout for 'pane' according to 'render-mode_'.
+  It reuses its nodes every time 'setChars' is called."
+  [pane]
+  (if (= @render-mode_ :chars)
+    (char-layout pane)
+    (run-layout pane)))
+
+
 (defn ensure-caret-visible [^VirtualFlow flow state]
   (let [[^long row col] (:caret-pos state)
         cell (.getCell flow row)
@@ -410,13 +675,15 @@
       (.show flow (inc row)))))
 
 
-(defn- new-scrolling-part [gutter text-pane marks-pane blocks-pane scroll-offset_ chars texts]
+(defn- set-scrolling-width [^Region scrolling-part ^ILineLayout layout]
+  (let [insets ^Insets DEFAULT_LINE_INSETS]
+    (.setPrefWidth scrolling-part (+ (.getLeft insets) (.getWidth layout) (.getRight insets)))))
+
+
+(defn- new-scrolling-part [gutter text-pane marks-pane blocks-pane scroll-offset_ chars_ ^ILineLayout layout]
   (let [
         insets ^Insets DEFAULT_LINE_INSETS
         inset-left (.getLeft  insets)
-        inset-right (.getRight insets)
-        texts-width (if (empty? texts) 0.0 (.getMaxX ^Bounds (.getBoundsInParent ^Text (last texts))))
-        pref-width (+ inset-left texts-width inset-right)
 
         scrolling-pane
         (doto
@@ -428,102 +695,149 @@
                     col
                     (if (<  (- offset-x ^double @scroll-offset_) gw) ;; offset-x is in/under in gutter.
                       :gutter
-                      (calculate-col offset texts))]
+                      (.getColumn layout offset))]
                 col))
             ;; Impelements IScrollableText
             (getOffsetX [col]
               (+ inset-left
-                 ^double (calculate-offset texts col)))
+                 (.getOffsetX layout col)))
             (getMaxOffsetXforBlocks []
              (+ inset-left
-                ^double (calculate-max-offset-for-block chars texts))))
+                ^double (calculate-max-offset-for-block @chars_ layout))))
 
           (.setAlignment Pos/CENTER_LEFT)
           (.setPrefHeight DEFAULT_LINE_HEIGHT)
-          (.setPrefWidth pref-width)
           (.setPadding insets))]
 
     scrolling-pane))
 
 
-(defn new-line-cell [state_ scroll-offset_ flow_ chars]
-  (if (= chars u/DEL_OBJ)
-    (Cell/wrapNode (Rectangle.))  ;; A minimum cell which will be disposed of anyways. For speed
-    (let [k (Object.)
-
-          row_ (atom -1)
-
-          line-background-pane
-          (Pane.)
-
-          gutter
-          (new-row-gutter)
-
-          set-gutter-text
-          #(.setText gutter ((:line-count-formatter @state_) (inc ^int @row_)))
-
-          text-pane
-          (doto ^StackPane (fx/stackpane)
-            (.setAlignment Pos/CENTER_LEFT))
-
-          texts
-          (layout-texts text-pane chars)
-
-          marks-pane
-          (doto ^StackPane (fx/stackpane)
-            (.setAlignment Pos/CENTER_LEFT))
-
-          blocks-pane
-          (doto ^StackPane (fx/stackpane)
-            (.setAlignment Pos/CENTER_LEFT))
-
-          scrolling-part
-          (new-scrolling-part gutter text-pane marks-pane blocks-pane  scroll-offset_ chars texts)
-          
-          node
-          (proxy [Region] []
-            ;; @override
-            (computeMinWidth [^double _]
-              (.computePrefWidth this -1.0))
-            ;; @override
-            (computePrefWidth [^double _]
-              (.layout ^Region this)
-              (let [insets  ^Insets (.getInsets ^Region this)]
-                (+ ^double (.getWidth gutter)
-                   (.prefWidth ^Region scrolling-part -1.0)
-                   (.getLeft  insets)
-                   (.getRight insets))))
-            ;; @override
-            (computePrefHeight [^double _]
-              (.layout ^Region this)
-              DEFAULT_LINE_HEIGHT)
-            ;; @override
-            (layoutChildren []
-              (let [[^double w h] (-> ^Region this .getLayoutBounds fx/WH)
-                    gw ^double (.getWidth gutter)
-                    go @scroll-offset_]
-                (.resizeRelocate ^StackPane scrolling-part gw 0 (- w gw) h)
-                (.resizeRelocate ^Region gutter go 0 gw h)
-                (.resizeRelocate  line-background-pane go 0 w h))))]
-
-      (.setAll (.getChildren ^Parent node)
-               (fxj/vargs-t Node
-                   line-background-pane
-                   scrolling-part
-                   gutter))
-
-      (add-watch scroll-offset_ k
-                 (fn [_ _ _ _] (.requestLayout node)))
-
-      (add-watch state_ k
-                 (fn [_ _ {prev-digits :line-count-digits prev-blocks :blocks}
-                          {digits :line-count-digits blocks :blocks :as state}]
-                   (when (not= prev-digits digits)
-                     (set-gutter-text))
-                   (set-marks-and-line line-background-pane marks-pane state @row_ chars texts)
-                   (when (not= prev-blocks blocks)
-                     (set-blocks blocks-pane (:block-ranges state) (:max-offset-x-mem_ state) @row_ @flow_ texts))
-                   (.requestLayout node)))
+(defn new-line-cell
+  "Returns a Cell which the VirtualFlow may reuse for other items (rows),
+  whereby it reuses all its nodes."
+  [state_ scroll-offset_ flow_ chars]
+  (let [k (Object.)
+
+        chars_ (volatile! nil)
+
+        row_ (atom -1)
+
+        line-background-pane
+        (Pane.)
+
+        gutter
+        (new-row-gutter)
+
+        set-gutter-text
+        #(.setText gutter ((:line-count-formatter @state_) (inc ^int @row_)))
+
+        annotation
+        (doto (Label.)
+          (.setFont DEFAULT_GUTTER_FONT)
+          (.setTextFill DEFAULT_ANNOTATION_TEXT_FILL)
+          (.setBackground DEFAULT_ANNOTATION_BACKGROUND)
+          (.setPadding DEFAULT_ANNOTATION_INSETS)
+          (.setManaged false)
+          (.setVisible false))
+
+        set-annotation
+        #(let [s (get (:annotations @state_) @row_)]
+           (.setText annotation s)
+           (.setVisible annotation (some? s)))
+
+        text-pane
+        (doto ^StackPane (fx/stackpane)
+          (.setAlignment Pos/CENTER_LEFT))
+
+        layout
+        ^ILineLayout (new-line-layout text-pane)
+
+        marks-pane
+        (doto ^StackPane (fx/stackpane)
+          (.setAlignment Pos/CENTER_LEFT))
+
+        marks
+        (new-marks marks-pane)
+
+        blocks-pane
+        (doto ^StackPane (fx/stackpane)
+          (.setAlignment Pos/CENTER_LEFT))
+
+        blocks-pool
+        (ArrayList.)
+
+        scrolling-part
+        (new-scrolling-part gutter text-pane marks-pane blocks-pane  scroll-offset_ chars_ layout)
+
+        set-chars
+        (fn [chars]
+          ;; DEL_OBJ is a placeholder in the list which is about to be removed.
+          (let [chars (if (= chars u/DEL_OBJ) [] chars)]
+            (vreset! chars_ chars)
+            (.setChars layout chars)
+            (set-scrolling-width scrolling-part layout)))
+        
+        node
+        (proxy [Region] []
+          ;; @override
+          (computeMinWidth [^double _]
+            (.computePrefWidth this -1.0))
+          ;; @override
+          (computePrefWidth [^double _]
+            (.layout ^Region this)
+            (let [insets  ^Insets (.getInsets ^Region this)]
+              (+ ^double (.getWidth gutter)
+                 (.prefWidth ^Region scrolling-part -1.0)
+                 (.getLeft  insets)
+                 (.getRight insets))))
+          ;; @override
+          (computePrefHeight [^double _]
+            (.layout ^Region this)
+            DEFAULT_LINE_HEIGHT)
+          ;; @override
+          (layoutChildren []
+            (let [[^double w h] (-> ^Region this .getLayoutBounds fx/WH)
+                  gw ^double (.getWidth gutter)
+                  go @scroll-offset_]
+              (.resizeRelocate ^StackPane scrolling-part gw 0 (- w gw) h)
+              (.resizeRelocate ^Region gutter go 0 gw h)
+              (.resizeRelocate  line-background-pane go 0 w h)
+              ;; The annotation stays at the right edge of the visible part of the row.
+              (when (.isVisible annotation)
+                (let [aw (.prefWidth annotation -1.0)
+                      fw (.getWidth ^Region @flow_)]
+                  (.resizeRelocate annotation (- (+ ^double go fw) aw 4.0) 2.0 aw (- ^double h 4.0)))))))]
+
+    (.setAll (.getChildren ^Parent node)
+             (fxj/vargs-t Node
+                 line-background-pane
+                 scrolling-part
+                 gutter
+                 annotation))
+
+    ;; The watches are removed while the cell is pooled (see 'reset'), and re-added when it gets a row.
+    (letfn [(watch []
+              (add-watch scroll-offset_ k
+                         (fn [_ _ _ _] (.requestLayout node)))
+              (add-watch state_ k
+                         (fn [_ _ {prev-digits :line-count-digits prev-blocks :blocks prev-annotations :annotations}
+                                  {digits :line-count-digits blocks :blocks annotations :annotations :as state}]
+                           (when-not (neg? @row_)  ;; not parked
+                             (when (not= prev-digits digits)
+                               (set-gutter-text))
+                             (when-not (identical? prev-annotations annotations)
+                               (set-annotation))
+                             (set-marks-and-line line-background-pane marks state @row_ @chars_ layout)
+                             (when (not= prev-blocks blocks)
+                               (set-blocks blocks-pane blocks-pool (st/blocks-at-row_ state @row_) (:max-offset-x-mem_ state) @row_ @flow_ layout))
+                             (.requestLayout node)))))
+            (unwatch []
+              (remove-watch scroll-offset_ k)
+              (remove-watch state_ k))]
+
+      (watch)
+
+      (set-chars chars)
 
       (reify
         Cell
@@ -531,17 +845,31 @@
         (getNode [_]
           node)
         ;; implements
+        (isReusable [_]
+          true)
+        ;; implements
+        (updateItem [_ item]
+          (set-chars item)
+          ;; Force 'updateIndex' to refresh, as the row may be the same but the content not.
+          (reset! row_ -1))
+        ;; implements
         (updateIndex [_ index]
           (when (not= @row_ index) ;; only update box if index changes
             (reset! row_ index)
+            (watch)
             (set-gutter-text)
-            (set-marks-and-line line-background-pane marks-pane @state_ @row_ chars texts)
-            (set-blocks blocks-pane (:block-ranges @state_) (:max-offset-x-mem_ @state_) @row_ @flow_ texts)
+            (set-annotation)
+            (set-marks-and-line line-background-pane marks @state_ @row_ @chars_ layout)
+            (set-blocks blocks-pane blocks-pool (st/blocks-at-row_ @state_ @row_) (:max-offset-x-mem_ @state_) @row_ @flow_ layout)
             (.requestLayout node)))
         ;; implements
+        ;; Called when the cell is pooled.  It is "parked" at row -1 until 'updateIndex', so it doesn't follow the state.
+        (reset [_]
+          (unwatch)
+          (reset! row_ -1))
+        ;; implements
         (dispose [_]
-          (remove-watch scroll-offset_ k)
-          (remove-watch state_ k))
+          (unwatch))
         IRowCell
         ;; implements
         (getColumn [_ offset-x]
@@ -561,5 +889,3 @@
         ;; implements
         (getIndex [_]
           @row_)))))
-
-
@@ -35,17 +35,22 @@
     [george.javafx.util :as fxu]
     [george.application.output :as output]
     [clojure.string :as cs]
-    [george.turtle.aux :as aux])
+    [george.turtle.aux :as aux]
+    [george.turtle.ink :as ink])
   (:import
     [javafx.scene.paint Color]
     [javafx.scene Group Node Scene]
     [javafx.scene.shape Line Rectangle Polygon]
     [javafx.scene.text TextBoundsType Text]
     [javafx.stage Stage]
-    [javafx.geometry VPos]
-    [javafx.scene.transform Rotate]
-    [javafx.animation Timeline Animation Animation$Status]
-    [clojure.lang Atom]))
+    [javafx.geometry Bounds VPos]
+    [javafx.scene.transform Rotate Transform]
+    [javafx.animation AnimationTimer]
+    [clojure.lang Atom]
+    [george.turtle Pose SpatialGrid TickScheduler TickScheduler$Handler TickScheduler$Policy UndoLog UndoLog$Restorer]
+    [java.util ArrayList]
+    [java.util.concurrent ConcurrentHashMap ConcurrentLinkedQueue ExecutionException ExecutorService Executors Future ThreadFactory]
+    [java.util.concurrent.atomic AtomicBoolean]))
 
 "UCB Logo commands (to be) implemented:
 (ref: https://people.eecs.berkeley.edu/~bh/usermanual )
@@ -163,6 +168,7 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
   get-fence
   allowed-fence-values
   stop-ticker
+  add-ticker-handler
   is-overlapping
   reset-onkey
   is-ticker-running
@@ -230,16 +236,196 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
   (:root @(get-screen)))
 
 
+(defn- get-ink
+  "Returns the screen's ink layer, if the screen is rasterized."
+  []
+  (:ink @(get-screen)))
+
+
+;;;; The command buffer
+;;
+;; Moves with speed nil don't wait for the JavaFX thread.
+;; A turtle's position, heading and visibility are kept in its Pose, 
+;; and the effects on the scene graph are queued on the screen, and applied all in one go on the JavaFX thread;
+;; as soon as it gets to it, or when `flush-screen` is called.
+
+
+(defn- new-buffer []
+  {:commands (ConcurrentLinkedQueue.)
+   ;; Poses of turtles whose nodes need updating.
+   :moved (ConcurrentHashMap/newKeySet)
+   :pending (AtomicBoolean. false)})
+
+
+(defn- sync-node
+  "Updates the turtle's node from its pose.  Must be called on the JavaFX thread."
+  [^Pose pose]
+  (let [^doubles xy (.xy pose)]
+    (doto ^Group (.node pose)
+      (.setTranslateX (aget xy 0))
+      (.setTranslateY (- (aget xy 1)))
+      (.setRotate (- (.heading pose)))
+      (.setVisible (.isVisible pose)))))
+
+
+(defn- drain-buffer
+  "Runs all queued commands, then updates the nodes of the moved turtles.  Must be called on the JavaFX thread."
+  [{:keys [^ConcurrentLinkedQueue commands ^java.util.Set moved ^AtomicBoolean pending]}]
+  (.set pending false)
+  (loop []
+    (when-let [f (.poll commands)]
+      (f)
+      (recur)))
+  (let [it (.iterator moved)]
+    (while (.hasNext it)
+      (let [pose (.next it)]
+        (.remove it)
+        (sync-node pose)))))
+
+
+(defn- request-drain [{:keys [^AtomicBoolean pending] :as buffer}]
+  (when (.compareAndSet pending false true)
+    (fx/later (drain-buffer buffer))))
+
+
+(defn- buffer-command
+  "Queues the no-args function 'f' to be run on the JavaFX thread, in order with other commands."
+  [f]
+  (let [buffer (:buffer @(get-screen))]
+    (.add ^ConcurrentLinkedQueue (:commands buffer) f)
+    (request-drain buffer)))
+
+
+(defn- buffer-moved
+  "Marks the turtle (its pose) as moved, so its node will be updated."
+  [^Pose pose]
+  (let [buffer (:buffer @(get-screen))]
+    (.add ^java.util.Set (:moved buffer) pose)
+    (request-drain buffer)))
+
+
+
+;;;; Shared animation
+;; All animated turtle movements on a screen are advanced by one AnimationTimer, once per pulse,
+;; so that many turtles moving at the same time (see `with-turtles`) cost little more than one.
+
+
+(defn- advance-motions
+  "Moves the nodes (and lines) of all motions to where they should be at 'now'.  Must be called on the JavaFX thread.
+  Returns true if any motions are still going."
+  [^ConcurrentLinkedQueue incoming ^ArrayList active ^long now]
+  (loop []
+    (when-let [m (.poll incoming)]
+      (.add active (assoc m :start now))
+      (recur)))
+  (let [it (.iterator active)]
+    (while (.hasNext it)
+      (let [{:keys [^Group node ^Line line ^double x1 ^double y1 ^double x2 ^double y2 ^double nanos ^long start done]}
+            (.next it)
+            t (min 1. (/ (- now start) nanos))
+            x (+ x1 (* t (- x2 x1)))
+            y (- (+ y1 (* t (- y2 y1))))]
+        (.setTranslateX node x)
+        (.setTranslateY node y)
+        (when line
+          (.setEndX line x)
+          (.setEndY line y))
+        (when (>= t 1.)
+          (.remove it)
+          (deliver done :done)))))
+  (not (.isEmpty active)))
+
+
+(defn- new-animator []
+  (let [incoming (ConcurrentLinkedQueue.)
+        active (ArrayList.)  ;; Only touched on the JavaFX thread.
+        running (AtomicBoolean. false)]
+    {:incoming incoming
+     :running running
+     :timer (proxy [AnimationTimer] []
+              (handle [now]
+                (when-not (advance-motions incoming active now)
+                  (.set running false)
+                  ;; A motion may have been added after the last poll.
+                  (when-not (and (not (.isEmpty incoming)) (.compareAndSet running false true))
+                    (.stop ^AnimationTimer this)))))}))
+
+
+(defn- animate-move
+  "Moves the turtle's node (and the end of the line, if any) from [x1 y1] to [x2 y2] (turtle coordinates)
+  over 'duration' milliseconds, and waits till it is done."
+  [node line x1 y1 x2 y2 duration]
+  (let [{:keys [^ConcurrentLinkedQueue incoming ^AtomicBoolean running ^AnimationTimer timer]}
+        (:animator @(get-screen))
+        done (promise)]
+    (.add incoming {:node node :line line
+                    :x1 (double x1) :y1 (double y1) :x2 (double x2) :y2 (double y2)
+                    :nanos (* 1e6 (double duration))
+                    :done done})
+    (when (.compareAndSet running false true)
+      (fx/later (.start timer)))
+    @done))
+
+
+(defn- get-index ^SpatialGrid []
+  (:index @(get-screen)))
+
+
+(defn- reindex
+  "Updates the turtle's position in the screen's spatial index.
+  (Turning needs no re-indexing, as the index holds a circle around the turtle, which contains it whatever its heading.)"
+  [^Pose pose]
+  (let [^doubles xy (.xy pose)]
+    (.move (get-index) pose (aget xy 0) (aget xy 1))))
+
+
+(defn- node-radius
+  "Returns the radius of a circle around the (turtle's) node's origin, which contains the node whatever its rotation.
+  Rotation is around the center of the node's bounds, which may be off origin."
+  [^Node node]
+  (let [b (.getBoundsInLocal node)
+        cx (/ (+ (.getMinX b) (.getMaxX b)) 2.)
+        cy (/ (+ (.getMinY b) (.getMaxY b)) 2.)]
+    (+ (fxu/hypotenuse cx cy)
+       (fxu/hypotenuse (/ (.getWidth b) 2.) (/ (.getHeight b) 2.)))))
+
+
+(defn flush-screen
+  "Brings the screen up-to-date with all turtle commands done so far, and waits for it to be done.
+
+  Turtles moving with speed `nil` don't wait for the screen to be updated,
+  and so the screen may be a little behind.  
+  This is normally not noticeable, but you can use this, for example before taking a screenshot.
+  
+  *Example:*
+```
+(flush-screen)
+```"
+  []
+  (let [{:keys [buffer ink]} @(get-screen)]
+    (fx/now
+      (drain-buffer buffer)
+      (when ink (ink/render ink)))
+    nil))
+
+
 (defn turtle?
   "Returns true if the 'turtle' is a turtle."
   [turtle]
   (and (instance? Atom turtle) (instance? Turtle @turtle)))
 
 
+(defn- new-undo-log
+  "Returns an UndoLog for 'size' steps, or nil if 'size' is `0`."
+  [size]
+  (when (pos? ^long size)
+    (UndoLog. (int size) UndoLog/DEFAULT_MEMORY_LIMIT)))
+
+
 (defn set-undo
   "Set the undo-buffers size.
    'size' must be `0` or a positive integer.
-   Smaller is better - i.e. make it only as big as you think you will need, especially when dealing with lots of turtles, as each action will grow the buffer by a complete state-map.
+   Each step is small - the turtle's position, heading and pen, plus whatever was drawn - but the buffer is also limited in memory. See [`set-undo-limit`](var:set-undo-limit).
    `0` is default.
 *Examples:*
 ```
@@ -249,8 +435,13 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
   ([size]
    (set-undo (turtle) size))
   ([turtle size]
-    ;; TODO: assert data input.  Strip buffer.  Support :default
-   (swap! turtle assoc :undo size)
+    ;; TODO: assert data input.  Support :default
+   (swap! turtle
+          (fn [{:keys [^UndoLog undo-log] :as turt}]
+            (if (and undo-log (pos? ^long size))
+              (do (.setLimits undo-log (int size) (.maxBytes undo-log))
+                  (assoc turt :undo size))
+              (assoc turt :undo size :undo-log (new-undo-log size)))))
    nil))
 
 
@@ -262,45 +453,81 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
   (:undo @turtle)))
 
 
-(defn- append-and-trim [vec obj ^long lim]
-  (let [new-vec (conj vec obj)
-        l (count new-vec)]
-    (if (> l lim)
-      (subvec new-vec (- l lim))
-      new-vec)))
+(defn set-undo-limit
+  "Sets the (approx.) max memory in bytes used by the undo-buffer. The oldest steps are dropped first.
+  Only applies while undo is on - i.e. after [`set-undo`](var:set-undo)."
+  ([bytes]
+   (set-undo-limit (turtle) bytes))
+  ([turtle bytes]
+   (when-let [^UndoLog log (:undo-log @turtle)]
+     (.setLimits log (.maxSteps log) (long bytes)))
+   nil))
+
+
+(defn get-undo-limit
+  "Returns the (approx.) max memory in bytes used by the undo-buffer, or `nil` if undo is off."
+  ([]
+   (get-undo-limit (turtle)))
+  ([turtle]
+   (when-let [^UndoLog log (:undo-log @turtle)]
+     (.maxBytes log))))
 
 
 ;; If set to `(atom [])`, then append-undo-maybe will simply append new-nodes to the atom, and not append to the turtles undo, knowing it will be handled later from some other spot, like from `arc`.
 (def ^:dynamic *undo-nodes* nil)
 
 
-(defn append-undo-maybe [turtle prev-state & [new-nodes]]
-  ;(println "  ## *undo-nodes*" *undo-nodes* new-nodes)
-  (if-let [nodes_  *undo-nodes*]
-    (swap! nodes_ #(vec ( concat % (or new-nodes []))))
-    (let [size (get-undo turtle)]
-      (when-not (zero? ^int size)
-        ;; append
-        (swap! turtle update :undo-buffer
-               (fn [buf]
-                   (append-and-trim 
-                       buf
-                       [(dissoc prev-state :undo-buffer)  ;; we don't want buffers in buffers! 
-                        new-nodes]
-                       (get-undo turtle))))))))
+;; The group lines are drawn into, if not the turtle's parent.  Each turtle in `with-turtles` gets its own.
+(def ^:dynamic ^:private *layer* nil)
 
 
-(defn- undo-peek [turtle]
-  (-> @turtle :undo-buffer peek))
+(defn undo-state
+  "Returns what 'append-undo-maybe' needs to restore the turtle to where it is now - if the turtle has undo, else nil."
+  [turtle]
+  (let [turt @turtle]
+    (when (and (nil? *undo-nodes*) (:undo-log turt))
+      (let [^Pose pose (:pose turt)
+            ^doubles xy (.xy pose)]
+        [(aget xy 0) (aget xy 1) (.heading pose) (.isVisible pose) turt]))))
 
 
-(defn- undo-pop
-  "Returns the popped item, or 'nil' if history was empty."
+(defn append-undo-maybe [turtle prev-state & [new-nodes]]
+  ;(println "  ## *undo-nodes*" *undo-nodes* new-nodes)
+  (if-let [nodes_  *undo-nodes*]
+    (swap! nodes_ into new-nodes)
+    (when-let [[x y heading visible {:keys [^UndoLog undo-log color width down round]}] prev-state]
+      (when undo-log
+        (.push undo-log
+               (double x) (double y) (double heading)
+               (if width (double width) Double/NaN)
+               color (boolean down) (boolean round) (boolean visible)
+               new-nodes)))))
+
+
+(defn- erase-drawn
+  "Removes what was drawn by a command - nodes, and/or ink-handles if the screen is rasterized."
+  [drawn]
+  (let [{handles true nodes false} (group-by ink/handle? drawn)]
+    (doseq [^Node n nodes]
+      (fx/later (fx/remove (.getParent n) n)))
+    (when-let [ink (and handles (get-ink))]
+      (ink/erase ink handles))))
+
+
+(defn- undo-restorer
+  "Puts the turtle back as it was, and erases what it drew."
   [turtle]
-  (let [popped (undo-peek turtle)]
-    (when popped
-      (swap! turtle update :undo-buffer pop))
-    popped))
+  (reify UndoLog$Restorer
+    (restore [_ x y heading width color down round visible drawn]
+      (let [{:keys [^Pose pose]}
+            (swap! turtle assoc
+                   :color color :width (when-not (Double/isNaN width) width) :down down :round round)]
+        (.setPosition pose x y)
+        (.setHeading pose heading)
+        (.setVisible pose visible)
+        (reindex pose)
+        (buffer-moved pose)
+        (erase-drawn drawn)))))
 
 
 (defn undo
@@ -309,7 +536,7 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
   
   Returns `1` if an undo happened, else `0`.
 
-  History does not care about 'props' set on turtle, only \"internal\" states.
+  History only holds the turtle's position, heading, visibility and pen (down, round, color and width) - not 'props' or other attributes.
   
   `undo` does not animate its movements. It is instantaneous.
   
@@ -327,12 +554,8 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
    (undo (turtle)))
   
   ([turtle]
-   (if-let [popped (undo-pop turtle)]
-     (let [[prev-state nodes] popped]
-       (set-state turtle prev-state)
-       (doseq [^Node n nodes]
-         (fx/later (fx/remove (.getParent n) n)))
-       1)
+   (if-let [^UndoLog log (:undo-log @turtle)]
+     (if (.pop log (undo-restorer turtle)) 1 0)
      0)))
 
 
@@ -379,7 +602,7 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
 
  ([turtle [x y]]
 
-  (let [prev-state (get-state turtle)
+  (let [prev-state (undo-state turtle)
         ^double heading     (get-heading turtle)
         ^double new-heading (heading-to turtle [x y])]
     (when (not= heading new-heading)
@@ -428,11 +651,26 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
 ;(println (heading-to [-10 -10] [-20 -100]))
 
 
+(defn- pose-bounds
+  "Returns the bounds of the turtle's node in its parent, as they are with the turtle's pose -
+  even if the node itself hasn't been updated yet (see `flush-screen`).
+  As JavaFX does it: rotated around the center of the node's layout-bounds, then translated to the position."
+  ^Bounds [turtle]
+  (let [{:keys [^Pose pose ^Group group]} @turtle
+        ^doubles xy (.xy pose)
+        lb (.getLayoutBounds group)
+        cx (/ (+ (.getMinX lb) (.getMaxX lb)) 2.)
+        cy (/ (+ (.getMinY lb) (.getMaxY lb)) 2.)]
+    (.transform (.createConcatenation (Transform/translate (aget xy 0) (- (aget xy 1)))
+                                      (Transform/rotate (- (.heading pose)) cx cy))
+                (.getBoundsInLocal group))))
+
+
 (defn is-overlap
   "returns 'true' if the nodes of two turtles touch/overlap (intersect)."
   [turtle1 turtle2]
-  (.intersects (.getBoundsInParent ^Group (:group @turtle1))
-               (.getBoundsInParent ^Group (:group @turtle2))))
+  (.intersects (pose-bounds turtle1)
+               (pose-bounds turtle2)))
 
 
 (defn get-overlappers
@@ -443,12 +681,63 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
   ([]
    (get-overlappers (turtle)))
   ([turtle]
-   (get-overlappers turtle (get-all-turtles)))
+   ;; Only the turtles near enough to possibly overlap are checked.
+   (let [[x y] (get-position turtle)
+         candidates (.within (get-index) (double x) (double y) (node-radius (:group @turtle)) true)]
+     (filter #(and (not= turtle %) (is-overlap turtle %))
+             candidates)))
   ([turtle turtles]
    (filter #(and (not= turtle %) (is-overlap turtle %))  
            turtles)))
 
 
+(defn- position-of [turtle-or-xy]
+  (assert (or (turtle? turtle-or-xy) (xy-vector? turtle-or-xy))
+          (format "Argument must be a turtle or a position [x y]. Got %s" turtle-or-xy))
+  (if (turtle? turtle-or-xy)
+    (get-position turtle-or-xy)
+    turtle-or-xy))
+
+
+(defn get-turtles-within
+  "Returns a seq of the turtles whose positions are within 'distance' of the current turtle, an explicit turtle, or a position [x y].
+  The turtle itself is not included.
+  
+  The turtles are ordered by when they were created, just like `get-all-turtles`.
+  This is much faster than checking the distance to every turtle when there are many turtles.
+
+*Examples:*
+```
+(get-turtles-within 50)              ;; turtles less than 50 from the current turtle
+(get-turtles-within a-turtle 50)     ;; turtles less than 50 from 'a-turtle'
+(get-turtles-within [100 100] 50)    ;; turtles less than 50 from [100 100]
+```"
+  ([distance]
+   (get-turtles-within (turtle) distance))
+  ([turtle-or-xy distance]
+   (let [[x y] (position-of turtle-or-xy)]
+     (remove #(= % turtle-or-xy)
+             (.within (get-index) (double x) (double y) (double distance) false)))))
+
+
+(defn get-nearest-turtle
+  "Returns the turtle nearest to the current turtle, an explicit turtle, or a position [x y].
+  Returns `nil` if there are no (other) turtles.
+
+*Examples:*
+```
+(get-nearest-turtle)
+(get-nearest-turtle a-turtle)
+(get-nearest-turtle [100 100])
+```"
+  ([]
+   (get-nearest-turtle (turtle)))
+  ([turtle-or-xy]
+   (let [[x y] (position-of turtle-or-xy)]
+     (.nearest (get-index) (double x) (double y)
+               (when (turtle? turtle-or-xy) (:pose @turtle-or-xy))))))
+
+
 (defn- fence-able?
   "Returns `true` if the target-pos will need to be fenced.
   This is important to know know in case fence is a function."
@@ -549,17 +838,28 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
     (swap! turtle assoc :positions (conj positions  position))))
 
 
+(defn- pen-paint
+  "Returns the Paint for the pen color 'color'.  The last one is cached on the turtle, as parsing colors isn't free."
+  [turtle color]
+  (let [[c p] (:paint @turtle)]
+    (if (identical? c color)
+      p
+      (let [p (aux/to-color color)]
+        (swap! turtle assoc :paint [color p])
+        p))))
+
+
 (defn- move-to-impl 
   "Implements move-to. This avoids revealing the optional parameters to the user in documentation."
  ([turtle [x y] & [prev-state res-nodes]]
   ;(println "/move-to-impl" [x y]) 
-  (let [prev-state (or prev-state (get-state turtle))
+  (let [prev-state (or prev-state (undo-state turtle))
         res-nodes (or res-nodes [])
         [^double start-x ^double start-y :as start-pos] (get-position turtle)
         ;_ (println " .. from" start-pos)
         target-pos [x y]
         
-        [^double w ^double h] (get-size true)
+        [^double w ^double h] (or (get-size true) (get-size))
         w2 (/ w 2)
         h2 (/ h 2)
         low-pos  [(- w2) (- h2)] ;; bottom-left  
@@ -587,17 +887,13 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
         c (get-color turtle)
         w (get-width turtle)
         r (is-round turtle)
+        down? (and (is-down turtle) c w)
+        pose ^Pose (:pose @turtle)
         node ^Group (:group @turtle)
         parent ^Group (.getParent node)
-        line 
-        (when (and (is-down turtle) c w)
-          (fx/line :x1 start-x :y1  (- start-y)
-                   :width w
-                   :color (aux/to-color c)
-                   :round r))
+        layer ^Group (or *layer* parent)
+        ink (get-ink)
 
-        res-nodes1 (if line (conj res-nodes line) res-nodes)
-      
         ;; prevent deadlock in animation - i.e. if ticker is running, speed will be automatically nil
         speed 
         (when-not (is-ticker-running) (get-speed turtle))
@@ -615,45 +911,55 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
 
         ;; A duration less than 1.0 may result in no rendering, so we set it to nil.
         duration (if (and duration (< ^double duration 1.)) nil duration)
-        
-        timeline-synchronizer (promise)]
 
-    (when line
-      (fx/now
-        (fx/add parent line)
-        (.toFront node)))
-      
+        ;; On a rasterized screen a line is only a node while it is being animated.
+        line
+        (when (and down? (or duration (not ink)))
+          (fx/line :x1 start-x :y1  (- start-y)
+                   :x2 (if duration start-x stop-x) :y2 (- ^double (if duration start-y stop-y))
+                   :width w
+                   :color (pen-paint turtle c)
+                   :round r))]
+
     (if duration
       (do
-        (fx/later
-          (.play ^Timeline
-            (fx/simple-timeline
-              duration
-              #(deliver timeline-synchronizer :done)
-              [(.translateXProperty node) stop-x]
-              [(.translateYProperty node) (-  stop-y)]
-              (when line [(.endXProperty ^Line line) stop-x])
-              (when line [(.endYProperty ^Line line) (- stop-y)]))))
-        @timeline-synchronizer)  ;; we wait here til the timeline is done
-      (fx/now
-        (doto node
-          (.setTranslateX stop-x)
-          (.setTranslateY (- stop-y)))
         (when line
-          (doto ^Line line
-            (.setEndX stop-x)
-            (.setEndY (- stop-y))))))
-      
-    (log-position-maybe turtle [stop-x stop-y])
-    
-    (when (and fenced? onfence) 
-          (onfence turtle fence1))
-    
-    (if continue-pos
-        (do
-          (set-position turtle continue-pos)
-          (recur turtle new-target-pos [prev-state res-nodes1]))
-        (append-undo-maybe turtle prev-state res-nodes1)))))
+          (fx/now
+            (fx/add layer line)
+            (.toFront node)))
+        (animate-move node line start-x start-y stop-x stop-y duration)
+        (.setPosition pose stop-x stop-y)
+        (reindex pose))
+      ;; No animation, so we don't wait for the JavaFX thread.
+      (do
+        (.setPosition pose stop-x stop-y)
+        (reindex pose)
+        (when line
+          (buffer-command #(do (fx/add layer line) (.toFront node))))
+        (buffer-moved pose)))
+
+    (let [ink-handle
+          (when (and ink down?)
+            (let [h (ink/add-line ink start-pos [stop-x stop-y] w (pen-paint turtle c) r)]
+              ;; The line is painted before the node is removed, so it doesn't flicker.
+              (when line (fx/later (fx/remove layer line)))
+              h))
+          res-nodes1
+          (cond
+            ink-handle (conj res-nodes ink-handle)
+            line (conj res-nodes line)
+            :default res-nodes)]
+
+      (log-position-maybe turtle [stop-x stop-y])
+
+      (when (and fenced? onfence)
+            (onfence turtle fence1))
+
+      (if continue-pos
+          (do
+            (set-position turtle continue-pos)
+            (recur turtle new-target-pos [prev-state res-nodes1]))
+          (append-undo-maybe turtle prev-state res-nodes1))))))
 
 
 (defn move-to
@@ -765,7 +1071,7 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
 (defn set-state 
   "Applies the passed-in state-map to the turtle. 
   Whichever attributes are present will be applied, including 
-  position, heading, visible, etc. Only the undo-buffer is not set.
+  position, heading, visible, etc. The undo-buffer is not touched.
 
   Intended used as part of `undo`.
 
@@ -839,7 +1145,8 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
   (aux/to-color fill)
   (aux/to-font font)
 
-  (let [turtle
+  (let [group (fx/group node)
+        turtle
         (atom
           (map->Turtle
             {:name name
@@ -851,17 +1158,17 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
              :fill fill
              :font font
              :undo undo
-             :undo-buffer (get-default :undo-buffer)
+             :undo-log (new-undo-log undo)
              :props props
-             :group (fx/group node)}))]
+             :group group
+             :pose (Pose. group)}))]
 
        (register-turtle turtle)
-       (fx/now
-         (doto @turtle
-           (set-position_ position)
-           (set-heading_ heading)
-           (set-visible_ visible))
-         (when parent (set-parent_ @turtle parent)))
+       (doto @turtle
+         (set-position_ position)
+         (set-heading_ heading)
+         (set-visible_ visible))
+       (when parent (set-parent_ @turtle parent))
     
     turtle))
  
@@ -899,6 +1206,10 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
   "Appends turtle to the global registry if it is not already registered."
   [turtle]
   ;(println "register-turtle turtle-count (approx):" (count @turtles_))
+  (when-not (contains? (:turtles @(get-screen)) turtle)
+    (let [{:keys [^Pose pose group]} @turtle
+          ^doubles xy (.xy pose)]
+      (.add (get-index) pose turtle (aget xy 0) (aget xy 1) (node-radius group))))
   (swap! (get-screen) assoc-in [:turtles turtle] turtle)
   turtle)
 
@@ -907,6 +1218,7 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
   "Remove the turtle from the global list."
   [turtle]
   (swap! (get-screen) update-in [:turtles] dissoc turtle)
+  (.remove (get-index) (:pose @turtle))
   nil)
 
 
@@ -1006,6 +1318,80 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
      (binding [*turtle* ~turtle]
        ~@body)))
 
+
+
+(defonce ^:private ^ExecutorService turtle-executor
+  (Executors/newCachedThreadPool
+    (reify ThreadFactory
+      (newThread [_ r]
+        (doto (Thread. ^Runnable r "george-turtle-worker")
+          (.setDaemon true))))))
+
+
+(defn run-with-turtles
+  "Implements `with-turtles`.  Calls 'f' (no args) for each of the 'turtles', each on its own thread,
+  with the turtle as *turtle*, and a layer of its own to draw in.
+  Waits for all of them, and returns a vector of the results.  If any threw, the first one is re-thrown."
+  [turtles f]
+  (let [turtles (vec turtles)
+        screen_ (get-screen)
+        layers (mapv (fn [_] (fx/group)) turtles)
+        _ (fx/now
+            (doseq [[t l] (map vector turtles layers)]
+              ;; A turtle which is not on a screen draws in no layer - as it draws on nothing.
+              (when-let [parent (get-parent t)]
+                (fx/add parent l)))
+            (doseq [t turtles]
+              (.toFront ^Group (:group @t))))
+        ;; Conveys the caller's bindings - i.e. *out*, so printing shows up as usual.
+        tasks (mapv (fn [t l]
+                      (bound-fn* #(binding [*screen* screen_ *turtle* t *layer* l]
+                                    (f))))
+                    turtles layers)
+        futures (mapv #(.submit turtle-executor ^Callable %) tasks)
+        results
+        (try
+          (mapv (fn [^Future fut]
+                  (try
+                    {:value (.get fut)}
+                    (catch ExecutionException e
+                      {:error (.getCause e)})))
+                futures)
+          ;; However the waiting ends abnormally - i.e. interrupt, or the thread being stopped - the turtles stop too.
+          (catch Throwable e
+            (doseq [^Future fut futures]
+              (.cancel fut true))
+            (throw e))
+          (finally
+            (fx/later
+              (doseq [^Group l layers]
+                (when-let [parent (and (.isEmpty (.getChildren l)) (.getParent l))]
+                  (fx/remove parent l))))))]
+    (if-let [e (some :error results)]
+      (throw e)
+      (mapv :value results))))
+
+
+(defmacro with-turtles
+  "Like [`with-turtle`](var:with-turtle), but runs the 'body' for all the 'turtles' at the same time - each turtle on its own thread.
+  Waits till all are done, and returns a vector of the results, in the order of the turtles.
+  
+  Ten turtles drawing at the same time take about as long as one.
+  
+  Each turtle draws in its own layer, in the order of the turtles - the first turtle's lines lowest - and so the drawing turns out the same every time.
+  (Except on a rasterized screen, where lines are layered as they are finished.)
+  `undo` works as usual, as each turtle has its own undo-buffer.
+
+  *Example:*
+```
+(let [turtles (for [h [0 90 180 270]] (new-turtle :heading h))]
+  (with-turtles turtles
+    (forward 100) (left 90) (forward 50)))
+```"
+  [turtles & body]
+  `(run-with-turtles ~turtles (fn [] ~@body)))
+
+
 ;(pprint (macroexpand-1 '(with-turtle (make-turtle) (forward 100))))
 ;(with-turtle (make-turtle) (forward 100))
 
@@ -1058,15 +1444,16 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
  ([]
   (clear true))
  ([keep-1-turtle?]
-  (let [{:keys [stage root axis]} @(get-screen)
+  (let [{:keys [stage root axis ink]} @(get-screen)
         
         nodes-to-keep-pred  
-        (if keep-1-turtle?
-            ;; a set *is* a predicate function
-            #{(:group @(turtle)) axis} 
-            #{axis})]
+        ;; a set *is* a predicate function
+        (cond-> #{axis}
+          keep-1-turtle? (conj (:group @(turtle)))
+          ink (conj (ink/canvas ink)))]
     
     (delete-all-turtles keep-1-turtle?)
+    (when ink (ink/clear ink))
 
     (fx/later
       (fx/children-set-all 
@@ -1239,7 +1626,8 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
 (defn- set-node_
   "Applied to deref-ed turtle."
   [turt node]
-  (set-now (:group turt) node))
+  (set-now (:group turt) node)
+  (.setRadius (get-index) (:pose turt) (node-radius (:group turt))))
 
 
 (defn set-node
@@ -1313,9 +1701,7 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
    :fill :dodgerblue
    :font ["Source Code Pro" :normal 14]
    :props {}
-   :undo 0
-   
-   :undo-buffer []})
+   :undo 0})
 
 
 (defn get-default
@@ -1344,8 +1730,7 @@ delete <key> <not-found>  ;; returns <not-found> if didn't exist
 
 (defn- arc 
   [turtle ^double radius ^double degrees]
-  (let [prev-state 
-        (get-state turtle)
+  (let [prev-state (undo-state turtle)
         undo-nodes_ (atom [])
         
         orig-heading (get-heading turtle)
@@ -1495,7 +1880,8 @@ See [`arc-left`](var:arc-left) for more information."
 (defn- set-heading_
   "Applied to deref-ed turtle."
   [turt angle]
-  (fx/now (.setRotate ^Group (:group turt) (- ^double angle))))
+  (.setHeading ^Pose (:pose turt) angle)
+  (buffer-moved (:pose turt)))
 
 
 (defn set-heading
@@ -1516,7 +1902,7 @@ See [Cartesian coordinate system](https://en.wikipedia.org/wiki/Cartesian_coordi
  ([heading] 
   (set-heading (turtle) heading))
  ([turtle heading]
-  (let [prev-state (get-state turtle)
+  (let [prev-state (undo-state turtle)
         angle   
         (if (#{:heading :default} heading)
             (get-default :heading)
@@ -1540,9 +1926,7 @@ See [Cartesian coordinate system](https://en.wikipedia.org/wiki/Cartesian_coordi
  ([]
   (get-heading (turtle))) 
  ([turtle]
-  (- ^double 
-     (rem (-> @turtle :group ^double (#(.getRotate ^Group %))) 
-          360.0))))
+  (rem (.heading ^Pose (:pose @turtle)) 360.0)))
 
 
 (depr/defn heading
@@ -1554,9 +1938,12 @@ See [Cartesian coordinate system](https://en.wikipedia.org/wiki/Cartesian_coordi
 
 
 (defn- set-position_ 
-  "Applied to deref-ed turtle."
-  [turt pos]
-  (fx/now (fx/set-translate-XY (:group turt) (flip-Y pos))))
+  "Applied to deref-ed turtle.  If 'x' or 'y' is nil, that part is left as it is."
+  [turt [x y]]
+  (let [pose ^Pose (:pose turt)]
+    (.updatePosition pose ^Number x ^Number y)
+    (reindex pose)
+    (buffer-moved pose)))
 
 
 (defn set-position
@@ -1579,8 +1966,8 @@ See [Cartesian coordinate system](https://en.wikipedia.org/wiki/Cartesian_coordi
  ([[x y]]
   (set-position (turtle) [x y]))
  ([turtle [^double x ^double y :as position]]
-  (let [prev-state (get-state turtle)
-        [x ^double y] 
+  (let [prev-state (undo-state turtle)
+        [x y] 
         (if (#{:position :default} position)
             (get-default :position)
             position)]
@@ -1606,8 +1993,7 @@ See [`set-position`](var:set-position) for more details.
  ([]
   (get-position (turtle)))
  ([turtle]
-  (let [node ^Group (:group @turtle)]
-    [^double (.getTranslateX node) (- ^double (.getTranslateY node))])))
+  (vec (.xy ^Pose (:pose @turtle)))))
 
 
 (depr/defn position
@@ -1900,7 +2286,8 @@ See [`set-position`](var:set-position) for more details.
 (defn- set-visible_
   "Applied to deref-ed turtle."
   [turt bool]
-  (fx/now (.setVisible ^Group (:group turt) bool)))
+  (.setVisible ^Pose (:pose turt) (boolean bool))
+  (buffer-moved (:pose turt)))
 
 
 (defn set-visible
@@ -1930,7 +2317,7 @@ See [`set-position`](var:set-position) for more details.
  ([]
   (is-visible (turtle)))
  ([turtle]
-  (-> @turtle :group (#(.isVisible ^Group %)))))
+  (.isVisible ^Pose (:pose @turtle))))
 
 
 (depr/defn is-showing
@@ -2074,7 +2461,8 @@ There are a number of optional ways to set font:
  ([text move?]
   (write (turtle) text move?))
  ([turtle text move?]
-  (let [{:keys [parent ^double heading position font color down :as prev-state]} (get-state turtle)  
+  (let [prev-state (undo-state turtle)
+        {:keys [parent ^double heading position font color down]} (get-state turtle)
         txt ^Text
         (fx/text (str text) 
                  :font (aux/to-font font))]
@@ -2120,7 +2508,10 @@ There are a number of optional ways to set font:
   "
   [t & body]
   ;; Make a not of the current layer of the turtle.
-  `(let [layer# (-> (get-parent ~t) .getChildren (.indexOf (-> ~t deref :group)))]
+  `(let [layer# (do (flush-screen)  ;; so lines drawn before the fill are in place
+                    (-> (get-parent ~t) .getChildren (.indexOf (-> ~t deref :group))))
+         ;; On a rasterized screen, the fill goes below whatever is inked from here.
+         ink-pos# (some-> @(get-screen) :ink ink/position)]
      ;; This will cause move to "log" positions using `log-position-maybe`
      (swap! ~t assoc :positions [(get-position ~t)])
      ;; Execute the body using the passed-in turtle
@@ -2134,12 +2525,16 @@ There are a number of optional ways to set font:
            (printf "WARNING! The turtle used for 'filled' needs to move at least twice. Got %s\n" (dec moves#)))
          ;; Get the turtles fill.  (Setting fill to nil is a way of preventing fill)
          (when-let [fill# (get-fill ~t)]
-           ;; Build a polygon
-           (let [p# (apply fx/polygon
-                           (flatten [positions# :fill (aux/to-color fill#) :stroke nil]))]
-             (append-undo-maybe ~t (get-state ~t) [p#])
-             ;; We insert the polygon at the layer the turtle was at start.
-             (fx/now (fx/add-at (get-parent ~t) layer# p#)))))
+           (if-let [ink# (:ink @(get-screen))]
+             (append-undo-maybe ~t (undo-state ~t)
+                                [(ink/add-polygon ink# (-> ~t deref :positions) (aux/to-color fill#)
+                                                  (or ink-pos# (ink/position ink#)))])
+             ;; Build a polygon
+             (let [p# (apply fx/polygon
+                             (flatten [positions# :fill (aux/to-color fill#) :stroke nil]))]
+               (append-undo-maybe ~t (undo-state ~t) [p#])
+               ;; We insert the polygon at the layer the turtle was at start.
+               (fx/now (fx/add-at (get-parent ~t) layer# p#))))))
        ;; Stop further logging of positions
        (swap! ~t dissoc :positions)
        nil)))
@@ -2239,6 +2634,9 @@ There are a number of optional ways to set font:
  ([keep-1-turtle?]
   (screen)
   (stop-ticker)  ;; important to do before clearing any nodes - as the ticker may continue to effect something.
+  ;; ... and the handlers go, so a re-run program doesn't also run those of the previous run.
+  (when-let [{:keys [^TickScheduler scheduler]} (:ticker @(get-screen))]
+    (.clearHandlers scheduler))
   (clear keep-1-turtle?)
   (when keep-1-turtle?
         (show) (set-speed :default) (pen-up) (home) (pen-down)
@@ -2302,26 +2700,65 @@ See topic [Clojure](:Clojure) for more information."
 
 
 (defn- new-ticker
-  ([f]
-   (new-ticker (/ 1000. 30) f))
-  ([millis f]
-   (doto 
-     (fx/timeline nil (fx/new-keyframe millis f))
-     (.setCycleCount Animation/INDEFINITE))))
+  "Returns a ticker: a TickScheduler, pulsed by an AnimationTimer - i.e. once per JavaFX frame."
+  []
+  (let [scheduler (TickScheduler.)]
+    {:scheduler scheduler
+     :timer (proxy [AnimationTimer] []
+              (handle [now]
+                (.pulse scheduler now)))}))
 
 
-(defn ^Timeline get-ticker
-  "returns the current ticker, if one has been set"
+(defn- screen-ticker
+  "Returns the screen's ticker, creating it if needed."
+  [screen_]
+  (or (:ticker @screen_)
+      (:ticker (swap! screen_ update :ticker #(or % (new-ticker))))))
+
+
+(def ^:private policies
+  {:skip TickScheduler$Policy/SKIP
+   :catch-up TickScheduler$Policy/CATCH_UP
+   :clamp TickScheduler$Policy/CLAMP})
+
+
+(defn get-ticker
+  "Returns the state of the screen's ticker as a map, or `nil` if no ticker has been set.
+  
+  It includes live stats for seeing where the time of each frame goes:  
+  `:fps` - actual frames per second  
+  `:update-ms` and `:render-ms` - time pr frame spent in handlers (averaged)  
+  `:frame-ms-p99` - 99% of recent frames took less time than this  
+  `:dropped-steps` - steps not run because the handlers couldn't keep up. See [`set-ticker-policy`](var:set-ticker-policy).
+
+*Example:*
+```
+(get-ticker)  ;; => {:running true, :step-ms 33.33, :fps 59.9, :update-ms 1.2, ...}
+```"
   []
-  (:ticker @(get-screen)))
+  (when-let [{:keys [^TickScheduler scheduler]} (:ticker @(get-screen))]
+    {:running (.isRunning scheduler)
+     :step-ms (.stepMillis scheduler)
+     :policy (some (fn [[k p]] (when (= p (.policy scheduler)) k)) policies)
+     :handlers (vec (.handlerNames scheduler))
+     :fps (.fps scheduler)
+     :update-ms (.updateMillis scheduler)
+     :render-ms (.renderMillis scheduler)
+     :frame-ms-p99 (.frameMillisPercentile scheduler 0.99)
+     :steps (.steps scheduler)
+     :dropped-steps (.droppedSteps scheduler)}))
 
 
 (defn set-ticker
-  "A single ticker set on the screen. It takes a no-args function and an optional time (in milliseconds).
+  "A ticker set on the screen. It takes a no-args function and an optional time (in milliseconds).
   This is useful in games and in animations.
   'function' is the no-args function that will be called at every tick.
   'interval-in-milliseconds' is the time between each tick. Default is 30 ticks per second.
 
+  The ticks are steps of a fixed length of time. If a frame is late, the missed ticks are run in that frame. (See [`set-ticker-policy`](var:set-ticker-policy).)
+  To run more functions at every tick, see [`add-ticker-handler`](var:add-ticker-handler).
+  `set-ticker` only replaces its own function (the handler named `:default`). Handlers added with `add-ticker-handler` are kept - until `reset`.
+
   The ticker is not automatically started or stopped, but is stopped if the Turtle window is closed, or if a new function is set on st-ticker.  
   
   **Warning!** Preferable set the turtles 'speed' to nil, to avoid running lots of animations at every tick, unless perhaps the ticks are very slow.
@@ -2330,21 +2767,67 @@ See topic [Clojure](:Clojure) for more information."
   ([function]
    (set-ticker (/ 1000. 30) function))
   ([interval-in-milliseconds function]
-   (when-let [t (get-ticker)]
-     (println "/set-ticker - stopping ticker")
-     (.stop t))  ;; to avoid memory leak!
-   (let [screen_ (get-screen)
-         t (new-ticker interval-in-milliseconds #(binding [*screen* screen_] (function)))]
-     (swap! screen_ assoc  :ticker t)
+   (stop-ticker)
+   (let [{:keys [^TickScheduler scheduler]} (screen-ticker (get-screen))]
+     (.setStepMillis scheduler (double interval-in-milliseconds))
+     (add-ticker-handler :default function)
      nil)))
 
 
+(defn add-ticker-handler
+  "Adds a named function to the screen's ticker, or replaces the one with the same name.
+  Handlers are called in order of 'priority' (lowest first). Default is `0`.
+  All handlers are removed by `reset`.
+
+  With 'phase' `:update` (default), the function takes no args, and is called at every tick - like the function of [`set-ticker`](var:set-ticker).  
+  With 'phase' `:render`, the function is called once every frame, after the ticks, with how far (0-1) the time is into the next tick. Use it for smooth drawing between ticks.
+
+*Examples:*
+```
+(add-ticker-handler :physics #(move-rocks) :priority -1)
+(add-ticker-handler :draw (fn [alpha] (draw-rocks alpha)) :phase :render)
+```"
+  [name function & {:keys [priority phase] :or {priority 0 phase :update}}]
+  (when-not (#{:update :render} phase)
+    (throw (IllegalArgumentException. (format "'phase' must be :update or :render. Got: %s" phase))))
+  (let [screen_ (get-screen)
+        {:keys [^TickScheduler scheduler]} (screen-ticker screen_)
+        render? (= phase :render)]
+    (.put scheduler name (int priority) render?
+          (reify TickScheduler$Handler
+            (call [_ alpha]
+              (binding [*screen* screen_]
+                (if render? (function alpha) (function))))))
+    nil))
+
+
+(defn remove-ticker-handler
+  "Removes the named function from the screen's ticker."
+  [name]
+  (when-let [{:keys [^TickScheduler scheduler]} (:ticker @(get-screen))]
+    (.remove scheduler name))
+  nil)
+
+
+(defn set-ticker-policy
+  "Decides what happens when the ticker can't keep up - i.e. when ticks take longer than the time between them:  
+  `:clamp` (default) - run at most 4 ticks in a frame, and skip the rest.  
+  `:catch-up` - run all the missed ticks (up to 1 second's worth), so the game keeps its pace, though it may stutter.  
+  `:skip` - run at most 1 tick in a frame, so the game slows down."
+  [policy]
+  (if-let [p (policies policy)]
+    (.setPolicy ^TickScheduler (:scheduler (screen-ticker (get-screen))) p)
+    (throw (IllegalArgumentException. (format "'policy' must be one of %s. Got: %s" (keys policies) policy))))
+  nil)
+
+
 (defn start-ticker 
   "Starts the ticker. 
   See [`set-ticker`](var:set-ticker) for more."
   []
-  (when-let [t (get-ticker)]
-    (fx/later (.play t))))
+  (when-let [{:keys [^TickScheduler scheduler ^AnimationTimer timer]} (:ticker @(get-screen))]
+    (.start scheduler)
+    (fx/later (.start timer))))
 
 
 (defn stop-ticker
@@ -2352,8 +2835,9 @@ See topic [Clojure](:Clojure) for more information."
   See [`set-ticker`](var:set-ticker) for more."
   [& verbose?]
   (when (is-ticker-running)
-    (let [t (get-ticker)]
-      (fx/later (.stop t))
+    (let [{:keys [^TickScheduler scheduler ^AnimationTimer timer]} (:ticker @(get-screen))]
+      (.stop scheduler)
+      (fx/later (.stop timer))
       (when verbose?
         (println "ticker stopped")))))
 
@@ -2361,13 +2845,8 @@ See topic [Clojure](:Clojure) for more information."
 (defn is-ticker-running
   "Returns true/false if a ticker has been set, else nil"
   []
-  (when-let [t (get-ticker)]
-    (= (.getStatus t) Animation$Status/RUNNING)))
-
-;(let [t (new-ticker #(println "ticker1"))]
-;  (.play t)
-;  (sleep 500)
-;  (.stop t))
+  (when-let [{:keys [^TickScheduler scheduler]} (:ticker @(get-screen))]
+    (.isRunning scheduler)))
 
 ;(set-ticker #(println "tick"))
 ;(start-ticker)
@@ -2527,7 +3006,16 @@ See topic [Clojure](:Clojure) for more information."
          :background background
          :fence fence
          :turtles (ordered-map)
+         ;; A fixed-timestep scheduler, pulsed every frame.  See `set-ticker`.
          :ticker nil
+         ;; Turtle positions, for quick collision and distance queries.
+         :index (SpatialGrid. 64.)
+         ;; Queued effects of turtle commands.  See `flush-screen`.
+         :buffer (new-buffer)
+         ;; Advances all animated movements.  See `animate-move`.
+         :animator (new-animator)
+         ;; An ink layer, if the screen is rasterized.  See `set-rasterized`.
+         :ink nil
          ;; onkey is an atom as key-handlers can read from an atom directly
          :onkey (atom {})})))))
 
@@ -2630,6 +3118,16 @@ See topic [Clojure](:Clojure) for more information."
          (-> .layoutXProperty (.bind (-> scene .widthProperty (.divide 2))))
          (-> .layoutYProperty (.bind (-> scene .heightProperty (.divide 2)))))
 
+       ;; The ink layer covers the scene, and is re-painted from its log when the scene is resized.
+       (let [relayout-ink
+             (fx/changelistener [_ _ _ _]
+               (when-let [ink (:ink @screen)]
+                 (ink/layout ink (fx/WH scene))))]
+         (-> scene .widthProperty (.addListener relayout-ink))
+         (-> scene .heightProperty (.addListener relayout-ink))
+         (when-let [ink (:ink @screen)]
+           (fx/now (ink/layout ink (fx/WH scene)))))
+
        (swap! screen assoc :scene scene :stage stage)
        nil))
 
@@ -2668,6 +3166,66 @@ See topic [Clojure](:Clojure) for more information."
   (:size @screen)))
 
 
+(defn set-rasterized
+  "Sets the screen to be rasterized or not.
+
+  On a rasterized screen, lines and fills are painted onto a single image - an \"ink layer\" - 
+  in stead of each being a separate shape on the screen.
+  This makes drawings with lots and lots of lines much faster, and uses a lot less memory. 
+  Only lines that are being animated are shapes, until they are done.
+  
+  `clear`, `filled` and `undo` work as usual, and so does `write` (text is still written as shapes).
+  
+  Turning it off turns what has been painted on the ink layer back into shapes.
+  It also empties the undo-buffers of all the turtles, as what they hold refers to the ink layer.
+  
+  `false` is default.
+  
+*Examples:*
+```
+(set-rasterized true)
+(set-rasterized false)
+```"
+ ([bool]
+  (set-rasterized (get-screen) bool))
+ ([screen bool]
+  (let [{:keys [root ink size scene]} @screen]
+    (cond
+      (and bool (not ink))
+      (let [ink (ink/new-ink)]
+        (fx/now
+          ;; Above anything already drawn, but below the turtles.
+          (fx/add root (ink/canvas ink))
+          (doseq [t (binding [*screen* screen] (get-all-turtles))]
+            (.toFront ^Group (:group @t)))
+          (ink/layout ink (if scene (fx/WH scene) size)))
+        (swap! screen assoc :ink ink))
+
+      (and (not bool) ink)
+      (do
+        (swap! screen assoc :ink nil)
+        ;; Undo-buffers hold handles into the ink, which the new shapes are not connected to.
+        (doseq [t (binding [*screen* screen] (get-all-turtles))]
+          (when-let [^UndoLog log (:undo-log @t)]
+            (.clear log)))
+        (fx/now
+          (let [children (.getChildren ^Group root)
+                i (.indexOf children (ink/canvas ink))]
+            (when-not (neg? i)
+              (.remove children (int i))
+              (.addAll children (int i) ^java.util.Collection (ink/to-nodes ink)))))))
+    nil)))
+
+
+(defn is-rasterized
+  "Returns `true` if the screen is rasterized, else `false`.
+  See [`set-rasterized`](var:set-rasterized) for more."
+ ([]
+  (is-rasterized (get-screen)))
+ ([screen]
+  (boolean (:ink @screen))))
+
+
 (defn screen 
   "Makes the screen visible, and possibly resizes it;
    either the default screen or one bound to *screen* using `with-screen` (advanced) or explicitly.
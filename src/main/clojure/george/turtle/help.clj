@@ -287,11 +287,14 @@ You can get a list containing all registered turtles with the command [``]
    #'get-position
    #'set-undo
    #'get-undo
+   #'set-undo-limit
+   #'get-undo-limit
    #'undo
    #'set-name
    #'get-name
    #'turtle
    #'with-turtle
+   #'with-turtles
    #'filled-with-turtle
    #'new-turtle
    #'clone-turtle
@@ -300,6 +303,8 @@ You can get a list containing all registered turtles with the command [``]
    #'delete-all-turtles
    #'is-overlap
    #'get-overlappers
+   #'get-turtles-within
+   #'get-nearest-turtle
    #'get-state
    #'set-prop
    #'get-prop
@@ -312,6 +317,10 @@ You can get a list containing all registered turtles with the command [``]
    #'start-ticker
    #'stop-ticker
    #'is-ticker-running
+   #'add-ticker-handler
+   #'remove-ticker-handler
+   #'set-ticker-policy
+   #'get-ticker
    #'set-onkey
    #'unset-onkey
    #'get-onkey
@@ -320,6 +329,9 @@ You can get a list containing all registered turtles with the command [``]
    #'to-front
    #'set-fence
    #'get-fence
+   #'set-rasterized
+   #'is-rasterized
+   #'flush-screen
    "Utilities"
    #'rep
    #'sleep
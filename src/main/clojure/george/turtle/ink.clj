@@ -0,0 +1,165 @@
+;; Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+;; The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+;; By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+;; You must not remove this notice, or any other, from this software.
+
+(ns
+  ^{:doc "The \"ink layer\" of a rasterized turtle screen.
+  Finished lines and fills are appended to an InkLog, and painted onto a single Canvas,
+  in stead of being added to the scene graph as one node each.
+  The log is retained, so the canvas can be re-painted after undo, fill or resize."}
+  george.turtle.ink
+  (:require
+    [george.javafx :as fx])
+  (:import
+    [george.turtle InkLog InkLog$Painter]
+    [java.util.concurrent.atomic AtomicBoolean]
+    [javafx.scene.canvas Canvas GraphicsContext]
+    [javafx.scene.paint Paint]
+    [javafx.scene.shape StrokeLineCap]))
+
+
+;(set! *warn-on-reflection* true)
+;(set! *unchecked-math* :warn-on-boxed)
+
+
+(defn new-ink
+  "Returns a new (empty) ink layer. Its canvas needs to be added to the screen, and then 'layout'-ed."
+  []
+  {:log (InkLog.)
+   :canvas (doto (Canvas.) (.setMouseTransparent true))
+   :pending (AtomicBoolean. false)})
+
+
+(defn canvas ^Canvas [ink]
+  (:canvas ink))
+
+
+(defn- canvas-painter
+  "Paints turtle coordinates onto the canvas, with origo in the center of it."
+  [^Canvas canvas]
+  (let [^GraphicsContext gc (.getGraphicsContext2D canvas)
+        ox (/ (.getWidth canvas) 2.)
+        oy (/ (.getHeight canvas) 2.)]
+    (reify InkLog$Painter
+      (clear [_]
+        (.clearRect gc 0 0 (.getWidth canvas) (.getHeight canvas)))
+      (line [_ x1 y1 x2 y2 width paint round]
+        (doto gc
+          (.setStroke ^Paint paint)
+          (.setLineWidth width)
+          (.setLineCap (if round StrokeLineCap/ROUND StrokeLineCap/SQUARE))
+          (.strokeLine (+ ox x1) (- oy y1) (+ ox x2) (- oy y2))))
+      (polygon [_ xs ys n paint]
+        (let [xs ^doubles xs
+              ys ^doubles ys]
+          (dotimes [i n]
+            (aset xs i (+ ox (aget xs i)))
+            (aset ys i (- oy (aget ys i))))
+          (doto gc
+            (.setFill ^Paint paint)
+            (.fillPolygon xs ys n)))))))
+
+
+(defn render
+  "Paints whatever hasn't been painted yet. Must be called on the JavaFX thread."
+  [{:keys [^InkLog log] :as ink}]
+  (.paint log (canvas-painter (canvas ink))))
+
+
+(defn request-render
+  "Has 'render' called on the JavaFX thread, unless a render is already pending.
+  This way lots of quick drawing results in few passes."
+  [{:keys [^AtomicBoolean pending] :as ink}]
+  (when (.compareAndSet pending false true)
+    (fx/later
+      (.set pending false)
+      (render ink))))
+
+
+(defn layout
+  "Sizes the canvas to the scene (or screen) size 'w' 'h', centered on origo, and re-paints it.
+  Must be called on the JavaFX thread."
+  [{:keys [^InkLog log] :as ink} [w h]]
+  (let [w (double w)
+        h (double h)]
+    (doto (canvas ink)
+      (.setWidth w)
+      (.setHeight h)
+      (.setTranslateX (- (/ w 2.)))
+      (.setTranslateY (- (/ h 2.))))
+    (.invalidate log)
+    (render ink)))
+
+
+(defn position
+  "Returns the position the next entry will get in the paint order.
+  Pass it to 'add-polygon' to have the polygon painted below anything drawn after it was taken."
+  [{:keys [^InkLog log]}]
+  (.position log))
+
+
+(defn add-line
+  "Returns a handle for the line."
+  [{:keys [^InkLog log] :as ink} [x1 y1] [x2 y2] width ^Paint paint round?]
+  (let [h (.addLine log (double x1) (double y1) (double x2) (double y2) (double width) paint (boolean round?))]
+    (request-render ink)
+    h))
+
+
+(defn add-polygon
+  "Returns a handle for the filled polygon of 'points' (turtle coordinates).
+  It is painted below whatever was added from 'position'."
+  [{:keys [^InkLog log] :as ink} points ^Paint paint position]
+  (let [h (.addPolygon log
+                       (double-array (map first points))
+                       (double-array (map second points))
+                       (count points)
+                       paint
+                       (int position))]
+    (request-render ink)
+    h))
+
+
+(defn handle?
+  "Returns true if 'x' is an ink handle (as opposed to a Node)."
+  [x]
+  (instance? Long x))
+
+
+(defn erase
+  "Erases the entries of 'handles', and re-paints."
+  [{:keys [^InkLog log] :as ink} handles]
+  (doseq [h handles]
+    (.erase log (long h)))
+  (request-render ink))
+
+
+(defn clear [{:keys [^InkLog log] :as ink}]
+  (.clear log)
+  (request-render ink))
+
+
+(defn- node-painter
+  "Collects nodes equal to what the canvas-painter would paint."
+  [nodes_]
+  (reify InkLog$Painter
+    (clear [_])
+    (line [_ x1 y1 x2 y2 width paint round]
+      (swap! nodes_ conj
+             (fx/line :x1 x1 :y1 (- y1) :x2 x2 :y2 (- y2)
+                      :width width :color paint :round round)))
+    (polygon [_ xs ys n paint]
+      (swap! nodes_ conj
+             (apply fx/polygon
+                    (concat (interleave (seq xs) (map - ys))
+                            [:fill paint :stroke nil]))))))
+
+
+(defn to-nodes
+  "Returns a vector of Line and Polygon nodes for all that is in the log, in paint order.
+  Used when the screen stops being rasterized."
+  [{:keys [^InkLog log]}]
+  (let [nodes_ (atom [])]
+    (.paintAll log (node-painter nodes_))
+    @nodes_))
@@ -0,0 +1,327 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.application;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * An append-only log of lines - the text and a type-code pr line - kept in memory-mapped segment files.
+ *
+ * Each line is a record: [int length][int type][length chars (UTF-16)].
+ * Only the start of each line is kept on the heap (8 bytes pr line).
+ * The segment being appended to stays mapped; older segments are mapped on demand, and only a few at a time.
+ *
+ * The log is capped at MAX_SEGMENTS segments and MAX_LINES lines.  Beyond that, the oldest segment is dropped,
+ * and its lines are gone - i.e. 'firstLine' moves up.  Line numbers are never re-used.
+ *
+ * Segments are not unmapped explicitly, as a reader may still be using one.  References to them are dropped,
+ * and files that can't be deleted yet (Windows won't delete mapped files) are retried later.
+ *
+ * Lines are appended on one thread, but may be read and searched from any thread.
+ * If the disk fails us, the log closes itself, and further appends are ignored.
+ */
+public class Scrollback {
+
+    public static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    private static final int HEADER_BYTES = 8;
+
+    /** Longer lines are truncated. */
+    public static final int MAX_LINE_CHARS = (SEGMENT_BYTES - HEADER_BYTES) / 2;
+
+    /** Segments kept on disk - i.e. 256 MB. */
+    public static final int MAX_SEGMENTS = 16;
+
+    /** Lines kept - i.e. 32 MB of line starts on the heap. */
+    public static final int MAX_LINES = 4 * 1024 * 1024;
+
+    /** Older segments mapped at any one time. */
+    private static final int MAPPED_SEGMENTS = 4;
+
+    /** Session-directories left behind by earlier runs are deleted when they are this old. */
+    private static final long STALE_MS = 24 * 60 * 60 * 1000L;
+
+
+    private final File dir;
+
+    /** The segment-files, from 'firstSegment'. */
+    private final ArrayList<File> files = new ArrayList<>();
+    private int firstSegment;
+
+    /** Files which couldn't be deleted (yet). */
+    private final ArrayList<File> undeleted = new ArrayList<>();
+
+    private MappedByteBuffer active;
+    private int activeIndex = -1;
+
+    /** Older segments, in least-recently-used order. */
+    private final LinkedHashMap<Integer, MappedByteBuffer> mapped =
+            new LinkedHashMap<Integer, MappedByteBuffer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, MappedByteBuffer> eldest) {
+                    return size() > MAPPED_SEGMENTS;
+                }
+            };
+
+    /** (segment << 32 | offset) of each line, from 'firstLine'. */
+    private long[] starts = new long[1024];
+    private volatile long firstLine;
+    private volatile long count;
+    private volatile boolean open = true;
+
+
+    private Scrollback(File dir) {
+        this.dir = dir;
+    }
+
+
+    /**
+     * Returns a new log in a fresh session-directory in 'parent', or null if it can't be created.
+     * Stale session-directories are cleaned out first.
+     */
+    public static Scrollback create(File parent) {
+        parent.mkdirs();
+        File[] olds = parent.listFiles(File::isDirectory);
+        if (olds != null)
+            for (File old : olds)
+                if (System.currentTimeMillis() - old.lastModified() > STALE_MS)
+                    deleteDir(old);
+
+        File dir = new File(parent, System.currentTimeMillis() + "-" + Long.toHexString(System.nanoTime()));
+        if (!dir.mkdirs())
+            return null;
+        dir.deleteOnExit();
+        return new Scrollback(dir);
+    }
+
+
+    /** Returns the number of lines appended - including dropped ones.  I.e. the number of the next line. */
+    public long lineCount() {
+        return count;
+    }
+
+
+    /** Returns the oldest line still in the log. */
+    public long firstLine() {
+        return firstLine;
+    }
+
+
+    public boolean isOpen() {
+        return open;
+    }
+
+
+    /** Appends 'line' (without its newline). Returns false if the log is closed. */
+    public synchronized boolean appendLine(int type, CharSequence line) {
+        if (!open)
+            return false;
+        int len = Math.min(line.length(), MAX_LINE_CHARS);
+        int bytes = HEADER_BYTES + 2 * len;
+        try {
+            if (active == null || active.remaining() < bytes)
+                nextSegment();
+        }
+        catch (IOException e) {
+            System.err.println("Scrollback closed: " + e);
+            close();
+            return false;
+        }
+        while (count - firstLine >= MAX_LINES && files.size() > 1)
+            dropOldestSegment();
+
+        long c = count;
+        int idx = (int) (c - firstLine);
+        if (idx == starts.length)
+            starts = Arrays.copyOf(starts, Math.min(starts.length * 2, MAX_LINES));
+        starts[idx] = ((long) activeIndex << 32) | active.position();
+
+        active.putInt(len);
+        active.putInt(type);
+        for (int i = 0; i < len; i++)
+            active.putChar(line.charAt(i));
+        count = c + 1;
+        return true;
+    }
+
+
+    public int type(long line) {
+        long start = start(line);
+        return segment(segmentOf(start)).getInt(offsetOf(start) + 4);
+    }
+
+
+    public String line(long line) {
+        long start = start(line);
+        MappedByteBuffer seg = segment(segmentOf(start));
+        int off = offsetOf(start);
+        int len = seg.getInt(off);
+        char[] cs = new char[len];
+        for (int i = 0; i < len; i++)
+            cs[i] = seg.getChar(off + HEADER_BYTES + 2 * i);
+        return new String(cs);
+    }
+
+
+    /**
+     * Returns the first line containing 'needle', starting at line 'from' and moving forward or backward,
+     * or -1 if there is none.
+     * The search runs directly over the mapped segments, so the log is never copied onto the heap.
+     */
+    public long search(String needle, long from, boolean forward, boolean ignoreCase) {
+        int n = needle.length();
+        if (n == 0)
+            return -1;
+        char[] ndl = new char[n];
+        for (int i = 0; i < n; i++)
+            ndl[i] = ignoreCase ? Character.toLowerCase(needle.charAt(i)) : needle.charAt(i);
+
+        long c = count;
+        long step = forward ? 1 : -1;
+        for (long line = from; line >= firstLine && line < c && open; line += step) {
+            long start = start(line);
+            MappedByteBuffer seg = segment(segmentOf(start));
+            int off = offsetOf(start);
+            if (contains(seg, off + HEADER_BYTES, seg.getInt(off), ndl, ignoreCase))
+                return line;
+        }
+        return -1;
+    }
+
+
+    private static boolean contains(MappedByteBuffer seg, int chars, int len, char[] ndl, boolean ignoreCase) {
+        int n = ndl.length;
+        for (int i = 0; i <= len - n; i++) {
+            int j = 0;
+            while (j < n) {
+                char ch = seg.getChar(chars + 2 * (i + j));
+                if ((ignoreCase ? Character.toLowerCase(ch) : ch) != ndl[j])
+                    break;
+                j++;
+            }
+            if (j == n)
+                return true;
+        }
+        return false;
+    }
+
+
+    /** Removes all lines, and the segment-files. */
+    public synchronized void clear() {
+        active = null;
+        activeIndex = -1;
+        mapped.clear();
+        undeleted.addAll(files);
+        // Segments keep counting up, so a new one never gets the path of one which could not be deleted yet.
+        firstSegment += files.size();
+        files.clear();
+        starts = new long[1024];
+        firstLine = 0;
+        count = 0;
+        deleteUndeleted();
+    }
+
+
+    /** Closes the log, and deletes its files. */
+    public synchronized void close() {
+        open = false;
+        clear();
+        dir.delete();
+    }
+
+
+    private synchronized long start(long line) {
+        if (line < firstLine || line >= count)
+            throw new IndexOutOfBoundsException(String.valueOf(line));
+        return starts[(int) (line - firstLine)];
+    }
+
+
+    private static int segmentOf(long start) {
+        return (int) (start >>> 32);
+    }
+
+
+    private static int offsetOf(long start) {
+        return (int) start;
+    }
+
+
+    private synchronized MappedByteBuffer segment(int index) {
+        if (index == activeIndex)
+            return active;
+        MappedByteBuffer seg = mapped.get(index);
+        if (seg == null) {
+            if (index < firstSegment)
+                throw new IndexOutOfBoundsException("Scrollback segment " + index + " has been dropped");
+            try (RandomAccessFile raf = new RandomAccessFile(files.get(index - firstSegment), "r")) {
+                seg = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SEGMENT_BYTES);
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Could not map scrollback segment " + index, e);
+            }
+            mapped.put(index, seg);
+        }
+        return seg;
+    }
+
+
+    private void nextSegment() throws IOException {
+        if (files.size() >= MAX_SEGMENTS)
+            dropOldestSegment();
+        deleteUndeleted();
+        int index = firstSegment + files.size();
+        File f = new File(dir, String.format("%06d.log", index));
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            active = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        }
+        files.add(f);
+        activeIndex = index;
+    }
+
+
+    /** Drops the oldest segment, and its lines. */
+    private void dropOldestSegment() {
+        int seg = firstSegment;
+        int n = 0;
+        int size = (int) (count - firstLine);
+        while (n < size && segmentOf(starts[n]) == seg)
+            n++;
+        System.arraycopy(starts, n, starts, 0, size - n);
+        firstLine += n;
+
+        mapped.remove(seg);
+        undeleted.add(files.remove(0));
+        firstSegment++;
+        deleteUndeleted();
+    }
+
+
+    private void deleteUndeleted() {
+        undeleted.removeIf(f -> f.delete() || !f.exists());
+    }
+
+
+    private static void deleteDir(File dir) {
+        File[] fs = dir.listFiles();
+        if (fs != null)
+            for (File f : fs)
+                f.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,563 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.code;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+
+/**
+ * The tokens of Clojure code, as parallel primitive arrays: start, end, kind and pair.
+ *
+ * The lexing follows 'george.code.tokenizer/tokenize', but no value-objects are created.
+ * (Values are created on demand - see 'george.code.tokenizer/token-value'.)
+ *
+ * Between tokens the lexer carries no state, so any token start is a safe point to restart lexing from.
+ * {@link #relex} uses this to re-lex only the tokens touched by an edit.
+ *
+ * Instances are not modified after they are created, and so may be shared between threads.
+ */
+public final class TokenStream {
+
+    public static final byte SYMBOL = 0;
+    public static final byte NIL = 1;
+    public static final byte BOOLEAN = 2;
+    public static final byte NUMBER = 3;
+    public static final byte KEYWORD = 4;
+    public static final byte STRING = 5;
+    public static final byte CHARACTER = 6;
+    public static final byte COMMENT = 7;
+    public static final byte ARG = 8;
+    public static final byte DELIM = 9;
+    public static final byte MACRO = 10;
+    public static final byte DISPATCH = 11;
+    public static final byte ERROR = 12;
+
+    /** 'pair' for delims without a matching delim, and for tokens which are not delims. */
+    public static final int NO_PAIR = -1;
+
+
+    private final int count;
+    private final int[] starts;
+    private final int[] ends;
+    private final byte[] kinds;
+    private final int[] pairs;
+    // The range of the text which was (re-)lexed to make this stream.
+    private final int lexedStart;
+    private final int lexedEnd;
+
+
+    private TokenStream(CharSequence cs, int count, int[] starts, int[] ends, byte[] kinds, int lexedStart, int lexedEnd) {
+        this.count = count;
+        this.starts = starts;
+        this.ends = ends;
+        this.kinds = kinds;
+        this.pairs = pairDelims(count, kinds, starts, cs);
+        this.lexedStart = lexedStart;
+        this.lexedEnd = lexedEnd;
+    }
+
+
+    public int count() { return count; }
+
+    public int start(int i) { return starts[i]; }
+
+    public int end(int i) { return ends[i]; }
+
+    public byte kind(int i) { return kinds[i]; }
+
+    /** Returns the index of the matching delim, or NO_PAIR. */
+    public int pair(int i) { return pairs[i]; }
+
+    public boolean isUnpaired(int i) {
+        return kinds[i] == DELIM && pairs[i] == NO_PAIR;
+    }
+
+    /** Returns the starts of all unpaired delims. */
+    public int[] unpairedStarts() {
+        int[] res = new int[8];
+        int n = 0;
+        for (int i = 0; i < count; i++)
+            if (isUnpaired(i)) {
+                if (n == res.length)
+                    res = Arrays.copyOf(res, n * 2);
+                res[n++] = starts[i];
+            }
+        return Arrays.copyOf(res, n);
+    }
+
+    /** The start of the range of the text which was lexed to make this stream. Outside it, tokens are as before. */
+    public int lexedStart() { return lexedStart; }
+
+    /** The end of the range of the text which was lexed to make this stream. */
+    public int lexedEnd() { return lexedEnd; }
+
+
+    /** Returns the index of the first token which ends after 'offset'. (May be 'count'.) */
+    public int indexAfter(int offset) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] <= offset)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+
+    /** Returns the index of the token covering 'offset', or -1. */
+    public int indexAt(int offset) {
+        int i = indexAfter(offset);
+        return (i < count && starts[i] <= offset) ? i : -1;
+    }
+
+
+    /** Lexes all of 'cs'. */
+    public static TokenStream lex(CharSequence cs) {
+        Lexer lx = new Lexer(cs, Math.max(16, cs.length() / 4));
+        lx.run(0);
+        return new TokenStream(cs, lx.n, lx.starts, lx.ends, lx.kinds, 0, cs.length());
+    }
+
+
+    /**
+     * Returns a new TokenStream for 'cs',
+     * which is the text this stream was lexed from, with the range 'start' - 'oldEnd' replaced by 'start' - 'newEnd'.
+     * Lexing restarts at the token before the edit, and stops as soon as it is back in step with the old tokens.
+     */
+    public TokenStream relex(CharSequence cs, int start, int oldEnd, int newEnd) {
+        int delta = newEnd - oldEnd;
+        // A token directly before the edit may grow into it (e.g. a symbol), so start there.
+        int first = Math.max(0, indexAfter(start) - 1);
+        int from = first < count ? Math.min(starts[first], start) : start;
+        // Old tokens starting after the edit, which the new lexing may fall back in step with.
+        int resume = indexAfter(oldEnd);
+        while (resume < count && starts[resume] <= oldEnd)
+            resume++;
+
+        Lexer lx = new Lexer(cs, 16 + (newEnd - from) / 4);
+        lx.old = this;
+        lx.resume = resume;
+        lx.delta = delta;
+        lx.run(from);
+
+        int tail = lx.resumedAt < 0 ? 0 : count - lx.resumedAt;
+        int n = first + lx.n + tail;
+        int[] s = new int[n];
+        int[] e = new int[n];
+        byte[] k = new byte[n];
+        System.arraycopy(starts, 0, s, 0, first);
+        System.arraycopy(ends, 0, e, 0, first);
+        System.arraycopy(kinds, 0, k, 0, first);
+        System.arraycopy(lx.starts, 0, s, first, lx.n);
+        System.arraycopy(lx.ends, 0, e, first, lx.n);
+        System.arraycopy(lx.kinds, 0, k, first, lx.n);
+        for (int i = 0; i < tail; i++) {
+            int j = lx.resumedAt + i;
+            s[first + lx.n + i] = starts[j] + delta;
+            e[first + lx.n + i] = ends[j] + delta;
+            k[first + lx.n + i] = kinds[j];
+        }
+        int lexedEnd = lx.resumedAt < 0 ? cs.length() : starts[lx.resumedAt] + delta;
+        return new TokenStream(cs, n, s, e, k, Math.min(from, start), Math.max(lexedEnd, newEnd));
+    }
+
+
+    /**
+     * Pairs delims the same way as 'george.code.tokenizer/paired-delims':
+     * A delim which doesn't close the top of the stack is pushed onto it - even an end-delim.
+     */
+    private static int[] pairDelims(int count, byte[] kinds, int[] starts, CharSequence cs) {
+        int[] pairs = new int[count];
+        Arrays.fill(pairs, NO_PAIR);
+        int[] stack = new int[64];
+        int top = 0;
+        for (int i = 0; i < count; i++) {
+            if (kinds[i] != DELIM)
+                continue;
+            char ch = cs.charAt(starts[i]);
+            if (top > 0 && closes(cs.charAt(starts[stack[top - 1]]), ch)) {
+                int j = stack[--top];
+                pairs[i] = j;
+                pairs[j] = i;
+            }
+            else {
+                if (top == stack.length)
+                    stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = i;
+            }
+        }
+        return pairs;
+    }
+
+
+    private static boolean closes(char start, char end) {
+        switch (start) {
+            case '(': return end == ')';
+            case '[': return end == ']';
+            case '{': return end == '}';
+            default: return false;
+        }
+    }
+
+
+    private static final Pattern INT_PATTERN =
+            Pattern.compile("([-+]?)(?:(0)|([1-9][0-9]*)|0[xX]([0-9A-Fa-f]+)|0([0-7]+)|([1-9][0-9]?)[rR]([0-9A-Za-z]+)|0[0-9]+)(N)?");
+    private static final Pattern RATIO_PATTERN = Pattern.compile("([-+]?[0-9]+)/([0-9]+)");
+    private static final Pattern FLOAT_PATTERN = Pattern.compile("([-+]?[0-9]+(\\.[0-9]*)?([eE][-+]?[0-9]+)?)(M)?");
+
+
+    /** The same as 'clojure.tools.reader.impl.commons/match-number' - except it only checks the format. */
+    static boolean isValidNumber(String s) {
+        java.util.regex.Matcher m = INT_PATTERN.matcher(s);
+        if (m.matches())
+            // The last alternative ('0[0-9]+') is not a valid number.
+            return m.group(2) != null || m.group(3) != null || m.group(4) != null || m.group(5) != null || m.group(7) != null;
+        return RATIO_PATTERN.matcher(s).matches() || FLOAT_PATTERN.matcher(s).matches();
+    }
+
+
+    /** The same test as 'clojure.tools.reader.impl.commons/parse-symbol'. */
+    static boolean isValidSymbol(String token) {
+        if (token.isEmpty() || token.endsWith(":") || token.startsWith("::"))
+            return false;
+        int nsIdx = token.indexOf('/');
+        if (nsIdx > 0) {
+            String ns = token.substring(0, nsIdx);
+            if (nsIdx + 1 == token.length())
+                return false;
+            String sym = token.substring(nsIdx + 1);
+            return !Character.isDigit(sym.charAt(0))
+                    && !ns.endsWith(":")
+                    && (sym.equals("/") || sym.indexOf('/') == -1);
+        }
+        return token.equals("/") || nsIdx == -1;
+    }
+
+
+    static boolean isValidCharacter(String token) {
+        switch (token) {
+            case "newline": case "space": case "tab": case "backspace": case "formfeed": case "return":
+                return true;
+        }
+        if (token.length() == 1)
+            return true;
+        if (token.charAt(0) == 'u') {
+            int c = parseDigits(token, 1, token.length(), 16);
+            return token.length() == 5 && c >= 0 && !(c > 0xD7FF && c < 0xE000);
+        }
+        if (token.charAt(0) == 'o') {
+            int c = parseDigits(token, 1, token.length(), 8);
+            return token.length() <= 4 && c >= 0 && c <= 0377;
+        }
+        return false;
+    }
+
+
+    /** Returns the value of the digits, or -1 if any of them is not a digit in 'base'. */
+    private static int parseDigits(CharSequence cs, int from, int to, int base) {
+        int v = 0;
+        for (int i = from; i < to; i++) {
+            int d = Character.digit(cs.charAt(i), base);
+            if (d < 0)
+                return -1;
+            v = v * base + d;
+        }
+        return v;
+    }
+
+
+    static boolean isWhitespace(char ch) {
+        return Character.isWhitespace(ch) || ch == ',';
+    }
+
+
+    /** True for the chars for which 'george.code.tokenizer/macros' returns a reader. */
+    static boolean isMacro(char ch) {
+        switch (ch) {
+            case '"': case ':': case ';': case '\\': case '%': case '#':
+            case '\'': case '^': case '@': case '`': case '~':
+            case '(': case '[': case '{': case ')': case ']': case '}':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+
+    static boolean isMacroTerminating(char ch) {
+        switch (ch) {
+            case '"': case ';': case '@': case '^': case '`': case '~':
+            case '(': case ')': case '[': case ']': case '{': case '}': case '\\':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+
+    private static final class Lexer {
+
+        final CharSequence cs;
+        final int len;
+
+        int n;
+        int[] starts;
+        int[] ends;
+        byte[] kinds;
+
+        // When re-lexing: The old stream, the first of its tokens lexing may fall back in step with,
+        // and how much the edit shifted them.
+        TokenStream old;
+        int resume;
+        int delta;
+        // The old token which lexing fell back in step with, or -1.
+        int resumedAt = -1;
+
+
+        Lexer(CharSequence cs, int capacity) {
+            this.cs = cs;
+            this.len = cs.length();
+            this.starts = new int[capacity];
+            this.ends = new int[capacity];
+            this.kinds = new byte[capacity];
+        }
+
+
+        void add(int start, int end, byte kind) {
+            if (n == starts.length) {
+                int cap = n * 2;
+                starts = Arrays.copyOf(starts, cap);
+                ends = Arrays.copyOf(ends, cap);
+                kinds = Arrays.copyOf(kinds, cap);
+            }
+            starts[n] = start;
+            ends[n] = end;
+            kinds[n] = kind;
+            n++;
+        }
+
+
+        /** Returns true if the old tokens can be used from (new) offset 'i'. */
+        boolean inStep(int i) {
+            if (old == null)
+                return false;
+            while (resume < old.count && old.starts[resume] + delta < i)
+                resume++;
+            if (resume < old.count && old.starts[resume] + delta == i) {
+                resumedAt = resume;
+                return true;
+            }
+            return false;
+        }
+
+
+        void run(int i) {
+            while (i < len) {
+                char ch = cs.charAt(i);
+                if (isWhitespace(ch))
+                    i++;
+                else if (inStep(i))
+                    return;
+                else
+                    i = token(i, ch);
+            }
+        }
+
+
+        int tokenEnd(int j) {
+            while (j < len) {
+                char c = cs.charAt(j);
+                if (isWhitespace(c) || isMacroTerminating(c))
+                    break;
+                j++;
+            }
+            return j;
+        }
+
+
+        /** Adds the token starting at 'i', and returns where it ends. */
+        int token(int i, char ch) {
+            if (Character.isDigit(ch)
+                    || ((ch == '+' || ch == '-') && i + 1 < len && Character.isDigit(cs.charAt(i + 1))))
+                return number(i);
+
+            switch (ch) {
+                case '"':
+                    return string(i);
+                case ':':
+                    return keyword(i);
+                case ';':
+                    return comment(i);
+                case '\\':
+                    return character(i);
+                case '%':
+                    return arg(i);
+                case '#':
+                    add(i, i + 1, DISPATCH);
+                    return i + 1;
+                case '\'': case '^': case '@': case '`': case '~':
+                    add(i, i + 1, MACRO);
+                    return i + 1;
+                case '(': case '[': case '{': case ')': case ']': case '}':
+                    add(i, i + 1, DELIM);
+                    return i + 1;
+                default:
+                    return symbol(i);
+            }
+        }
+
+
+        int number(int i) {
+            int j = i + 1;
+            while (j < len) {
+                char c = cs.charAt(j);
+                if (isWhitespace(c) || isMacro(c))
+                    break;
+                j++;
+            }
+            add(i, j, isValidNumber(cs.subSequence(i, j).toString()) ? NUMBER : ERROR);
+            return j;
+        }
+
+
+        int string(int i) {
+            boolean valid = true;
+            int j = i + 1;
+            while (j < len) {
+                char c = cs.charAt(j);
+                if (c == '"') {
+                    j++;
+                    break;
+                }
+                if (c != '\\') {
+                    j++;
+                    continue;
+                }
+                // An escape
+                j++;
+                char e = j < len ? cs.charAt(j) : 0;
+                j++;
+                switch (e) {
+                    case 't': case 'r': case 'n': case '\\': case '"': case 'b': case 'f':
+                        break;
+                    case 'u': {
+                        int k = j;
+                        while (k < len && k < j + 4 && Character.digit(cs.charAt(k), 16) >= 0)
+                            k++;
+                        valid &= k == j + 4;
+                        j = k;
+                        break;
+                    }
+                    default:
+                        if (e != 0 && Character.isDigit(e)) {
+                            int k = j;
+                            while (k < len && k < j + 2 && Character.isDigit(cs.charAt(k)))
+                                k++;
+                            int v = parseDigits(cs, j - 1, k, 8);
+                            valid &= v >= 0 && v <= 0377;
+                            j = k;
+                        }
+                        else
+                            valid = false;
+                }
+            }
+            j = Math.min(j, len);
+            add(i, j, valid ? STRING : ERROR);
+            return j;
+        }
+
+
+        int keyword(int i) {
+            int j = i + 1;
+            if (j == len) {
+                add(i, j, ERROR);
+                return j;
+            }
+            if (isWhitespace(cs.charAt(j))) {
+                add(i, j + 1, ERROR);
+                return j + 1;
+            }
+            int end = tokenEnd(j);
+            add(i, end, isValidSymbol(cs.subSequence(j, end).toString()) ? KEYWORD : ERROR);
+            return end;
+        }
+
+
+        int comment(int i) {
+            int j = i + 1;
+            while (j < len && cs.charAt(j) != '\n')
+                j++;
+            add(i, j, COMMENT);
+            return j;
+        }
+
+
+        int character(int i) {
+            int j = i + 1;
+            if (j == len) {
+                add(i, j, ERROR);
+                return j;
+            }
+            char c = cs.charAt(j);
+            if (isWhitespace(c) || isMacroTerminating(c)) {
+                add(i, j + 1, CHARACTER);
+                return j + 1;
+            }
+            int end = tokenEnd(j);
+            add(i, end, isValidCharacter(cs.subSequence(j, end).toString()) ? CHARACTER : ERROR);
+            return end;
+        }
+
+
+        int arg(int i) {
+            int j = i + 1;
+            while (j < len) {
+                char c = cs.charAt(j);
+                if (isWhitespace(c) || isMacroTerminating(c))
+                    break;
+                if (c == '&') {
+                    j++;
+                    break;
+                }
+                if (!Character.isDigit(c)) {
+                    add(i, j + 1, ERROR);
+                    return j + 1;
+                }
+                j++;
+            }
+            add(i, j, ARG);
+            return j;
+        }
+
+
+        int symbol(int i) {
+            int end = tokenEnd(i);
+            String token = cs.subSequence(i, end).toString();
+            byte kind;
+            switch (token) {
+                case "nil":
+                    kind = NIL;
+                    break;
+                case "true": case "false":
+                    kind = BOOLEAN;
+                    break;
+                case "NaN": case "-Infinity": case "Infinity": case "+Infinity":
+                    kind = NUMBER;
+                    break;
+                default:
+                    kind = isValidSymbol(token) ? SYMBOL : ERROR;
+            }
+            add(i, end, kind);
+            return end;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.editor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javafx.collections.ModifiableObservableListBase;
+
+
+/**
+ * The observable list of lines which the editor's VirtualFlow renders.
+ *
+ * In addition to the usual ObservableList operations,
+ * it can replace a range of items with other items as a single change - see {@link #replace}.
+ * (The standard list would fire one change for the removal and one for the addition.)
+ */
+public class LineList<E> extends ModifiableObservableListBase<E> {
+
+    private final ArrayList<E> items;
+
+
+    public LineList(Collection<? extends E> items) {
+        this.items = new ArrayList<>(items);
+    }
+
+
+    /** Replaces the items from 'from' (inclusive) til 'to' (exclusive) with 'replacement'. */
+    public void replace(int from, int to, Collection<? extends E> replacement) {
+        if (from == to && replacement.isEmpty())
+            return;
+        beginChange();
+        try {
+            List<E> range = items.subList(from, to);
+            List<E> removed = new ArrayList<>(range);
+            range.clear();
+            items.addAll(from, replacement);
+            modCount++;
+            if (!removed.isEmpty())
+                nextRemove(from, removed);
+            if (!replacement.isEmpty())
+                nextAdd(from, from + replacement.size());
+        }
+        finally {
+            endChange();
+        }
+    }
+
+
+    @Override
+    public E get(int index) {
+        return items.get(index);
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    protected void doAdd(int index, E element) {
+        items.add(index, element);
+    }
+
+    @Override
+    protected E doSet(int index, E element) {
+        return items.set(index, element);
+    }
+
+    @Override
+    protected E doRemove(int index) {
+        return items.remove(index);
+    }
+}
@@ -0,0 +1,1043 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.editor.formatters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A JVM port of Parinfer's "Indent Mode" and "Paren Mode".
+ *
+ * It follows parinfer.js 3.11.0 (Copyright 2015-2017 Shaun Lebron, MIT License) function by function,
+ * so the two may be compared side by side.  See: https://github.com/shaunlebron/parinfer/tree/master/lib
+ * (The JS-version is still in resources/js/parinfer.js, and is used to check this one.)
+ *
+ * Differences from the JS-version:
+ * - It reads a CharSequence directly, and returns the edits it made, not a new text.
+ * - It may process only a range of lines. See {@link Options}.
+ * - Smart Mode, "changes", "prevCursor", tab-stops, paren-trails and returned parens are not implemented,
+ *   as the editor doesn't use them.
+ */
+public final class Parinfer {
+
+    /** Used for "no value" for ints, like in the JS-version. */
+    public static final int UINT_NULL = -999;
+
+    private static final int INDENT_MODE = 0;
+    private static final int PAREN_MODE = 1;
+
+    // A char may be replaced by nothing or by 2 spaces (a tab), so chars are passed around as ints.
+    private static final int NO_CHAR = -1;
+    private static final int DOUBLE_SPACE = -2;
+
+    private static final char BACKSLASH = '\\';
+    private static final char BLANK_SPACE = ' ';
+    private static final char DOUBLE_QUOTE = '"';
+    private static final char NEWLINE = '\n';
+    private static final char SEMICOLON = ';';
+    private static final char TAB = '\t';
+
+
+    //--------------------------------------------------------------------------
+    // Options and results
+    //--------------------------------------------------------------------------
+
+    /**
+     * The cursor is in lines/cols of the text.
+     *
+     * If 'endLine' is set (not negative), then processing starts at 'startLine' (located at 'startOffset'),
+     * and ends as soon as a line after 'endLine' starts a new top-level form.
+     * 'startLine' must itself be the start of a top-level form (not in a string, and starting at col 0),
+     * or 0.  Lines outside the range are assumed to already be formatted.
+     */
+    public static final class Options {
+        public int cursorLine = UINT_NULL;
+        public int cursorX = UINT_NULL;
+        public int startLine = 0;
+        public int startOffset = 0;
+        public int endLine = -1;
+    }
+
+
+    /** Replace the chars from 'start' til 'end' (offsets in the original text) with 'text'. */
+    public static final class Edit {
+        public final int start;
+        public final int end;
+        public final String text;
+
+        Edit(int start, int end, String text) {
+            this.start = start;
+            this.end = end;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return "Edit[" + start + " " + end + " \"" + text + "\"]";
+        }
+    }
+
+
+    public static final class Error {
+        public final String name;
+        public final String message;
+        public final int lineNo;
+        public final int x;
+        /** Only set for "unmatched-close-paren", else null/UINT_NULL. */
+        public final String extraName;
+        public final int extraLineNo;
+        public final int extraX;
+
+        Error(String name, int lineNo, int x, String extraName, int extraLineNo, int extraX) {
+            this.name = name;
+            this.message = errorMessage(name);
+            this.lineNo = lineNo;
+            this.x = x;
+            this.extraName = extraName;
+            this.extraLineNo = extraLineNo;
+            this.extraX = extraX;
+        }
+
+        @Override
+        public String toString() {
+            return "Error[" + name + " " + lineNo + ":" + x + "]";
+        }
+    }
+
+
+    public static final class Result {
+        public final boolean success;
+        /** In ascending order, and not overlapping. Empty if not 'success'. */
+        public final List<Edit> edits;
+        public final int cursorLine;
+        public final int cursorX;
+        public final Error error;
+        /** The lines that were processed (inclusive). */
+        public final int startLine;
+        public final int endLine;
+
+        Result(boolean success, List<Edit> edits, int cursorLine, int cursorX, Error error, int startLine, int endLine) {
+            this.success = success;
+            this.edits = edits;
+            this.cursorLine = cursorLine;
+            this.cursorX = cursorX;
+            this.error = error;
+            this.startLine = startLine;
+            this.endLine = endLine;
+        }
+
+        /** Returns 'text' with the edits applied. */
+        public String applyTo(CharSequence text) {
+            StringBuilder sb = new StringBuilder(text.length() + 16);
+            int pos = 0;
+            for (Edit e : edits) {
+                sb.append(text, pos, e.start).append(e.text);
+                pos = e.end;
+            }
+            return sb.append(text, pos, text.length()).toString();
+        }
+    }
+
+
+    public static Result indentMode(CharSequence text, Options options) {
+        return new Parinfer(text, options, INDENT_MODE).process();
+    }
+
+
+    public static Result parenMode(CharSequence text, Options options) {
+        return new Parinfer(text, options, PAREN_MODE).process();
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Errors
+    //--------------------------------------------------------------------------
+
+    public static final String ERROR_QUOTE_DANGER = "quote-danger";
+    public static final String ERROR_EOL_BACKSLASH = "eol-backslash";
+    public static final String ERROR_UNCLOSED_QUOTE = "unclosed-quote";
+    public static final String ERROR_UNCLOSED_PAREN = "unclosed-paren";
+    public static final String ERROR_UNMATCHED_CLOSE_PAREN = "unmatched-close-paren";
+    public static final String ERROR_UNMATCHED_OPEN_PAREN = "unmatched-open-paren";
+    public static final String ERROR_LEADING_CLOSE_PAREN = "leading-close-paren";
+
+    private static final String[] ERROR_NAMES = {
+            ERROR_QUOTE_DANGER, ERROR_EOL_BACKSLASH, ERROR_UNCLOSED_QUOTE, ERROR_UNCLOSED_PAREN,
+            ERROR_UNMATCHED_CLOSE_PAREN, ERROR_UNMATCHED_OPEN_PAREN, ERROR_LEADING_CLOSE_PAREN};
+
+    // Indexes into ERROR_NAMES, and into 'errorPosCache'
+    private static final int QUOTE_DANGER = 0;
+    private static final int EOL_BACKSLASH = 1;
+    private static final int UNCLOSED_QUOTE = 2;
+    private static final int UNCLOSED_PAREN = 3;
+    private static final int UNMATCHED_CLOSE_PAREN = 4;
+    private static final int UNMATCHED_OPEN_PAREN = 5;
+    private static final int LEADING_CLOSE_PAREN = 6;
+
+    private static String errorMessage(String name) {
+        switch (name) {
+            case ERROR_QUOTE_DANGER: return "Quotes must balanced inside comment blocks.";
+            case ERROR_EOL_BACKSLASH: return "Line cannot end in a hanging backslash.";
+            case ERROR_UNCLOSED_QUOTE: return "String is missing a closing quote.";
+            case ERROR_UNCLOSED_PAREN: return "Unclosed open-paren.";
+            case ERROR_UNMATCHED_CLOSE_PAREN: return "Unmatched close-paren.";
+            case ERROR_UNMATCHED_OPEN_PAREN: return "Unmatched open-paren.";
+            case ERROR_LEADING_CLOSE_PAREN: return "Line cannot lead with a close-paren.";
+            default: return "Unhandled error.";
+        }
+    }
+
+
+    /** Thrown to abort processing. Carries no stack trace, as it is part of normal flow. */
+    private static final class ParinferException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final Error error;
+
+        ParinferException(Error error) {
+            super(error == null ? "stop" : error.name, null, false, false);
+            this.error = error;
+        }
+    }
+
+    /** Thrown when a range is processed, and the end of the range is reached. */
+    private static final ParinferException STOP = new ParinferException(null);
+
+
+    private static final class ErrorPos {
+        int lineNo;
+        int x;
+        int inputLineNo;
+        int inputX;
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Result Structure
+    //--------------------------------------------------------------------------
+
+    private static final class Opener {
+        int inputLineNo;
+        int inputX;
+        int lineNo;
+        int x;
+        char ch;
+        int indentDelta;
+        int maxChildIndent;
+    }
+
+
+    // The range of parens at the end of a line
+    private int trailLineNo = UINT_NULL;
+    private int trailStartX = UINT_NULL;
+    private int trailEndX = UINT_NULL;
+    private final ArrayList<Opener> trailOpeners = new ArrayList<>();
+
+    private final CharSequence text;
+    private final int mode;
+
+    private final int startLine;
+    private final int endLine;
+    private int nextInputOffset;
+
+    private final int origCursorX;
+    private final int origCursorLine;
+
+    private final ArrayList<String> inputLines = new ArrayList<>();
+    private final ArrayList<Integer> inputOffsets = new ArrayList<>();
+    private int inputLineNo;
+    private int inputX = -1;
+
+    private final ArrayList<String> lines = new ArrayList<>();
+    private int lineNo;
+    private int ch = NO_CHAR;
+    private int x = 0;
+    private int indentX = UINT_NULL;
+
+    private final ArrayList<Opener> parenStack = new ArrayList<>();
+
+    private int cursorX;
+    private int cursorLine;
+
+    private boolean isInCode = true;
+    private boolean isEscaping = false;
+    private boolean isEscaped = false;
+    private boolean isInStr = false;
+    private boolean isInComment = false;
+    private int commentX = UINT_NULL;
+
+    private boolean quoteDanger = false;
+    private boolean trackingIndent = false;
+    private boolean skipChar = false;
+
+    private int maxIndent = UINT_NULL;
+    private int indentDelta = 0;
+
+    private final ErrorPos[] errorPosCache = new ErrorPos[ERROR_NAMES.length];
+
+
+    private Parinfer(CharSequence text, Options options, int mode) {
+        this.text = text;
+        this.mode = mode;
+        this.startLine = options.startLine;
+        this.endLine = options.endLine;
+        this.nextInputOffset = options.startOffset;
+        this.lineNo = startLine - 1;
+        this.inputLineNo = startLine - 1;
+        this.cursorX = this.origCursorX = options.cursorX;
+        this.cursorLine = this.origCursorLine = options.cursorLine;
+    }
+
+
+    /** Reads the next line from the text, or returns null if there are no more. */
+    private String readLine() {
+        int start = nextInputOffset;
+        int len = text.length();
+        if (start > len)
+            return null;
+        int end = start;
+        while (end < len && text.charAt(end) != NEWLINE)
+            end++;
+        nextInputOffset = end + 1;
+        // Like splitting on /\r?\n/
+        int contentEnd = (end > start && text.charAt(end - 1) == '\r') ? end - 1 : end;
+        String line = text.subSequence(start, contentEnd).toString();
+        inputLines.add(line);
+        inputOffsets.add(start);
+        return line;
+    }
+
+
+    private ParinferException error(int name) {
+        ErrorPos cache = errorPosCache[name];
+
+        int eLineNo = cache != null ? cache.inputLineNo : inputLineNo;
+        int eX = cache != null ? cache.inputX : inputX;
+        String extraName = null;
+        int extraLineNo = UINT_NULL;
+        int extraX = UINT_NULL;
+
+        Opener opener = peek(parenStack, 0);
+
+        if (name == UNMATCHED_CLOSE_PAREN) {
+            // extra error info for locating the open-paren that it should've matched
+            cache = errorPosCache[UNMATCHED_OPEN_PAREN];
+            if (cache != null || opener != null) {
+                extraName = ERROR_UNMATCHED_OPEN_PAREN;
+                extraLineNo = cache != null ? cache.inputLineNo : opener.inputLineNo;
+                extraX = cache != null ? cache.inputX : opener.inputX;
+            }
+        }
+        else if (name == UNCLOSED_PAREN) {
+            eLineNo = opener.inputLineNo;
+            eX = opener.inputX;
+        }
+        return new ParinferException(new Error(ERROR_NAMES[name], eLineNo, eX, extraName, extraLineNo, extraX));
+    }
+
+
+    private ErrorPos cacheErrorPos(int name) {
+        ErrorPos e = new ErrorPos();
+        e.lineNo = lineNo;
+        e.x = x;
+        e.inputLineNo = inputLineNo;
+        e.inputX = inputX;
+        errorPosCache[name] = e;
+        return e;
+    }
+
+
+    //--------------------------------------------------------------------------
+    // String Operations
+    //--------------------------------------------------------------------------
+
+    private static String str(int ch) {
+        switch (ch) {
+            case NO_CHAR: return "";
+            case DOUBLE_SPACE: return "  ";
+            default: return String.valueOf((char) ch);
+        }
+    }
+
+    private static int length(int ch) {
+        switch (ch) {
+            case NO_CHAR: return 0;
+            case DOUBLE_SPACE: return 2;
+            default: return 1;
+        }
+    }
+
+    // Behaves like JS: Indexes past the end are clamped.
+    private static String replaceWithinString(String orig, int start, int end, String replace) {
+        int len = orig.length();
+        return orig.substring(0, Math.min(start, len)) + replace + orig.substring(Math.min(end, len));
+    }
+
+    private static String repeatString(String text, int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++)
+            sb.append(text);
+        return sb.toString();
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Line operations
+    //--------------------------------------------------------------------------
+
+    private boolean isCursorAffected(int start, int end) {
+        if (cursorX == start && cursorX == end)
+            return cursorX == 0;
+        return cursorX >= end;
+    }
+
+    private void shiftCursorOnEdit(int lineNo, int start, int end, String replace) {
+        int oldLength = end - start;
+        int newLength = replace.length();
+        int dx = newLength - oldLength;
+
+        if (dx != 0 &&
+                cursorLine == lineNo &&
+                cursorX != UINT_NULL &&
+                isCursorAffected(start, end)) {
+            cursorX += dx;
+        }
+    }
+
+    private void replaceWithinLine(int lineNo, int start, int end, String replace) {
+        int i = lineNo - startLine;
+        lines.set(i, replaceWithinString(lines.get(i), start, end, replace));
+        shiftCursorOnEdit(lineNo, start, end, replace);
+    }
+
+    private void insertWithinLine(int lineNo, int idx, String insert) {
+        replaceWithinLine(lineNo, idx, idx, insert);
+    }
+
+    private void initLine(String line) {
+        x = 0;
+        lineNo++;
+        lines.add(line);
+
+        // reset line-specific state
+        indentX = UINT_NULL;
+        commentX = UINT_NULL;
+        indentDelta = 0;
+        errorPosCache[UNMATCHED_CLOSE_PAREN] = null;
+        errorPosCache[UNMATCHED_OPEN_PAREN] = null;
+        errorPosCache[LEADING_CLOSE_PAREN] = null;
+
+        trackingIndent = !isInStr;
+    }
+
+    // if the current character has changed, commit its change to the current line.
+    private void commitChar(int origCh) {
+        if (origCh != ch) {
+            replaceWithinLine(lineNo, x, x + length(origCh), str(ch));
+            indentDelta -= (length(origCh) - length(ch));
+        }
+        x += length(ch);
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Misc Utils
+    //--------------------------------------------------------------------------
+
+    private static int clamp(int val, int minN, int maxN) {
+        if (minN != UINT_NULL)
+            val = Math.max(minN, val);
+        if (maxN != UINT_NULL)
+            val = Math.min(maxN, val);
+        return val;
+    }
+
+    private static Opener peek(ArrayList<Opener> arr, int idxFromBack) {
+        int maxIdx = arr.size() - 1;
+        if (idxFromBack > maxIdx)
+            return null;
+        return arr.get(maxIdx - idxFromBack);
+    }
+
+    private static Opener pop(ArrayList<Opener> arr) {
+        return arr.remove(arr.size() - 1);
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Questions about characters
+    //--------------------------------------------------------------------------
+
+    private static boolean isOpenParen(int ch) {
+        return ch == '{' || ch == '(' || ch == '[';
+    }
+
+    private static boolean isCloseParen(int ch) {
+        return ch == '}' || ch == ')' || ch == ']';
+    }
+
+    private static char matchParen(int ch) {
+        switch (ch) {
+            case '{': return '}';
+            case '}': return '{';
+            case '[': return ']';
+            case ']': return '[';
+            case '(': return ')';
+            case ')': return '(';
+            default: return 0;
+        }
+    }
+
+    private boolean isValidCloseParen(int ch) {
+        if (parenStack.isEmpty())
+            return false;
+        return peek(parenStack, 0).ch == matchParen(ch);
+    }
+
+    private boolean isWhitespace() {
+        return !isEscaped && (ch == BLANK_SPACE || ch == DOUBLE_SPACE);
+    }
+
+    // can this be the last code character of a list?
+    private boolean isClosable() {
+        boolean closer = (isCloseParen(ch) && !isEscaped);
+        return isInCode && !isWhitespace() && ch != NO_CHAR && !closer;
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Literal character events
+    //--------------------------------------------------------------------------
+
+    private void onOpenParen() {
+        if (isInCode) {
+            Opener opener = new Opener();
+            opener.inputLineNo = inputLineNo;
+            opener.inputX = inputX;
+            opener.lineNo = lineNo;
+            opener.x = x;
+            opener.ch = (char) ch;
+            opener.indentDelta = indentDelta;
+            opener.maxChildIndent = UINT_NULL;
+            parenStack.add(opener);
+        }
+    }
+
+    private void onMatchedCloseParen() {
+        Opener opener = peek(parenStack, 0);
+        trailEndX = x + 1;
+        trailOpeners.add(opener);
+        pop(parenStack);
+    }
+
+    private void onUnmatchedCloseParen() {
+        if (mode == PAREN_MODE) {
+            throw error(UNMATCHED_CLOSE_PAREN);
+        }
+        else if (mode == INDENT_MODE && errorPosCache[UNMATCHED_CLOSE_PAREN] == null) {
+            cacheErrorPos(UNMATCHED_CLOSE_PAREN);
+            Opener opener = peek(parenStack, 0);
+            if (opener != null) {
+                ErrorPos e = cacheErrorPos(UNMATCHED_OPEN_PAREN);
+                e.inputLineNo = opener.inputLineNo;
+                e.inputX = opener.inputX;
+            }
+        }
+        ch = NO_CHAR;
+    }
+
+    private void onCloseParen() {
+        if (isInCode) {
+            if (isValidCloseParen(ch))
+                onMatchedCloseParen();
+            else
+                onUnmatchedCloseParen();
+        }
+    }
+
+    private void onTab() {
+        if (isInCode)
+            ch = DOUBLE_SPACE;
+    }
+
+    private void onSemicolon() {
+        if (isInCode) {
+            isInComment = true;
+            commentX = x;
+        }
+    }
+
+    private void onNewline() {
+        isInComment = false;
+        ch = NO_CHAR;
+    }
+
+    private void onQuote() {
+        if (isInStr) {
+            isInStr = false;
+        }
+        else if (isInComment) {
+            quoteDanger = !quoteDanger;
+            if (quoteDanger)
+                cacheErrorPos(QUOTE_DANGER);
+        }
+        else {
+            isInStr = true;
+            cacheErrorPos(UNCLOSED_QUOTE);
+        }
+    }
+
+    private void onBackslash() {
+        isEscaping = true;
+    }
+
+    private void afterBackslash() {
+        isEscaping = false;
+        isEscaped = true;
+
+        if (ch == NEWLINE) {
+            if (isInCode)
+                throw error(EOL_BACKSLASH);
+            onNewline();
+        }
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Character dispatch
+    //--------------------------------------------------------------------------
+
+    private void onChar() {
+        int c = ch;
+        isEscaped = false;
+
+        if (isEscaping)              afterBackslash();
+        else if (isOpenParen(c))     onOpenParen();
+        else if (isCloseParen(c))    onCloseParen();
+        else if (c == DOUBLE_QUOTE)  onQuote();
+        else if (c == SEMICOLON)     onSemicolon();
+        else if (c == BACKSLASH)     onBackslash();
+        else if (c == TAB)           onTab();
+        else if (c == NEWLINE)       onNewline();
+
+        isInCode = !isInComment && !isInStr;
+
+        if (isClosable())
+            resetParenTrail(lineNo, x + length(ch));
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Cursor functions
+    //--------------------------------------------------------------------------
+
+    private static boolean isCursorLeftOf(int cursorX, int cursorLine, int x, int lineNo) {
+        return cursorLine == lineNo &&
+                x != UINT_NULL &&
+                cursorX != UINT_NULL &&
+                cursorX <= x; // inclusive since (cursorX = x) implies (x-1 < cursor < x)
+    }
+
+    private static boolean isCursorRightOf(int cursorX, int cursorLine, int x, int lineNo) {
+        return cursorLine == lineNo &&
+                x != UINT_NULL &&
+                cursorX != UINT_NULL &&
+                cursorX > x;
+    }
+
+    private boolean isCursorInComment() {
+        return isCursorRightOf(cursorX, cursorLine, commentX, lineNo);
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Paren Trail functions
+    //--------------------------------------------------------------------------
+
+    private void resetParenTrail(int lineNo, int x) {
+        trailLineNo = lineNo;
+        trailStartX = x;
+        trailEndX = x;
+        trailOpeners.clear();
+    }
+
+    private boolean isCursorClampingParenTrail() {
+        return isCursorRightOf(cursorX, cursorLine, trailStartX, lineNo) && !isCursorInComment();
+    }
+
+    // INDENT MODE: allow the cursor to clamp the paren trail
+    private void clampParenTrailToCursor() {
+        int startX = trailStartX;
+        int endX = trailEndX;
+
+        if (isCursorClampingParenTrail()) {
+            int newStartX = Math.max(startX, cursorX);
+            int newEndX = Math.max(endX, cursorX);
+
+            String line = lines.get(lineNo - startLine);
+            int removeCount = 0;
+            for (int i = startX; i < newStartX && i < line.length(); i++) {
+                if (isCloseParen(line.charAt(i)))
+                    removeCount++;
+            }
+            trailOpeners.subList(0, Math.min(removeCount, trailOpeners.size())).clear();
+            trailStartX = newStartX;
+            trailEndX = newEndX;
+        }
+    }
+
+    // INDENT MODE: pops the paren trail from the stack
+    private void popParenTrail() {
+        if (trailStartX == trailEndX)
+            return;
+
+        while (!trailOpeners.isEmpty())
+            parenStack.add(pop(trailOpeners));
+    }
+
+    private int getParentOpenerIndex(int indentX) {
+        int i;
+        for (i = 0; i < parenStack.size(); i++) {
+            Opener opener = peek(parenStack, i);
+            boolean currOutside = (opener.x < indentX);
+            boolean prevOutside = (opener.x - opener.indentDelta < indentX);
+
+            if (prevOutside) {
+                // If an open-paren WAS outside, its `indentDelta` will be used to KEEP IT
+                // outside, by adjusting the indentation of its child lines.
+                break;
+            }
+            if (currOutside) {
+                // If an open-paren was JUST pushed outside and its parent open-paren was
+                // not pushed by same amount, new child line(s) will be adopted.
+                // Clear `indentDelta` since it is reserved for previous child lines only.
+                Opener nextOpener = peek(parenStack, i + 1);
+                if (nextOpener == null || nextOpener.indentDelta != opener.indentDelta) {
+                    opener.indentDelta = 0;
+                    break;
+                }
+            }
+        }
+        return i;
+    }
+
+    // INDENT MODE: correct paren trail from indentation
+    private void correctParenTrail(int indentX) {
+        StringBuilder parens = new StringBuilder();
+
+        int index = getParentOpenerIndex(indentX);
+        for (int i = 0; i < index; i++) {
+            Opener opener = pop(parenStack);
+            trailOpeners.add(opener);
+            parens.append(matchParen(opener.ch));
+        }
+
+        if (trailLineNo != UINT_NULL) {
+            replaceWithinLine(trailLineNo, trailStartX, trailEndX, parens.toString());
+            trailEndX = trailStartX + parens.length();
+        }
+    }
+
+    // PAREN MODE: remove spaces from the paren trail
+    private void cleanParenTrail() {
+        int startX = trailStartX;
+        int endX = trailEndX;
+
+        if (startX == endX || lineNo != trailLineNo)
+            return;
+
+        String line = lines.get(lineNo - startLine);
+        StringBuilder newTrail = new StringBuilder();
+        int spaceCount = 0;
+        for (int i = startX; i < endX; i++) {
+            char c = i < line.length() ? line.charAt(i) : 0;
+            if (isCloseParen(c))
+                newTrail.append(c);
+            else
+                spaceCount++;
+        }
+
+        if (spaceCount > 0) {
+            replaceWithinLine(lineNo, startX, endX, newTrail.toString());
+            trailEndX -= spaceCount;
+        }
+    }
+
+    // PAREN MODE: append a valid close-paren to the end of the paren trail
+    private void appendParenTrail() {
+        Opener opener = pop(parenStack);
+        char closeCh = matchParen(opener.ch);
+
+        setMaxIndent(opener);
+        insertWithinLine(trailLineNo, trailEndX, String.valueOf(closeCh));
+
+        trailEndX++;
+        trailOpeners.add(opener);
+    }
+
+    private void invalidateParenTrail() {
+        resetParenTrail(UINT_NULL, UINT_NULL);
+    }
+
+    private void checkUnmatchedOutsideParenTrail() {
+        ErrorPos cache = errorPosCache[UNMATCHED_CLOSE_PAREN];
+        if (cache != null && cache.x < trailStartX)
+            throw error(UNMATCHED_CLOSE_PAREN);
+    }
+
+    private void setMaxIndent(Opener opener) {
+        if (opener != null) {
+            Opener parent = peek(parenStack, 0);
+            if (parent != null)
+                parent.maxChildIndent = opener.x;
+            else
+                maxIndent = opener.x;
+        }
+    }
+
+    private void finishNewParenTrail() {
+        if (isInStr) {
+            invalidateParenTrail();
+        }
+        else if (mode == INDENT_MODE) {
+            clampParenTrailToCursor();
+            popParenTrail();
+        }
+        else if (mode == PAREN_MODE) {
+            setMaxIndent(peek(trailOpeners, 0));
+            if (lineNo != cursorLine)
+                cleanParenTrail();
+        }
+    }
+
+
+    //--------------------------------------------------------------------------
+    // Indentation functions
+    //--------------------------------------------------------------------------
+
+    private void addIndent(int delta) {
+        int origIndent = x;
+        int newIndent = origIndent + delta;
+        String indentStr = repeatString(String.valueOf(BLANK_SPACE), newIndent);
+        replaceWithinLine(lineNo, 0, origIndent, indentStr);
+        x = newIndent;
+        indentX = newIndent;
+        indentDelta += delta;
+    }
+
+    private boolean shouldAddOpenerIndent(Opener opener) {
+        // Don't add opener.indentDelta if the user already added it.
+        // (happens when multiple lines are indented together)
+        return opener.indentDelta != indentDelta;
+    }
+
+    private void correctIndent() {
+        int origIndent = x;
+        int newIndent = origIndent;
+        int minIndent = 0;
+        int maxIndent = this.maxIndent;
+
+        Opener opener = peek(parenStack, 0);
+        if (opener != null) {
+            minIndent = opener.x + 1;
+            maxIndent = opener.maxChildIndent;
+            if (shouldAddOpenerIndent(opener))
+                newIndent += opener.indentDelta;
+        }
+
+        newIndent = clamp(newIndent, minIndent, maxIndent);
+
+        if (newIndent != origIndent)
+            addIndent(newIndent - origIndent);
+    }
+
+    private void onIndent() {
+        indentX = x;
+        trackingIndent = false;
+
+        if (quoteDanger)
+            throw error(QUOTE_DANGER);
+
+        if (mode == INDENT_MODE) {
+            correctParenTrail(x);
+
+            Opener opener = peek(parenStack, 0);
+            if (opener != null && shouldAddOpenerIndent(opener))
+                addIndent(opener.indentDelta);
+        }
+        else if (mode == PAREN_MODE) {
+            correctIndent();
+        }
+    }
+
+    private void checkLeadingCloseParen() {
+        if (errorPosCache[LEADING_CLOSE_PAREN] != null && trailLineNo == lineNo)
+            throw error(LEADING_CLOSE_PAREN);
+    }
+
+    private void onLeadingCloseParen() {
+        if (mode == INDENT_MODE) {
+            if (errorPosCache[LEADING_CLOSE_PAREN] == null)
+                cacheErrorPos(LEADING_CLOSE_PAREN);
+            skipChar = true;
+        }
+        if (mode == PAREN_MODE) {
+            if (!isValidCloseParen(ch)) {
+                throw error(UNMATCHED_CLOSE_PAREN);
+            }
+            else if (isCursorLeftOf(cursorX, cursorLine, x, lineNo)) {
+                resetParenTrail(lineNo, x);
+                onIndent();
+            }
+            else {
+                appendParenTrail();
+                skipChar = true;
+            }
+        }
+    }
+
+    private void onCommentLine() {
+        int parenTrailLength = trailOpeners.size();
+
+        // restore the openers matching the previous paren trail
+        if (mode == PAREN_MODE) {
+            for (int j = 0; j < parenTrailLength; j++)
+                parenStack.add(peek(trailOpeners, j));
+        }
+
+        int i = getParentOpenerIndex(x);
+        Opener opener = peek(parenStack, i);
+        if (opener != null) {
+            // shift the comment line based on the parent open paren
+            if (shouldAddOpenerIndent(opener))
+                addIndent(opener.indentDelta);
+        }
+
+        // repop the openers matching the previous paren trail
+        if (mode == PAREN_MODE) {
+            for (int j = 0; j < parenTrailLength; j++)
+                pop(parenStack);
+        }
+    }
+
+    private void checkIndent() {
+        if (isCloseParen(ch)) {
+            onLeadingCloseParen();
+        }
+        else if (ch == SEMICOLON) {
+            // comments don't count as indentation points
+            onCommentLine();
+            trackingIndent = false;
+        }
+        else if (ch != NEWLINE && ch != BLANK_SPACE && ch != TAB) {
+            onIndent();
+        }
+    }
+
+
+    //--------------------------------------------------------------------------
+    // High-level processing functions
+    //--------------------------------------------------------------------------
+
+    // A line after the range which starts a new top-level form makes all following lines independent of the range.
+    // (Its indentation has closed all open parens, and nothing has been changed in it yet.)
+    private boolean isEndOfRange() {
+        return endLine >= 0 &&
+                mode == INDENT_MODE &&
+                lineNo > endLine &&
+                indentX == 0 &&
+                parenStack.isEmpty();
+    }
+
+    private void processChar(int c) {
+        ch = c;
+        skipChar = false;
+
+        if (trackingIndent) {
+            checkIndent();
+            if (isEndOfRange())
+                throw STOP;
+        }
+
+        if (skipChar)
+            ch = NO_CHAR;
+        else
+            onChar();
+
+        commitChar(c);
+    }
+
+    private void processLine(String line) {
+        initLine(line);
+
+        for (int i = 0; i < line.length(); i++) {
+            inputX = i;
+            processChar(line.charAt(i));
+        }
+        processChar(NEWLINE);
+
+        checkUnmatchedOutsideParenTrail();
+        checkLeadingCloseParen();
+
+        if (lineNo == trailLineNo)
+            finishNewParenTrail();
+    }
+
+    private void finalizeResult() {
+        if (quoteDanger)  throw error(QUOTE_DANGER);
+        if (isInStr)      throw error(UNCLOSED_QUOTE);
+
+        if (!parenStack.isEmpty()) {
+            if (mode == PAREN_MODE)
+                throw error(UNCLOSED_PAREN);
+        }
+        if (mode == INDENT_MODE) {
+            x = 0;
+            onIndent();
+        }
+    }
+
+    private Result process() {
+        try {
+            String line;
+            while ((line = readLine()) != null) {
+                inputLineNo++;
+                processLine(line);
+            }
+            finalizeResult();
+        }
+        catch (ParinferException e) {
+            if (e != STOP)
+                return new Result(false, Collections.<Edit>emptyList(), origCursorLine, origCursorX,
+                        e.error, startLine, inputLineNo);
+        }
+        return new Result(true, edits(), cursorLine, cursorX, null, startLine, startLine + lines.size() - 1);
+    }
+
+    /** Compares each output line with its input line, and returns the differences. */
+    private List<Edit> edits() {
+        ArrayList<Edit> edits = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String in = inputLines.get(i);
+            String out = lines.get(i);
+            if (in.equals(out))
+                continue;
+            int min = Math.min(in.length(), out.length());
+            int p = 0;
+            while (p < min && in.charAt(p) == out.charAt(p))
+                p++;
+            int s = 0;
+            while (s < min - p && in.charAt(in.length() - 1 - s) == out.charAt(out.length() - 1 - s))
+                s++;
+            int offset = inputOffsets.get(i);
+            edits.add(new Edit(offset + p, offset + in.length() - s, out.substring(p, out.length() - s)));
+        }
+        return edits;
+    }
+}
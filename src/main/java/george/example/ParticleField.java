@@ -0,0 +1,145 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.example;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * The state of the particles of Stars, as one primitive array pr attribute ("structure of arrays") in stead of one node each.
+ *
+ * Each particle moves out from the center along its angle, crossing the view every CYCLE_NANOS, starting at its 'start'.
+ * 'update' computes the positions for a given time, and 'rasterize' plots them into a buffer of ARGB pixels.
+ * Both split the particles into slices that are run on the common fork/join pool, unless the field is set not to be parallel (or there is only 1 core).
+ *
+ * Not thread-safe: call 'update' and 'rasterize' from one thread (normally the JavaFX thread).
+ */
+public final class ParticleField {
+
+    public static final long CYCLE_NANOS = 2_000_000_000L;
+
+    /** Particles pr slice.  Fewer, and the forking costs more than it saves. */
+    private static final int SLICE = 16 * 1024;
+
+
+    private interface RangeOp {
+        void run(int from, int to);
+    }
+
+
+    private static final class Slice extends RecursiveAction {
+        private final RangeOp op;
+        private final int from;
+        private final int to;
+
+        Slice(RangeOp op, int from, int to) {
+            this.op = op;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SLICE)
+                op.run(from, to);
+            else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Slice(op, from, mid), new Slice(op, mid, to));
+            }
+        }
+    }
+
+
+    public final int count;
+
+    // Positions in pixels, from the top-left corner - as of the last 'update'.
+    public final double[] x;
+    public final double[] y;
+
+    public final double[] angle;
+    public final long[] start;
+
+    // Pre-calculated from 'angle'.
+    private final double[] cos;
+    private final double[] sin;
+
+    private boolean parallel = Runtime.getRuntime().availableProcessors() > 1;
+
+
+    /** Random angles and starts - the same for the same 'seed'. */
+    public ParticleField(int count, long seed) {
+        this.count = count;
+        x = new double[count];
+        y = new double[count];
+        angle = new double[count];
+        start = new long[count];
+        cos = new double[count];
+        sin = new double[count];
+
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++) {
+            angle[i] = 2.0 * Math.PI * random.nextDouble();
+            start[i] = random.nextInt((int) CYCLE_NANOS);
+            cos[i] = Math.cos(angle[i]);
+            sin[i] = Math.sin(angle[i]);
+        }
+    }
+
+
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+
+    /** Computes the positions at time 'now' (nanos), in a view of 'width' x 'height'. */
+    public void update(long now, double width, double height) {
+        final double cx = 0.5 * width;
+        final double cy = 0.5 * height;
+        final double radius = Math.sqrt(2) * Math.max(cx, cy);
+        forEachSlice((from, to) -> {
+            for (int i = from; i < to; i++) {
+                double d = Math.floorMod(now - start[i], CYCLE_NANOS) * radius / CYCLE_NANOS;
+                x[i] = cos[i] * d + cx;
+                y[i] = sin[i] * d + cy;
+            }
+        });
+    }
+
+
+    /**
+     * Fills 'pixels' ('width' x 'height', row by row) with 'background', and plots every particle inside it as 1 pixel of 'argb'.
+     * (Slices may plot to the same pixel at the same time, but always the same value.)
+     */
+    public void rasterize(int[] pixels, int width, int height, int background, int argb) {
+        Arrays.fill(pixels, 0, width * height, background);
+        forEachSlice((from, to) -> {
+            for (int i = from; i < to; i++) {
+                int px = (int) x[i];
+                int py = (int) y[i];
+                if (px >= 0 && px < width && py >= 0 && py < height)
+                    pixels[py * width + px] = argb;
+            }
+        });
+    }
+
+
+    private void forEachSlice(RangeOp op) {
+        if (!parallel || count <= SLICE)
+            op.run(0, count);
+        else
+            ForkJoinPool.commonPool().invoke(new Slice(op, 0, count));
+    }
+}
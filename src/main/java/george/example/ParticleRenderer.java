@@ -0,0 +1,88 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.example;
+
+import javafx.scene.Group;
+import javafx.scene.Node;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+
+
+/**
+ * Shows a ParticleField, either as one Rectangle node pr particle (NODES - as Stars does),
+ * or as pixels in a single WritableImage (BUFFER).
+ *
+ * Add 'node()' to a scene, and call 'render' once pr frame - on the JavaFX thread.
+ */
+public final class ParticleRenderer {
+
+    public enum Mode { NODES, BUFFER }
+
+
+    private static final int WHITE = 0xffffffff;
+    private static final int TRANSPARENT = 0;
+
+    private final ParticleField field;
+    private final Mode mode;
+    private final Group group = new Group();
+
+    private Rectangle[] rectangles;
+
+    private WritableImage image;
+    private int[] pixels;
+
+
+    public ParticleRenderer(ParticleField field, Mode mode) {
+        this.field = field;
+        this.mode = mode;
+        if (mode == Mode.NODES) {
+            rectangles = new Rectangle[field.count];
+            for (int i = 0; i < field.count; i++)
+                rectangles[i] = new Rectangle(1, 1, Color.WHITE);
+            group.getChildren().addAll(rectangles);
+        }
+    }
+
+
+    public Node node() {
+        return group;
+    }
+
+
+    public Mode mode() {
+        return mode;
+    }
+
+
+    /** Updates the field to time 'now' (nanos) in a view of 'width' x 'height', and shows it. */
+    public void render(long now, double width, double height) {
+        field.update(now, width, height);
+        if (mode == Mode.NODES) {
+            double[] x = field.x;
+            double[] y = field.y;
+            for (int i = 0; i < field.count; i++) {
+                rectangles[i].setTranslateX(x[i]);
+                rectangles[i].setTranslateY(y[i]);
+            }
+        }
+        else {
+            int w = Math.max(1, (int) Math.ceil(width));
+            int h = Math.max(1, (int) Math.ceil(height));
+            if (image == null || (int) image.getWidth() != w || (int) image.getHeight() != h) {
+                image = new WritableImage(w, h);
+                pixels = new int[w * h];
+                group.getChildren().setAll(new ImageView(image));
+            }
+            field.rasterize(pixels, w, h, TRANSPARENT, WHITE);
+            image.getPixelWriter().setPixels(0, 0, w, h, PixelFormat.getIntArgbPreInstance(), pixels, 0, w);
+        }
+    }
+}
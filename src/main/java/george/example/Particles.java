@@ -0,0 +1,66 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.example;
+
+import java.util.List;
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.scene.Group;
+import javafx.scene.Scene;
+import javafx.scene.paint.Color;
+import javafx.stage.Stage;
+
+
+/**
+ * Stars, on the particle engine.
+ *
+ * Args: [nodes|buffer] [count] - e.g. "buffer 1000000".  Default is "buffer 200000".
+ * The title shows the average frame time.
+ */
+public class Particles extends Application {
+
+    @Override
+    public void start(final Stage primaryStage) {
+        List<String> args = getParameters().getRaw();
+        ParticleRenderer.Mode mode =
+                args.size() > 0 ? ParticleRenderer.Mode.valueOf(args.get(0).toUpperCase()) : ParticleRenderer.Mode.BUFFER;
+        int count = args.size() > 1 ? Integer.parseInt(args.get(1)) : 200000;
+
+        final ParticleRenderer renderer = new ParticleRenderer(new ParticleField(count, System.nanoTime()), mode);
+        final Scene scene = new Scene(new Group(renderer.node()), 800, 600, Color.BLACK);
+        final String title = String.format("Particles.java - %s %,d", mode.name().toLowerCase(), count);
+        primaryStage.setScene(scene);
+        primaryStage.setTitle(title);
+        primaryStage.show();
+
+        new AnimationTimer() {
+            private long last;
+            private long frames;
+
+            @Override
+            public void handle(long now) {
+                renderer.render(now, scene.getWidth(), scene.getHeight());
+                frames++;
+                if (last == 0) {
+                    last = now;
+                    frames = 0;
+                }
+                else if (now - last >= 1_000_000_000L) {
+                    primaryStage.setTitle(String.format("%s - %.1f ms/frame", title, (now - last) / 1e6 / frames));
+                    last = now;
+                    frames = 0;
+                }
+            }
+        }.start();
+    }
+
+    public static void main(String[] args) {
+        launch(args);
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.turtle;
+
+import java.util.Arrays;
+
+
+/**
+ * The retained log of everything drawn on a rasterized turtle screen - lines and filled polygons -
+ * from which the ink layer can be (re-)painted at any time.
+ *
+ * Coordinates are turtle coordinates (y up). Paints are whatever the painter understands (JavaFX Paint).
+ * Each entry is identified by a handle which stays valid until the log is cleared.
+ * Entries are painted in "order", which is append order, except for polygons that are inserted below earlier entries.
+ *
+ * Entries are appended on any thread, and painted on the JavaFX thread.
+ */
+public class InkLog {
+
+    public interface Painter {
+        /** Called before a complete re-paint. */
+        void clear();
+        void line(double x1, double y1, double x2, double y2, double width, Object paint, boolean round);
+        void polygon(double[] xs, double[] ys, int n, Object paint);
+    }
+
+
+    private static final byte DEAD = 0;
+    private static final byte LINE = 1;
+    private static final byte LINE_ROUND = 2;
+    private static final byte POLYGON = 3;
+
+
+    // Pr entry, by id.
+    private byte[] kinds = new byte[1024];
+    private int[] coordStarts = new int[1024];
+    private Object[] paints = new Object[1024];
+    private int ids;
+
+    // Lines: x1 y1 x2 y2 width.  Polygons: n xs.. ys..
+    private double[] coords = new double[8192];
+    private int coordCount;
+
+    // Ids in paint order.
+    private int[] order = new int[1024];
+    private int size;
+
+    /** How much of 'order' has been painted.  If 'stale', nothing is, and the layer needs a complete re-paint. */
+    private int painted;
+    private boolean stale;
+
+    /** Part of every handle, so handles from before a 'clear' don't hit new entries. */
+    private int generation;
+
+
+    /** Returns the number of entries, including erased ones - i.e. the position a new entry will get in the paint order. */
+    public synchronized int position() {
+        return size;
+    }
+
+
+    public synchronized long addLine(double x1, double y1, double x2, double y2, double width, Object paint, boolean round) {
+        int id = newEntry(round ? LINE_ROUND : LINE, paint, 5);
+        int c = coordStarts[id];
+        coords[c] = x1;
+        coords[c + 1] = y1;
+        coords[c + 2] = x2;
+        coords[c + 3] = y2;
+        coords[c + 4] = width;
+        insert(size, id);
+        return handle(id);
+    }
+
+
+    /** Adds a polygon of the 'n' points in 'xs' and 'ys', to be painted below all entries from 'position'. */
+    public synchronized long addPolygon(double[] xs, double[] ys, int n, Object paint, int position) {
+        int id = newEntry(POLYGON, paint, 1 + 2 * n);
+        int c = coordStarts[id];
+        coords[c] = n;
+        System.arraycopy(xs, 0, coords, c + 1, n);
+        System.arraycopy(ys, 0, coords, c + 1 + n, n);
+        int pos = Math.max(0, Math.min(position, size));
+        if (pos < painted)
+            stale = true;
+        insert(pos, id);
+        return handle(id);
+    }
+
+
+    /** Erases the entry.  Returns false if the handle is from before the last 'clear'. */
+    public synchronized boolean erase(long handle) {
+        if ((int) (handle >>> 32) != generation)
+            return false;
+        int id = (int) handle;
+        if (kinds[id] != DEAD) {
+            kinds[id] = DEAD;
+            paints[id] = null;
+            stale = true;
+        }
+        return true;
+    }
+
+
+    public synchronized void clear() {
+        Arrays.fill(paints, 0, ids, null);
+        ids = 0;
+        coordCount = 0;
+        size = 0;
+        painted = 0;
+        stale = true;
+        generation++;
+    }
+
+
+    /** Forces a complete re-paint the next time - e.g. after the layer has been resized. */
+    public synchronized void invalidate() {
+        stale = true;
+    }
+
+
+    public synchronized boolean isPainted() {
+        return !stale && painted == size;
+    }
+
+
+    /**
+     * Paints what hasn't been painted yet - or all of it, after 'clear'-ing the painter, if the layer is stale.
+     * Returns the number of entries painted.
+     */
+    public synchronized int paint(Painter p) {
+        int from = painted;
+        if (stale) {
+            p.clear();
+            from = 0;
+            stale = false;
+        }
+        paint(p, from, size);
+        painted = size;
+        return size - from;
+    }
+
+
+    /** Paints all of it, without changing what is regarded as painted. */
+    public synchronized void paintAll(Painter p) {
+        paint(p, 0, size);
+    }
+
+
+    private void paint(Painter p, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int id = order[i];
+            int c = coordStarts[id];
+            switch (kinds[id]) {
+                case LINE:
+                case LINE_ROUND:
+                    p.line(coords[c], coords[c + 1], coords[c + 2], coords[c + 3], coords[c + 4],
+                            paints[id], kinds[id] == LINE_ROUND);
+                    break;
+                case POLYGON:
+                    int n = (int) coords[c];
+                    p.polygon(Arrays.copyOfRange(coords, c + 1, c + 1 + n),
+                            Arrays.copyOfRange(coords, c + 1 + n, c + 1 + 2 * n), n, paints[id]);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+
+    private long handle(int id) {
+        return ((long) generation << 32) | id;
+    }
+
+
+    private int newEntry(byte kind, Object paint, int coordLen) {
+        if (ids == kinds.length) {
+            int len = kinds.length * 2;
+            kinds = Arrays.copyOf(kinds, len);
+            coordStarts = Arrays.copyOf(coordStarts, len);
+            paints = Arrays.copyOf(paints, len);
+        }
+        if (coordCount + coordLen > coords.length)
+            coords = Arrays.copyOf(coords, Math.max(coords.length * 2, coordCount + coordLen));
+        int id = ids++;
+        kinds[id] = kind;
+        paints[id] = paint;
+        coordStarts[id] = coordCount;
+        coordCount += coordLen;
+        return id;
+    }
+
+
+    private void insert(int pos, int id) {
+        if (size == order.length)
+            order = Arrays.copyOf(order, size * 2);
+        System.arraycopy(order, pos, order, pos + 1, size - pos);
+        order[pos] = id;
+        size++;
+        if (pos < painted)
+            painted++;
+    }
+}
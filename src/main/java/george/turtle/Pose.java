@@ -0,0 +1,85 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.turtle;
+
+
+/**
+ * A turtle's position, heading and visibility - in turtle coordinates (y up, heading counterclockwise).
+ *
+ * This is the authoritative state of the turtle.  The turtle's node on screen is a view of it,
+ * and is updated from it whenever the screen's command buffer is flushed.
+ * That way a turtle can be moved without waiting for the JavaFX thread.
+ *
+ * Instances are compared by identity, so they can be used as keys in the set of moved turtles.
+ */
+public final class Pose {
+
+    /** The node (a JavaFX Group) that shows the turtle. */
+    public final Object node;
+
+    private double x;
+    private double y;
+    private double heading;
+    private boolean visible;
+
+
+    public Pose(Object node) {
+        this.node = node;
+    }
+
+
+    public synchronized double x() {
+        return x;
+    }
+
+
+    public synchronized double y() {
+        return y;
+    }
+
+
+    /** Returns [x y] - read together, so they are of the same position, even while the turtle is moved by another thread. */
+    public synchronized double[] xy() {
+        return new double[] {x, y};
+    }
+
+
+    public synchronized double heading() {
+        return heading;
+    }
+
+
+    public synchronized boolean isVisible() {
+        return visible;
+    }
+
+
+    public synchronized void setPosition(double x, double y) {
+        this.x = x;
+        this.y = y;
+    }
+
+
+    /** Sets x and/or y together.  A null part is left as it is. */
+    public synchronized void updatePosition(Number x, Number y) {
+        if (x != null)
+            this.x = x.doubleValue();
+        if (y != null)
+            this.y = y.doubleValue();
+    }
+
+
+    public synchronized void setHeading(double heading) {
+        this.heading = heading;
+    }
+
+
+    public synchronized void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+}
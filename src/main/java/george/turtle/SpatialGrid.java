@@ -0,0 +1,233 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.turtle;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+
+
+/**
+ * A uniform grid over the positions of the turtles on a screen, for finding turtles near a position
+ * without looking at all of them.
+ *
+ * Each entry is a position and a radius - a circle that contains the turtle whatever its heading.
+ * An entry is kept in the cell of its position only.  Queries that care about the radius reach out by the largest radius.
+ *
+ * Results are in the order the entries were added - i.e. the order in which the turtles were created.
+ */
+public class SpatialGrid {
+
+    private static final class Entry {
+        final Object key;
+        final Object value;
+        final long seq;
+        double x;
+        double y;
+        double radius;
+        long cell;
+
+        Entry(Object key, Object value, long seq) {
+            this.key = key;
+            this.value = value;
+            this.seq = seq;
+        }
+    }
+
+
+    private static final Comparator<Entry> BY_SEQ = (a, b) -> Long.compare(a.seq, b.seq);
+
+    /** Rings searched by 'nearest' before it gives up on the grid, and simply looks at all entries. */
+    private static final int MAX_RINGS = 32;
+
+
+    private final double cellSize;
+    private final HashMap<Object, Entry> entries = new HashMap<>();
+    private final HashMap<Long, ArrayList<Entry>> cells = new HashMap<>();
+    /** Only grows - until 'clear'. */
+    private double maxRadius;
+    private long seqs;
+
+
+    public SpatialGrid(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+
+    /** Adds (or replaces) the entry for 'key'.  'value' is what queries return. */
+    public synchronized void add(Object key, Object value, double x, double y, double radius) {
+        remove(key);
+        Entry e = new Entry(key, value, seqs++);
+        e.radius = radius;
+        maxRadius = Math.max(maxRadius, radius);
+        entries.put(key, e);
+        place(e, x, y);
+    }
+
+
+    public synchronized void move(Object key, double x, double y) {
+        Entry e = entries.get(key);
+        if (e == null)
+            return;
+        if (cellOf(x, y) == e.cell) {
+            e.x = x;
+            e.y = y;
+        }
+        else {
+            unplace(e);
+            place(e, x, y);
+        }
+    }
+
+
+    public synchronized void setRadius(Object key, double radius) {
+        Entry e = entries.get(key);
+        if (e != null) {
+            e.radius = radius;
+            maxRadius = Math.max(maxRadius, radius);
+        }
+    }
+
+
+    public synchronized void remove(Object key) {
+        Entry e = entries.remove(key);
+        if (e != null)
+            unplace(e);
+    }
+
+
+    public synchronized void clear() {
+        entries.clear();
+        cells.clear();
+        maxRadius = 0;
+    }
+
+
+    /**
+     * Returns the values of all entries within 'distance' of [x y].
+     * If 'touching', then an entry counts if its circle is within 'distance', else only if its position is.
+     */
+    public synchronized ArrayList<Object> within(double x, double y, double distance, boolean touching) {
+        double reach = distance + (touching ? maxRadius : 0);
+        ArrayList<Entry> found = new ArrayList<>();
+
+        long cx0 = cellCoord(x - reach), cx1 = cellCoord(x + reach);
+        long cy0 = cellCoord(y - reach), cy1 = cellCoord(y + reach);
+        // (In doubles, as huge positions would overflow.)
+        double cellCount = (Math.floor((x + reach) / cellSize) - Math.floor((x - reach) / cellSize) + 1)
+                         * (Math.floor((y + reach) / cellSize) - Math.floor((y - reach) / cellSize) + 1);
+        if (!(cellCount <= entries.size())) {
+            // Visiting the cells would be more work than looking at all the entries.
+            for (Entry e : entries.values())
+                if (isWithin(e, x, y, distance, touching))
+                    found.add(e);
+        }
+        else
+            for (long cx = cx0; cx <= cx1; cx++)
+                for (long cy = cy0; cy <= cy1; cy++) {
+                    ArrayList<Entry> cell = cells.get(cellKey(cx, cy));
+                    if (cell != null)
+                        for (Entry e : cell)
+                            if (isWithin(e, x, y, distance, touching))
+                                found.add(e);
+                }
+
+        found.sort(BY_SEQ);
+        ArrayList<Object> res = new ArrayList<>(found.size());
+        for (Entry e : found)
+            res.add(e.value);
+        return res;
+    }
+
+
+    /** Returns the value of the entry whose position is nearest to [x y] - other than that of 'exceptKey' - or null. */
+    public synchronized Object nearest(double x, double y, Object exceptKey) {
+        long cx = cellCoord(x), cy = cellCoord(y);
+        Entry best = null;
+        double bestDist = Double.POSITIVE_INFINITY;
+
+        for (int r = 0; r <= MAX_RINGS; r++) {
+            for (long i = cx - r; i <= cx + r; i++)
+                for (long j = cy - r; j <= cy + r; j++) {
+                    if (Math.max(Math.abs(i - cx), Math.abs(j - cy)) != r)
+                        continue;  // not on the ring
+                    ArrayList<Entry> cell = cells.get(cellKey(i, j));
+                    if (cell != null)
+                        for (Entry e : cell) {
+                            double d = Math.hypot(e.x - x, e.y - y);
+                            if (e.key != exceptKey && isBetter(e, d, best, bestDist)) {
+                                best = e;
+                                bestDist = d;
+                            }
+                        }
+                }
+            // Anything in the rings further out is at least this far away.
+            if (best != null && bestDist <= r * cellSize)
+                return best.value;
+        }
+
+        // Far away, or not at all.
+        for (Entry e : entries.values()) {
+            double d = Math.hypot(e.x - x, e.y - y);
+            if (e.key != exceptKey && isBetter(e, d, best, bestDist)) {
+                best = e;
+                bestDist = d;
+            }
+        }
+        return best == null ? null : best.value;
+    }
+
+
+    private static boolean isBetter(Entry e, double d, Entry best, double bestDist) {
+        return best == null || d < bestDist || (d == bestDist && e.seq < best.seq);
+    }
+
+
+    private static boolean isWithin(Entry e, double x, double y, double distance, boolean touching) {
+        return Math.hypot(e.x - x, e.y - y) <= distance + (touching ? e.radius : 0);
+    }
+
+
+    private long cellCoord(double v) {
+        // Huge (or infinite) positions end up in the outermost cells.  NaN ends up in 0.
+        return (long) Math.floor(v / cellSize);
+    }
+
+
+    private static long cellKey(long cx, long cy) {
+        return (cx << 32) ^ (cy & 0xffffffffL);
+    }
+
+
+    private long cellOf(double x, double y) {
+        return cellKey(cellCoord(x), cellCoord(y));
+    }
+
+
+    private void place(Entry e, double x, double y) {
+        e.x = x;
+        e.y = y;
+        e.cell = cellOf(x, y);
+        cells.computeIfAbsent(e.cell, k -> new ArrayList<>(4)).add(e);
+    }
+
+
+    private void unplace(Entry e) {
+        ArrayList<Entry> cell = cells.get(e.cell);
+        if (cell != null) {
+            cell.remove(e);
+            if (cell.isEmpty())
+                cells.remove(e.cell);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.turtle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * The scheduling behind a turtle screen's ticker: a fixed-timestep game loop.
+ *
+ * 'pulse' is called once per frame (by an AnimationTimer, on the JavaFX thread) with the current time.
+ * It calls the update handlers once per fixed step of game time that has passed,
+ * and then the render handlers once, with how far (0-1) into the next step the time is.
+ *
+ * If the updates can't keep up, the overload policy decides what happens to the time not caught up on:
+ * SKIP runs at most 1 step per frame, CLAMP at most MAX_CLAMP_STEPS, and CATCH_UP as many as needed (up to a second's worth).
+ * Time that is dropped is counted in 'droppedSteps'.
+ *
+ * Handlers are named, and called in order of priority (lowest first), then in the order they were added.
+ */
+public final class TickScheduler {
+
+    public enum Policy { SKIP, CATCH_UP, CLAMP }
+
+
+    public interface Handler {
+        /** 'alpha' is 0 for update handlers. */
+        void call(double alpha);
+    }
+
+
+    private static final class Entry {
+        final Object name;
+        final int priority;
+        final boolean render;
+        final Handler handler;
+        final long seq;
+
+        Entry(Object name, int priority, boolean render, Handler handler, long seq) {
+            this.name = name;
+            this.priority = priority;
+            this.render = render;
+            this.handler = handler;
+            this.seq = seq;
+        }
+    }
+
+
+    private static final Comparator<Entry> BY_PRIORITY =
+            Comparator.<Entry>comparingInt(e -> e.priority).thenComparingLong(e -> e.seq);
+
+    public static final int MAX_CLAMP_STEPS = 4;
+    private static final long MAX_CATCH_UP_NANOS = 1_000_000_000L;
+
+    /** Frame times kept for the percentile. */
+    private static final int FRAME_SAMPLES = 240;
+    /** Weight of the latest frame in the averaged update and render times. */
+    private static final double SMOOTHING = 0.1;
+
+
+    // Replaced (not changed) on every change, so a pulse can iterate without locking.
+    private volatile Entry[] updates = new Entry[0];
+    private volatile Entry[] renders = new Entry[0];
+    private final ArrayList<Entry> entries = new ArrayList<>();
+    private long seqs;
+
+    private volatile long stepNanos = 1_000_000_000L / 30;
+    private volatile Policy policy = Policy.CLAMP;
+    private volatile boolean running;
+    private volatile boolean restarted;
+
+    // Only touched by 'pulse'.
+    private long last;
+    private long accumulator;
+    private long windowStart;
+    private int windowPulses;
+
+    // Stats.  Written by 'pulse', read by anyone.
+    private final double[] frameMillis = new double[FRAME_SAMPLES];
+    private int frameCount;
+    private int frameNext;
+    private double fps;
+    private double updateMillis;
+    private double renderMillis;
+    private long steps;
+    private long droppedSteps;
+
+
+    public void setStepMillis(double millis) {
+        if (!(millis > 0))
+            throw new IllegalArgumentException("The step must be a positive number of milliseconds. Got: " + millis);
+        stepNanos = Math.max(1, (long) (millis * 1e6));
+    }
+
+
+    public double stepMillis() {
+        return stepNanos / 1e6;
+    }
+
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+
+    public Policy policy() {
+        return policy;
+    }
+
+
+    /** Adds the handler, or replaces the one with the same name (which then keeps its place among equal priorities). */
+    public synchronized void put(Object name, int priority, boolean render, Handler handler) {
+        long seq = seqs++;
+        for (int i = 0; i < entries.size(); i++)
+            if (entries.get(i).name.equals(name)) {
+                seq = entries.get(i).seq;
+                entries.remove(i);
+                break;
+            }
+        entries.add(new Entry(name, priority, render, handler, seq));
+        publish();
+    }
+
+
+    public synchronized void remove(Object name) {
+        entries.removeIf(e -> e.name.equals(name));
+        publish();
+    }
+
+
+    public synchronized void clearHandlers() {
+        entries.clear();
+        publish();
+    }
+
+
+    /** Returns the names of the handlers, in the order they are called - update handlers first. */
+    public List<Object> handlerNames() {
+        ArrayList<Object> names = new ArrayList<>();
+        for (Entry e : updates)
+            names.add(e.name);
+        for (Entry e : renders)
+            names.add(e.name);
+        return names;
+    }
+
+
+    private void publish() {
+        entries.sort(BY_PRIORITY);
+        ArrayList<Entry> us = new ArrayList<>();
+        ArrayList<Entry> rs = new ArrayList<>();
+        for (Entry e : entries)
+            (e.render ? rs : us).add(e);
+        updates = us.toArray(new Entry[0]);
+        renders = rs.toArray(new Entry[0]);
+    }
+
+
+    /** The time until the next pulse doesn't count.  Stats are kept. */
+    public void start() {
+        restarted = true;
+        running = true;
+    }
+
+
+    public void stop() {
+        running = false;
+    }
+
+
+    public boolean isRunning() {
+        return running;
+    }
+
+
+    public void pulse(long now) {
+        if (!running)
+            return;
+        if (restarted) {
+            restarted = false;
+            last = now;
+            accumulator = 0;
+            windowStart = now;
+            windowPulses = 0;
+            return;
+        }
+
+        long frame = now - last;
+        last = now;
+        long step = stepNanos;
+        Policy pol = policy;
+
+        accumulator += frame;
+        long dropped = 0;
+        if (pol == Policy.CATCH_UP && accumulator > MAX_CATCH_UP_NANOS) {
+            dropped += (accumulator - MAX_CATCH_UP_NANOS) / step;
+            accumulator = MAX_CATCH_UP_NANOS;
+        }
+        int maxSteps = pol == Policy.SKIP ? 1 : pol == Policy.CLAMP ? MAX_CLAMP_STEPS : Integer.MAX_VALUE;
+
+        long t0 = System.nanoTime();
+        int n = 0;
+        while (accumulator >= step && n < maxSteps && running) {
+            for (Entry e : updates)
+                e.handler.call(0);
+            accumulator -= step;
+            n++;
+        }
+        if (accumulator >= step) {
+            dropped += accumulator / step;
+            accumulator %= step;
+        }
+        long t1 = System.nanoTime();
+        double alpha = (double) accumulator / step;
+        for (Entry e : renders)
+            e.handler.call(alpha);
+        long t2 = System.nanoTime();
+
+        windowPulses++;
+        double windowFps = -1;
+        if (now - windowStart >= 1_000_000_000L) {
+            windowFps = windowPulses * 1e9 / (now - windowStart);
+            windowStart = now;
+            windowPulses = 0;
+        }
+
+        synchronized (this) {
+            frameMillis[frameNext] = frame / 1e6;
+            frameNext = (frameNext + 1) % FRAME_SAMPLES;
+            frameCount = Math.min(frameCount + 1, FRAME_SAMPLES);
+            if (windowFps >= 0)
+                fps = windowFps;
+            updateMillis += SMOOTHING * ((t1 - t0) / 1e6 - updateMillis);
+            renderMillis += SMOOTHING * ((t2 - t1) / 1e6 - renderMillis);
+            steps += n;
+            droppedSteps += dropped;
+        }
+    }
+
+
+    /** Frames per second, over the last second or so. */
+    public synchronized double fps() {
+        return fps;
+    }
+
+
+    /** Milliseconds pr frame spent in update handlers, averaged over recent frames. */
+    public synchronized double updateMillis() {
+        return updateMillis;
+    }
+
+
+    /** Milliseconds pr frame spent in render handlers, averaged over recent frames. */
+    public synchronized double renderMillis() {
+        return renderMillis;
+    }
+
+
+    /** The 'p' (0-1) percentile of the time between recent frames, in milliseconds, or 0 if there have been none. */
+    public synchronized double frameMillisPercentile(double p) {
+        if (frameCount == 0)
+            return 0;
+        double[] sorted = Arrays.copyOf(frameMillis, frameCount);
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(p * frameCount) - 1;
+        return sorted[Math.max(0, Math.min(frameCount - 1, i))];
+    }
+
+
+    public synchronized long steps() {
+        return steps;
+    }
+
+
+    public synchronized long droppedSteps() {
+        return droppedSteps;
+    }
+}
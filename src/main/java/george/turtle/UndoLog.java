@@ -0,0 +1,234 @@
+/*
+ *  Copyright (c) 2016-2018 Terje Dahl. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which can be found in the file epl-v10.html at the root of this distribution.
+ *  By using this software in any fashion, you are agreeing to be bound by the terms of this license.
+ *  You must not remove this notice, or any other, from this software.
+ */
+
+package george.turtle;
+
+import java.util.List;
+
+
+/**
+ * A turtle's undo history: a ring of fixed-size records of what the turtle was before each undoable command -
+ * position, heading, visibility and pen - and what the command drew (nodes, or ink handles).
+ *
+ * What a command drew is kept in a second ring, as a contiguous range following the range of the previous record.
+ * Nothing is copied or cloned, and pushing and popping are O(1) (plus the items drawn).
+ *
+ * The history is limited both in steps and in (approx.) memory.  The oldest records are dropped first.
+ * The newest record is always kept, even if it alone is over the budget.
+ */
+public final class UndoLog {
+
+    public interface Restorer {
+        /** 'width' is NaN if the pen had no width. */
+        void restore(double x, double y, double heading, double width, Object color,
+                     boolean down, boolean round, boolean visible, Object[] drawn);
+    }
+
+
+    /** Estimated bytes pr record: 4 doubles, 1 int, 1 byte and 1 reference. */
+    public static final int RECORD_BYTES = 4 * 8 + 4 + 1 + 8;
+    /** Estimated bytes pr item drawn. */
+    public static final int REFERENCE_BYTES = 8;
+
+    public static final long DEFAULT_MEMORY_LIMIT = 1024 * 1024;
+
+
+    private static final byte DOWN = 1;
+    private static final byte ROUND = 2;
+    private static final byte VISIBLE = 4;
+
+
+    private int maxSteps;
+    private long maxBytes;
+
+    // The records.  4 nums pr record: x y heading width
+    private double[] nums = new double[0];
+    private int[] drawnCounts = new int[0];
+    private byte[] flags = new byte[0];
+    private Object[] colors = new Object[0];
+    private int first;
+    private int count;
+
+    // The items drawn.
+    private Object[] drawn = new Object[0];
+    private int drawnFirst;
+    private int drawnCount;
+
+
+    public UndoLog(int maxSteps, long maxBytes) {
+        this.maxSteps = maxSteps;
+        this.maxBytes = maxBytes;
+    }
+
+
+    public synchronized int size() {
+        return count;
+    }
+
+
+    public synchronized long bytes() {
+        return bytes(count, drawnCount);
+    }
+
+
+    public synchronized int maxSteps() {
+        return maxSteps;
+    }
+
+
+    public synchronized long maxBytes() {
+        return maxBytes;
+    }
+
+
+    /** Changes the limits, dropping the oldest records if needed. */
+    public synchronized void setLimits(int maxSteps, long maxBytes) {
+        this.maxSteps = maxSteps;
+        this.maxBytes = maxBytes;
+        trim(0, 0);
+    }
+
+
+    public synchronized void clear() {
+        while (count > 0)
+            dropOldest();
+        first = 0;
+        drawnFirst = 0;
+    }
+
+
+    /** Adds a record.  'drawnItems' may be null. */
+    public synchronized void push(double x, double y, double heading, double width, Object color,
+                                  boolean down, boolean round, boolean visible, List<?> drawnItems) {
+        if (maxSteps <= 0)
+            return;
+        int k = drawnItems == null ? 0 : drawnItems.size();
+        trim(1, k);
+
+        ensureRecords(count + 1);
+        ensureDrawn(drawnCount + k);
+
+        int rcap = flags.length;
+        int i = (first + count) % rcap;
+        nums[4 * i] = x;
+        nums[4 * i + 1] = y;
+        nums[4 * i + 2] = heading;
+        nums[4 * i + 3] = width;
+        colors[i] = color;
+        flags[i] = (byte) ((down ? DOWN : 0) | (round ? ROUND : 0) | (visible ? VISIBLE : 0));
+        drawnCounts[i] = k;
+        count++;
+
+        int dcap = drawn.length;
+        for (int j = 0; j < k; j++)
+            drawn[(drawnFirst + drawnCount + j) % dcap] = drawnItems.get(j);
+        drawnCount += k;
+    }
+
+
+    /** Removes the newest record, and passes it to 'r'.  Returns false if there was none. */
+    public boolean pop(Restorer r) {
+        double x, y, heading, width;
+        Object color;
+        byte f;
+        Object[] items;
+        synchronized (this) {
+            if (count == 0)
+                return false;
+            int i = (first + count - 1) % flags.length;
+            x = nums[4 * i];
+            y = nums[4 * i + 1];
+            heading = nums[4 * i + 2];
+            width = nums[4 * i + 3];
+            color = colors[i];
+            f = flags[i];
+            colors[i] = null;
+
+            int k = drawnCounts[i];
+            items = new Object[k];
+            int dcap = drawn.length;
+            int start = drawnFirst + drawnCount - k;
+            for (int j = 0; j < k; j++) {
+                int d = (start + j) % dcap;
+                items[j] = drawn[d];
+                drawn[d] = null;
+            }
+            drawnCount -= k;
+            count--;
+        }
+        r.restore(x, y, heading, width, color, (f & DOWN) != 0, (f & ROUND) != 0, (f & VISIBLE) != 0, items);
+        return true;
+    }
+
+
+    private static long bytes(long records, long items) {
+        return records * RECORD_BYTES + items * REFERENCE_BYTES;
+    }
+
+
+    /** Drops the oldest records until 'moreRecords' and 'moreItems' fit, or there are no more records. */
+    private void trim(int moreRecords, int moreItems) {
+        while (count > 0 && (count + moreRecords > maxSteps
+                || bytes(count + moreRecords, drawnCount + moreItems) > maxBytes))
+            dropOldest();
+    }
+
+
+    private void dropOldest() {
+        int k = drawnCounts[first];
+        int dcap = drawn.length;
+        for (int j = 0; j < k; j++)
+            drawn[(drawnFirst + j) % dcap] = null;
+        drawnFirst = dcap == 0 ? 0 : (drawnFirst + k) % dcap;
+        drawnCount -= k;
+        colors[first] = null;
+        first = (first + 1) % flags.length;
+        count--;
+    }
+
+
+    private void ensureRecords(int n) {
+        int cap = flags.length;
+        if (n <= cap)
+            return;
+        int newCap = Math.max(n, Math.max(16, cap * 2));
+        double[] nums1 = new double[4 * newCap];
+        int[] drawnCounts1 = new int[newCap];
+        byte[] flags1 = new byte[newCap];
+        Object[] colors1 = new Object[newCap];
+        for (int j = 0; j < count; j++) {
+            int i = (first + j) % cap;
+            System.arraycopy(nums, 4 * i, nums1, 4 * j, 4);
+            drawnCounts1[j] = drawnCounts[i];
+            flags1[j] = flags[i];
+            colors1[j] = colors[i];
+        }
+        nums = nums1;
+        drawnCounts = drawnCounts1;
+        flags = flags1;
+        colors = colors1;
+        first = 0;
+    }
+
+
+    private void ensureDrawn(int n) {
+        int cap = drawn.length;
+        if (n <= cap)
+            return;
+        Object[] drawn1 = new Object[Math.max(n, Math.max(64, cap * 2))];
+        for (int j = 0; j < drawnCount; j++)
+            drawn1[j] = drawn[(drawnFirst + j) % cap];
+        drawn = drawn1;
+        drawnFirst = 0;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return String.format("#<UndoLog %d/%d steps, %d/%d bytes>", count, maxSteps, bytes(), maxBytes);
+    }
+}